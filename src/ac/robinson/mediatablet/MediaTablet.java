@@ -75,4 +75,25 @@ public class MediaTablet {
 	public static final int ANIMATION_GRIDHINT_SHOW_DELAY = 200;
 	public static final int ANIMATION_GRIDHINT_HIDE_DELAY = 200;
 	public static final int MESSAGE_UPDATE_GRID_ICONS = 6;
+	public static final int ITEM_CACHE_SIZE_MEDIA = 256; // number of MediaItems to keep in memory (see ItemCache)
+	public static final int ITEM_CACHE_SIZE_PEOPLE = 64;
+	public static final int ITEM_CACHE_SIZE_HOMESTEADS = 32;
+	public static final int MEDIA_BROWSER_PAGE_SIZE = 120; // number of media items loaded per query when browsing
+	public static final int MEDIA_BROWSER_PAGE_PREFETCH = 40; // load the next page when this close to the end
+	public static final int COLLECTOR_BATCH_SIZE = 25; // deleted items permanently removed per batch when idle
+	public static final int COLLECTOR_BATCH_INTERVAL = 30000; // in milliseconds, between batches
+	public static final long COLLECTOR_CYCLE_INTERVAL = 86400000; // in milliseconds, after every item is checked (1 day)
+	public static final long COLLECTOR_MINIMUM_ORPHAN_AGE = 86400000; // in milliseconds, before unused files are removed
+	public static final long COLLECTOR_THREAD_KEEP_ALIVE = 10000; // in milliseconds, before the idle collector exits
+	public static final int IMPORT_MAXIMUM_THREADS = 3; // imports are limited by storage speed, so more rarely helps
+	public static final int IMPORT_QUEUE_SIZE = 6; // imports queued in the pool; later ones wait (see ImportExecutor)
+	public static final long IMPORT_THREAD_KEEP_ALIVE = 10000; // in milliseconds, before idle import threads exit
+	public static final int BITMAP_POOL_FRACTION = 16; // unused bitmaps kept for reuse: at most 1/16 of the heap
+	public static final int ICON_MEMORY_CACHE_FRACTION = 8; // decoded icons kept in memory: 1/8 of the memory class
+	public static final long ICON_RENDER_THREAD_KEEP_ALIVE = 10000; // in milliseconds, before the idle renderer exits
+	public static final long THUMBNAIL_PACK_SEGMENT_SIZE = 4194304; // in bytes, before a new icon pack file is started
+	public static final float THUMBNAIL_PACK_COMPACT_FRACTION = 0.5f; // compact pack files once less than half is used
+	public static final int SEARCH_TARGET_LATENCY = 50; // in milliseconds, for a search (see SearchBenchmark)
+	public static final int PROVIDER_SLOW_OPERATION_THRESHOLD = 100; // in milliseconds, for the slow operation log
+	public static final int PROVIDER_SLOW_LOG_SIZE = 100; // number of slow provider operations to keep
 }
@@ -26,20 +26,20 @@ import ac.robinson.mediatablet.activity.AddUserActivity;
 import ac.robinson.mediatablet.activity.HomesteadBrowserActivity;
 import ac.robinson.mediatablet.activity.MediaBrowserActivity;
 import ac.robinson.mediatablet.activity.PreferencesActivity;
+import ac.robinson.mediatablet.importing.ImportExecutor;
 import ac.robinson.mediatablet.importing.ImportedFileParser;
 import ac.robinson.mediatablet.provider.MediaItem;
 import ac.robinson.mediatablet.provider.PersonItem;
-import ac.robinson.mediautilities.FrameMediaContainer;
 import ac.robinson.mediautilities.MediaUtilities;
 import ac.robinson.util.DebugUtilities;
 import ac.robinson.util.UIUtilities;
 import ac.robinson.util.ViewServer;
 import android.app.Activity;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Message;
@@ -252,17 +252,32 @@ public abstract class MediaTabletActivity extends Activity {
 		final String mediaParent = getCurrentPersonId();
 		final int mediaVisibility = PersonItem.UNKNOWN_PERSON_ID.equals(mediaParent) ? MediaItem.MEDIA_PUBLIC
 				: MediaItem.MEDIA_PRIVATE;
+
+		// imports run in the background and may outlast this activity, so use the application's resolver
+		final ContentResolver contentResolver = getApplicationContext().getContentResolver();
+		final ImportExecutor importExecutor = ((MediaTabletApplication) getApplication()).getImportExecutor();
 		switch (msg.what) {
 			case MediaUtilities.MSG_RECEIVED_IMPORT_FILE:
-				ImportedFileParser.importMediaItem(getContentResolver(), mediaParent, importedFile, mediaVisibility,
-						true);
+				importExecutor.submit(importedFile.getAbsolutePath(), new Runnable() {
+					@Override
+					public void run() {
+						ImportedFileParser.importMediaItem(contentResolver, mediaParent, importedFile,
+								mediaVisibility, true);
+					}
+				});
 				break;
 
 			case MediaUtilities.MSG_RECEIVED_SMIL_FILE:
-				FrameMediaContainer currentSmilFile = new FrameMediaContainer(importedFile.getAbsolutePath(),
-						mediaVisibility); // hacky - using frameId for filename and frameSequenceId for visibility
-				currentSmilFile.mParentId = mediaParent; // again, hacky, but it works
-				new ImportSmilTask().execute(new FrameMediaContainer[] { currentSmilFile });
+				// narratives are imported in parallel, but the SMIL and sync files of one narrative are never
+				// imported at the same time
+				importExecutor.submit(ImportedFileParser.getNarrativeName(importedFile), new Runnable() {
+					@Override
+					public void run() {
+						ImportedFileParser.importSMILNarrative(contentResolver, importedFile, mediaParent,
+								mediaVisibility);
+						importedFile.delete();
+					}
+				});
 				break;
 
 			case MediaUtilities.MSG_RECEIVED_HTML_FILE:
@@ -273,29 +288,6 @@ public abstract class MediaTabletActivity extends Activity {
 		}
 	}
 
-	private class ImportSmilTask extends AsyncTask<FrameMediaContainer, Void, Void> {
-		@Override
-		protected Void doInBackground(FrameMediaContainer... smilParents) {
-			for (int i = 0, n = smilParents.length; i < n; i++) {
-				final FrameMediaContainer currentSmilFile = smilParents[i];
-				final File smilFile = new File(currentSmilFile.mFrameId);
-				ImportedFileParser.importSMILNarrative(getContentResolver(), smilFile, currentSmilFile.mParentId,
-						currentSmilFile.mFrameSequenceId);
-				smilFile.delete();
-				publishProgress();
-			}
-			return null;
-		}
-
-		@Override
-		protected void onProgressUpdate(Void... unused) {
-		}
-
-		@Override
-		protected void onPostExecute(Void unused) {
-		}
-	}
-
 	protected void viewPublicMedia() {
 		Intent publicMediaIntent = new Intent(MediaTabletActivity.this, MediaBrowserActivity.class);
 		startActivityForResult(publicMediaIntent, R.id.intent_media_browser);
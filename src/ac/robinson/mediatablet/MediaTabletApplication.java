@@ -26,7 +26,16 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import ac.robinson.mediatablet.importing.ImportExecutor;
+import ac.robinson.mediatablet.importing.ImportJournal;
+import ac.robinson.mediatablet.importing.ImportedFileParser;
+import ac.robinson.mediatablet.provider.BitmapPool;
+import ac.robinson.mediatablet.provider.DeletedItemCollector;
+import ac.robinson.mediatablet.provider.IconCache;
+import ac.robinson.mediatablet.provider.IconRenderQueue;
+import ac.robinson.mediatablet.provider.MediaManager;
 import ac.robinson.mediatablet.provider.PersonManager;
+import ac.robinson.mediatablet.provider.ThumbnailPack;
 import ac.robinson.mediautilities.MediaUtilities;
 import ac.robinson.service.ImportingService;
 import ac.robinson.util.DebugUtilities;
@@ -34,6 +43,7 @@ import ac.robinson.util.IOUtilities;
 import android.app.Application;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -44,6 +54,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.StrictMode;
 import android.preference.PreferenceManager;
@@ -54,6 +65,15 @@ public class MediaTabletApplication extends Application {
 	// for watching SD card state
 	private BroadcastReceiver mExternalStorageReceiver;
 
+	// for permanently removing deleted items (and their files) in the background
+	private DeletedItemCollector mDeletedItemCollector;
+
+	// for importing received files in the background (several narratives can be imported at once)
+	private final ImportExecutor mImportExecutor = new ImportExecutor();
+
+	// for rendering the icons of newly added media in the background, before they are displayed
+	private IconRenderQueue mIconRenderQueue;
+
 	// for communicating with the importing service
 	private Messenger mImportingService = null;
 	private boolean mImportingServiceIsBound;
@@ -78,12 +98,67 @@ public class MediaTabletApplication extends Application {
 			StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder().detectAll().penaltyLog().penaltyDeath().build());
 		}
 		super.onCreate();
+		IconCache.setMemoryClass(this);
 		try {
 			PersonManager.lockAllPeople(getContentResolver());
 		} catch (Throwable t) {
 		}
 		initialiseDirectories();
+		openIconPack();
 		startWatchingExternalStorage();
+
+		mDeletedItemCollector = new DeletedItemCollector(this);
+		mDeletedItemCollector.start(); // runs whenever the UI thread is idle
+
+		mIconRenderQueue = new IconRenderQueue(this);
+		MediaManager.setIconRenderQueue(mIconRenderQueue);
+
+		resumeInterruptedImports();
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		IconCache.clear(); // icons can always be decoded again from the pack or their files
+		BitmapPool.clear();
+	}
+
+	// read the icon pack's index in the background, so that the first icons to be displayed don't wait for it
+	private void openIconPack() {
+		final ThumbnailPack iconPack = ThumbnailPack.getIconPack();
+		if (iconPack == null || iconPack.isReady()) {
+			return;
+		}
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				iconPack.open();
+			}
+		}, "Icon pack").start();
+	}
+
+	/**
+	 * Finish importing any narratives that were being imported when the application was last stopped
+	 */
+	private void resumeInterruptedImports() {
+		final ContentResolver contentResolver = getContentResolver();
+		mImportExecutor.submit(ImportJournal.DIRECTORY_NAME, new Runnable() { // the journals are read in the background
+			@Override
+			public void run() {
+				for (final ImportJournal journal : ImportJournal.loadUnfinished()) {
+					if (MediaTablet.DEBUG)
+						Log.d(DebugUtilities.getLogTag(this), "Resuming import of " + journal.getSourceFile());
+					mImportExecutor.submit(ImportedFileParser.getNarrativeName(journal.getSourceFile()),
+							new Runnable() {
+								@Override
+								public void run() {
+									ImportedFileParser.importSMILNarrative(contentResolver, journal);
+								}
+							});
+				}
+			}
+		});
 	}
 
 	private void initialiseDirectories() {
@@ -133,6 +208,7 @@ public class MediaTabletApplication extends Application {
 					Log.d(DebugUtilities.getLogTag(this), "SD card state changed to: " + intent.getAction());
 				}
 				initialiseDirectories(); // check storage still present; switch to external temp directory if possible
+				openIconPack(); // the thumbnail directory may have changed
 				if (mCurrentActivity != null) {
 					MediaTabletActivity currentActivity = mCurrentActivity.get();
 					if (currentActivity != null) {
@@ -160,6 +236,14 @@ public class MediaTabletApplication extends Application {
 		unregisterReceiver(mExternalStorageReceiver);
 	}
 
+	public ImportExecutor getImportExecutor() {
+		return mImportExecutor;
+	}
+
+	public IconRenderQueue getIconRenderQueue() {
+		return mIconRenderQueue;
+	}
+
 	public void registerActivityHandle(MediaTabletActivity activity) {
 		if (mCurrentActivity != null) {
 			mCurrentActivity.clear();
@@ -30,6 +30,7 @@ import java.util.Map;
 import ac.robinson.mediatablet.activity.HomesteadBrowserActivity;
 import ac.robinson.mediatablet.activity.PeopleBrowserActivity;
 import ac.robinson.mediatablet.importing.ImportedFileParser;
+import ac.robinson.mediatablet.provider.MediaContentStore;
 import ac.robinson.mediatablet.provider.MediaItem;
 import ac.robinson.mediatablet.provider.MediaManager;
 import ac.robinson.mediatablet.provider.MediaTabletProvider;
@@ -542,32 +543,45 @@ public abstract class MediaViewerActivity extends MediaTabletActivity {
 					ContentResolver contentResolver = getContentResolver();
 					MediaItem sharedMediaItem = MediaManager.findMediaByInternalId(contentResolver, mMediaInternalId);
 					ArrayList<FrameMediaContainer> smilContents = null;
+					String sharedContentId = null;
 					if (sharedMediaItem.getType() == MediaTabletProvider.TYPE_NARRATIVE) {
 						smilContents = SMILUtilities.getSMILFrameList(sharedMediaItem.getFile(), 1, false, 0, false);
+					} else {
+						// shared items refer to the same stored file, so older items (not yet in the store) are
+						// copied into it once, rather than once per person
+						sharedContentId = sharedMediaItem.getContentId();
+						if (sharedContentId == null) {
+							try {
+								sharedContentId = MediaContentStore.store(sharedMediaItem.getFile(),
+										sharedMediaItem.getFileExtension(), false, null);
+							} catch (IOException e) {
+							}
+						}
 					}
 					String[] selectedPeople = resultIntent
 							.getStringArrayExtra(getString(R.string.extra_selected_items));
 					int numPeopleShared = selectedPeople.length;
+					ArrayList<MediaItem> newMediaItems = new ArrayList<MediaItem>(); // added in a single transaction
 					for (String shareDestination : selectedPeople) {
 						if (!shareDestination.equals(mMediaParentId)) { // don't send to self
 							if (sharedMediaItem.getType() == MediaTabletProvider.TYPE_NARRATIVE) {
-								ImportedFileParser.duplicateSMILElements(contentResolver, smilContents,
-										sharedMediaItem.getFile(), shareDestination, MediaItem.MEDIA_PRIVATE, false);
+								ImportedFileParser.duplicateSMILElements(smilContents, sharedMediaItem.getFile(),
+										shareDestination, MediaItem.MEDIA_PRIVATE, false, newMediaItems);
 							} else {
 								final MediaItem newMediaItem = MediaItem.fromExisting(sharedMediaItem,
 										MediaTabletProvider.getNewInternalId(), shareDestination,
 										System.currentTimeMillis());
 								newMediaItem.setPubliclySharedStatus(MediaItem.MEDIA_PRIVATE);
-								try {
-									IOUtilities.copyFile(sharedMediaItem.getFile(), newMediaItem.getFile());
-									MediaManager.addMedia(contentResolver, newMediaItem);
-								} catch (IOException e) {
+								if (sharedContentId != null) {
+									newMediaItem.setContentId(sharedContentId);
+									newMediaItems.add(newMediaItem);
 								}
 							}
 						} else {
 							numPeopleShared -= 1;
 						}
 					}
+					MediaManager.addMedia(contentResolver, newMediaItems);
 					// can't use UIUtilities for formatted Toast strings
 					Toast.makeText(
 							MediaViewerActivity.this,
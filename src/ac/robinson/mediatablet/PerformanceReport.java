@@ -0,0 +1,99 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+
+import ac.robinson.util.DebugUtilities;
+import ac.robinson.util.IOUtilities;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Shared by the benchmarking services and the saved performance statistics: report files on external storage, and
+ * latency summaries
+ */
+public class PerformanceReport {
+
+	/**
+	 * Get a new report file on external storage, named by the application, the report's type and the current time
+	 */
+	public static File getFile(String reportType) {
+		return new File(Environment.getExternalStorageDirectory(), MediaTablet.APPLICATION_NAME + "-" + reportType
+				+ "-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".txt");
+	}
+
+	/**
+	 * Write a report to the log (tagged for the given caller) and to a new file on external storage (see getFile)
+	 */
+	public static void save(Object caller, String reportType, String report) {
+		Log.i(DebugUtilities.getLogTag(caller), report);
+		FileWriter fileWriter = null;
+		try {
+			fileWriter = new FileWriter(getFile(reportType));
+			fileWriter.write(report);
+			fileWriter.flush();
+		} catch (IOException e) {
+			Log.e(DebugUtilities.getLogTag(caller), "Unable to save report: " + e.getLocalizedMessage());
+		} finally {
+			IOUtilities.closeStream(fileWriter);
+		}
+	}
+
+	/**
+	 * Append the minimum, mean, median, 90th percentile and maximum of a list of latencies, in milliseconds
+	 *
+	 * @param latencies the latencies, which will be sorted
+	 * @param unitsPerMillisecond e.g., 1 for latencies in milliseconds, or 1000000 for nanoseconds
+	 */
+	public static void appendLatencies(StringBuilder report, ArrayList<Long> latencies, long unitsPerMillisecond) {
+		if (latencies.size() <= 0) {
+			report.append("no samples");
+			return;
+		}
+		Collections.sort(latencies);
+		long total = 0;
+		for (long latency : latencies) {
+			total += latency;
+		}
+		final String format = unitsPerMillisecond > 1 ? "%.3f" : "%.1f";
+		final double units = unitsPerMillisecond;
+		report.append("min ");
+		report.append(String.format(Locale.US, format, latencies.get(0) / units));
+		report.append(", mean ");
+		report.append(String.format(Locale.US, format, total / units / latencies.size()));
+		report.append(", median ");
+		report.append(String.format(Locale.US, format, latencies.get(latencies.size() / 2) / units));
+		report.append(", 90th percentile ");
+		report.append(String.format(Locale.US, format, latencies.get((int) Math.min(latencies.size() - 1,
+				Math.ceil(latencies.size() * 0.9) - 1)) / units));
+		report.append(", max ");
+		report.append(String.format(Locale.US, format, latencies.get(latencies.size() - 1) / units));
+		report.append(" ms");
+	}
+}
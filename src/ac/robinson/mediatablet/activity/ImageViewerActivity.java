@@ -20,18 +20,16 @@
 
 package ac.robinson.mediatablet.activity;
 
-import java.io.File;
-
-import ac.robinson.mediatablet.MediaTablet;
 import ac.robinson.mediatablet.MediaViewerActivity;
 import ac.robinson.mediatablet.R;
+import ac.robinson.mediatablet.provider.IconCache;
 import ac.robinson.mediatablet.provider.MediaItem;
 import ac.robinson.mediatablet.provider.MediaManager;
 import ac.robinson.mediatablet.provider.MediaTabletProvider;
 import ac.robinson.util.BitmapUtilities;
 import ac.robinson.util.ImageCacheUtilities;
 import ac.robinson.util.UIUtilities;
-import android.content.res.Resources;
+import ac.robinson.view.FastBitmapDrawable;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory.Options;
 import android.graphics.Canvas;
@@ -48,25 +46,26 @@ public class ImageViewerActivity extends MediaViewerActivity {
 		setContentView(R.layout.image_viewer);
 
 		String mediaPath = getCurrentMediaFile().getAbsolutePath(); // guaranteed to exist and not to be null
+		Bitmap iconBitmap = null; // for media that isn't an image, we display its icon (which may be in the icon pack)
 		int imageWidth;
 		int imageHeight;
 		if (MediaItem.getMediaTypeFromFileName(mediaPath) != MediaTabletProvider.TYPE_IMAGE_BACK) {
 			// need to do this as we're the viewer for unknown media items that might not have had their icon loaded yet
-			Resources resources = getResources();
 			String mediaId = getCurrentMediaId();
-			File mediaFile = new File(MediaTablet.DIRECTORY_THUMBS, MediaItem.getCacheId(mediaId,
-					MediaItem.MEDIA_PRIVATE));
-			if (!mediaFile.exists()) {
-				MediaManager.reloadMediaIcon(resources, getContentResolver(), mediaId, MediaItem.MEDIA_PRIVATE);
-				if (!mediaFile.exists()) {
+			String cacheId = MediaItem.getCacheId(mediaId, MediaItem.MEDIA_PRIVATE);
+			FastBitmapDrawable cachedIcon = IconCache.getCachedIcon(cacheId, null);
+			if (cachedIcon == null) {
+				MediaManager.reloadMediaIcon(getResources(), getContentResolver(), mediaId, MediaItem.MEDIA_PRIVATE);
+				cachedIcon = IconCache.getCachedIcon(cacheId, null);
+				if (cachedIcon == null) {
 					UIUtilities.showToast(ImageViewerActivity.this, R.string.error_loading_media);
 					finish();
 					return;
 				}
 			}
-			mediaPath = mediaFile.getAbsolutePath();
-			imageWidth = resources.getDimensionPixelSize(R.dimen.media_icon_width);
-			imageHeight = resources.getDimensionPixelSize(R.dimen.media_icon_height);
+			iconBitmap = cachedIcon.getBitmap();
+			imageWidth = iconBitmap.getWidth();
+			imageHeight = iconBitmap.getHeight();
 		} else {
 			Options imageOptions = BitmapUtilities.getImageDimensions(mediaPath); // called twice, but not a big issue
 			imageWidth = imageOptions.outWidth;
@@ -82,15 +81,20 @@ public class ImageViewerActivity extends MediaViewerActivity {
 		Point screenSize = UIUtilities.getScreenSize(getWindowManager());
 		Bitmap backgroundBitmap;
 		if (imageWidth >= screenSize.x || imageHeight >= screenSize.y) {
-			backgroundBitmap = BitmapUtilities.loadAndCreateScaledBitmap(mediaPath, screenSize.x, screenSize.y,
-					BitmapUtilities.ScalingLogic.FIT, true);
+			if (iconBitmap != null) {
+				backgroundBitmap = scaleToFit(iconBitmap, screenSize.x, screenSize.y);
+			} else {
+				backgroundBitmap = BitmapUtilities.loadAndCreateScaledBitmap(mediaPath, screenSize.x, screenSize.y,
+						BitmapUtilities.ScalingLogic.FIT, true);
+			}
 		} else {
 			backgroundBitmap = Bitmap.createBitmap(screenSize.y, imageHeight,
 					ImageCacheUtilities.mBitmapFactoryOptions.inPreferredConfig);
 			Canvas backgroundCanvas = new Canvas(backgroundBitmap);
 
-			Bitmap imageBitmap = BitmapUtilities.loadAndCreateScaledBitmap(mediaPath, imageHeight, imageHeight,
-					BitmapUtilities.ScalingLogic.FIT, true);
+			Bitmap imageBitmap = iconBitmap != null ? scaleToFit(iconBitmap, imageHeight, imageHeight)
+					: BitmapUtilities.loadAndCreateScaledBitmap(mediaPath, imageHeight, imageHeight,
+							BitmapUtilities.ScalingLogic.FIT, true);
 			backgroundCanvas.drawBitmap(imageBitmap, (backgroundBitmap.getWidth() - imageBitmap.getWidth()) / 2,
 					(backgroundBitmap.getHeight() - imageBitmap.getHeight()) / 2,
 					BitmapUtilities.getPaint(Color.BLACK, 1));
@@ -99,4 +103,11 @@ public class ImageViewerActivity extends MediaViewerActivity {
 		GestureImageView imageView = (GestureImageView) findViewById(R.id.media_image);
 		imageView.setImageBitmap(backgroundBitmap);
 	}
+
+	// icons are shared with IconCache, so are never scaled in place or recycled
+	private static Bitmap scaleToFit(Bitmap bitmap, int maxWidth, int maxHeight) {
+		float scale = Math.min(maxWidth / (float) bitmap.getWidth(), maxHeight / (float) bitmap.getHeight());
+		return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+				Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+	}
 }
@@ -27,8 +27,11 @@ import java.util.ArrayList;
 
 import ac.robinson.mediatablet.MediaTablet;
 import ac.robinson.mediatablet.MediaTabletActivity;
+import ac.robinson.mediatablet.MediaTabletApplication;
 import ac.robinson.mediatablet.R;
 import ac.robinson.mediatablet.provider.HomesteadManager;
+import ac.robinson.mediatablet.provider.IconCache;
+import ac.robinson.mediatablet.provider.IconRenderQueue.OnIconRenderedListener;
 import ac.robinson.mediatablet.provider.MediaAdapter;
 import ac.robinson.mediatablet.provider.MediaItem;
 import ac.robinson.mediatablet.provider.MediaManager;
@@ -51,10 +54,12 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.graphics.ColorFilter;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -87,6 +92,29 @@ public class MediaBrowserActivity extends MediaTabletActivity {
 	private boolean mFingerUp = true;
 	private ColorFilter mToggleButtonFilter;
 
+	// missing icons are rendered in the background, then faded in by updateMediaIcon (see requestMediaIcon)
+	private final OnIconRenderedListener mIconRenderedListener = new OnIconRenderedListener() {
+		@Override
+		public void onIconRendered(final String cacheId) {
+			mScrollHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					updateMediaIcon(cacheId);
+				}
+			});
+		}
+	};
+
+	// media counts are cheap to query (see MediaItem.COUNTS_URI), so filter buttons are updated on every change
+	private final ContentObserver mCountsObserver = new ContentObserver(new Handler()) {
+		@Override
+		public void onChange(boolean selfChange) {
+			updateFilterButtonStates();
+		}
+	};
+	private CountsTask mCountsTask;
+	private boolean mCountsUpdatePending;
+
 	// TODO: for showing the grid position hints
 	// private PopupWindow mPopup;
 	// private View mCurrentGridPositionView;
@@ -146,6 +174,13 @@ public class MediaBrowserActivity extends MediaTabletActivity {
 	@Override
 	protected void onDestroy() {
 		ImageCacheUtilities.cleanupCache();
+		if (mMediaAdapter != null) {
+			mMediaAdapter.close();
+		}
+		getContentResolver().unregisterContentObserver(mCountsObserver);
+		if (mCountsTask != null) {
+			mCountsTask.cancel(false);
+		}
 		super.onDestroy();
 	}
 
@@ -261,6 +296,8 @@ public class MediaBrowserActivity extends MediaTabletActivity {
 		colourMatrix.setSaturation(0);
 		mToggleButtonFilter = new ColorMatrixColorFilter(colourMatrix);
 		uncheckOtherFilterButtons(0);
+		updateFilterButtonStates();
+		getContentResolver().registerContentObserver(MediaItem.COUNTS_URI, false, mCountsObserver);
 
 		final GridView grid = mGrid;
 		grid.setAdapter(mMediaAdapter);
@@ -339,6 +376,59 @@ public class MediaBrowserActivity extends MediaTabletActivity {
 				break;
 		}
 		uncheckOtherFilterButtons(buttonId);
+		updateFilterButtonStates();
+	}
+
+	/**
+	 * Disable the filter buttons for media types that have no items in the current view. Counts are queried in the
+	 * background; any changes while a query is running are coalesced into one more query when it has finished.
+	 */
+	private void updateFilterButtonStates() {
+		if (mCountsTask != null) {
+			mCountsUpdatePending = true;
+			return;
+		}
+		mCountsUpdatePending = false;
+		mCountsTask = new CountsTask(mParentId, mMediaVisibility == MediaItem.MEDIA_PUBLIC);
+		mCountsTask.execute();
+	}
+
+	private class CountsTask extends AsyncTask<Void, Void, int[]> {
+		private final String mOwnerId;
+		private final boolean mPublicMedia;
+
+		public CountsTask(String ownerId, boolean publicMedia) {
+			mOwnerId = ownerId;
+			mPublicMedia = publicMedia;
+		}
+
+		@Override
+		protected int[] doInBackground(Void... unused) {
+			return MediaManager.countMediaByType(getContentResolver(), mOwnerId, mPublicMedia);
+		}
+
+		@Override
+		protected void onPostExecute(int[] typeCounts) {
+			mCountsTask = null;
+			applyFilterButtonStates(typeCounts);
+			if (mCountsUpdatePending) {
+				updateFilterButtonStates(); // the counts or the view changed while querying
+			}
+		}
+	}
+
+	private void applyFilterButtonStates(int[] typeCounts) {
+		setFilterButtonState(R.id.button_media_filter_images, typeCounts[MediaTabletProvider.TYPE_IMAGE_BACK - 1]
+				+ typeCounts[MediaTabletProvider.TYPE_IMAGE_FRONT - 1]);
+		setFilterButtonState(R.id.button_media_filter_videos, typeCounts[MediaTabletProvider.TYPE_VIDEO - 1]);
+		setFilterButtonState(R.id.button_media_filter_audio, typeCounts[MediaTabletProvider.TYPE_AUDIO - 1]);
+		setFilterButtonState(R.id.button_media_filter_text, typeCounts[MediaTabletProvider.TYPE_TEXT - 1]);
+		setFilterButtonState(R.id.button_media_filter_narratives, typeCounts[MediaTabletProvider.TYPE_NARRATIVE - 1]);
+	}
+
+	private void setFilterButtonState(int buttonId, int itemCount) {
+		final ToggleButton button = (ToggleButton) findViewById(buttonId);
+		button.setEnabled(itemCount > 0 || button.isChecked()); // an active filter must always be able to be removed
 	}
 
 	private void uncheckOtherFilterButtons(int currentButtonId) {
@@ -368,6 +458,7 @@ public class MediaBrowserActivity extends MediaTabletActivity {
 		} else {
 			mMediaVisibility = MediaItem.MEDIA_PUBLIC;
 			mMediaAdapter.setVisibilityFilter(mMediaVisibility);
+			updateFilterButtonStates();
 			PersonItem person = PersonManager.findPersonByInternalId(getContentResolver(), mParentId);
 			person.setLockStatus(PersonItem.PERSON_LOCKED);
 			PersonManager.updatePerson(getContentResolver(), person);
@@ -450,6 +541,15 @@ public class MediaBrowserActivity extends MediaTabletActivity {
 		return mPendingIconsUpdate; // for MediaAdapter purposes
 	}
 
+	/**
+	 * Render a missing icon in the background rather than on the UI thread - when it is ready it is faded in, but only
+	 * if a view is still waiting to show that item (for MediaAdapter purposes)
+	 */
+	public void requestMediaIcon(String mediaInternalId, int visibility) {
+		((MediaTabletApplication) getApplication()).getIconRenderQueue().requestMediaIcon(mediaInternalId,
+				visibility, mIconRenderedListener);
+	}
+
 	private void onView(MediaViewHolder currentMediaHolder) {
 		Class<?> launchClass = null;
 		switch (currentMediaHolder.mediaType) {
@@ -509,14 +609,10 @@ public class MediaBrowserActivity extends MediaTabletActivity {
 	// }
 	// }
 
-	// setBackgroundDrawable is deprecated from API 16+ (Jelly Bean), but we still want to target earlier versions;
-	// since this is purely a name change, there's no real reason to do anything platform-independent
-	@SuppressWarnings("deprecation")
 	private void updateMediaIcons() {
 		mPendingIconsUpdate = false;
 
 		final GridView grid = mGrid;
-		final FastBitmapDrawable icon = mDefaultIcon;
 		final int count = grid.getChildCount();
 
 		// show a different icon depending on whether we're viewing from the public media or this person's media store
@@ -525,34 +621,57 @@ public class MediaBrowserActivity extends MediaTabletActivity {
 			final View view = grid.getChildAt(i);
 			final MediaViewHolder holder = (MediaViewHolder) view.getTag();
 			if (holder.queryIcon) {
-				// if the icon has gone missing (recently imported or cache deletion), regenerate it
+				// if the icon has gone missing (recently imported or cache deletion), regenerate it in the background
 				String mediaCacheId = MediaItem.getCacheId(holder.mediaInternalId, iconVisibility);
-				FastBitmapDrawable cachedIcon = ImageCacheUtilities.getCachedIcon(MediaTablet.DIRECTORY_THUMBS,
-						mediaCacheId, ImageCacheUtilities.NULL_DRAWABLE);
+				FastBitmapDrawable cachedIcon = IconCache.getCachedIcon(mediaCacheId, ImageCacheUtilities.NULL_DRAWABLE);
 				if (ImageCacheUtilities.NULL_DRAWABLE.equals(cachedIcon)) {
-					MediaManager.reloadMediaIcon(getResources(), getContentResolver(), holder.mediaInternalId,
-							iconVisibility);
-					cachedIcon = ImageCacheUtilities.getCachedIcon(MediaTablet.DIRECTORY_THUMBS, mediaCacheId, icon);
-				}
-				CrossFadeDrawable d = holder.transition;
-				d.setEnd(cachedIcon.getBitmap());
-				holder.display.setImageDrawable(d);
-				d.startTransition(MediaTablet.ANIMATION_FADE_TRANSITION_DURATION);
-				holder.loader.setVisibility(View.GONE);
-
-				if (mParentId != null && holder.mediaVisibility == MediaItem.MEDIA_PUBLIC) {
-					holder.overlay.setBackgroundResource(R.drawable.item_public);
-					holder.overlay.setPadding(0, 0, 0, 0);
+					requestMediaIcon(holder.mediaInternalId, iconVisibility); // shown by updateMediaIcon
 				} else {
-					holder.overlay.setBackgroundDrawable(null);
+					showMediaIcon(holder, cachedIcon);
 				}
-				holder.queryIcon = false;
 			}
 		}
 
 		grid.invalidate();
 	}
 
+	// called when a requested icon has been rendered - the grid's views are recycled, so only views that are still
+	// waiting for this item's icon are updated
+	private void updateMediaIcon(String cacheId) {
+		final GridView grid = mGrid;
+		if (grid == null || mPendingIconsUpdate || mScrollState == ScrollManager.SCROLL_STATE_FLING) {
+			return; // icons will be updated when scrolling stops
+		}
+
+		final int count = grid.getChildCount();
+		final int iconVisibility = mParentId == null ? MediaItem.MEDIA_PUBLIC : MediaItem.MEDIA_PRIVATE;
+		for (int i = 0; i < count; i++) {
+			final MediaViewHolder holder = (MediaViewHolder) grid.getChildAt(i).getTag();
+			if (holder.queryIcon && cacheId.equals(MediaItem.getCacheId(holder.mediaInternalId, iconVisibility))) {
+				showMediaIcon(holder, IconCache.getCachedIcon(cacheId, mDefaultIcon)); // default if rendering failed
+			}
+		}
+	}
+
+	// setBackgroundDrawable is deprecated from API 16+ (Jelly Bean), but we still want to target earlier versions;
+	// since this is purely a name change, there's no real reason to do anything platform-independent
+	@SuppressWarnings("deprecation")
+	private void showMediaIcon(MediaViewHolder holder, FastBitmapDrawable cachedIcon) {
+		CrossFadeDrawable d = holder.transition;
+		d.setEnd(cachedIcon.getBitmap());
+		holder.display.setImageDrawable(d);
+		d.startTransition(MediaTablet.ANIMATION_FADE_TRANSITION_DURATION);
+		holder.loader.setVisibility(View.GONE);
+
+		if (mParentId != null && holder.mediaVisibility == MediaItem.MEDIA_PUBLIC) {
+			holder.overlay.setBackgroundResource(R.drawable.item_public);
+			holder.overlay.setPadding(0, 0, 0, 0);
+		} else {
+			holder.overlay.setBackgroundDrawable(null);
+		}
+		holder.queryIcon = false;
+	}
+
 	private void postUpdateMediaIcons() {
 		Handler handler = mScrollHandler;
 		Message message = handler.obtainMessage(MediaTablet.MESSAGE_UPDATE_GRID_ICONS, MediaBrowserActivity.this);
@@ -710,6 +829,7 @@ public class MediaBrowserActivity extends MediaTabletActivity {
 				if (resultCode == Activity.RESULT_OK) {
 					mMediaVisibility = MediaItem.MEDIA_PRIVATE;
 					mMediaAdapter.setVisibilityFilter(mMediaVisibility);
+					updateFilterButtonStates();
 					PersonItem person = PersonManager.findPersonByInternalId(getContentResolver(), mParentId);
 					person.setLockStatus(PersonItem.PERSON_UNLOCKED);
 					PersonManager.updatePerson(getContentResolver(), person);
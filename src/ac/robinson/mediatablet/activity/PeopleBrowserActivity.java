@@ -25,10 +25,13 @@ import java.util.ArrayList;
 
 import ac.robinson.mediatablet.MediaTablet;
 import ac.robinson.mediatablet.MediaTabletActivity;
+import ac.robinson.mediatablet.MediaTabletApplication;
 import ac.robinson.mediatablet.MediaViewerActivity;
 import ac.robinson.mediatablet.R;
 import ac.robinson.mediatablet.provider.HomesteadItem;
 import ac.robinson.mediatablet.provider.HomesteadManager;
+import ac.robinson.mediatablet.provider.IconCache;
+import ac.robinson.mediatablet.provider.IconRenderQueue.OnIconRenderedListener;
 import ac.robinson.mediatablet.provider.MediaItem;
 import ac.robinson.mediatablet.provider.PersonAdapter;
 import ac.robinson.mediatablet.provider.PersonItem;
@@ -71,6 +74,19 @@ public class PeopleBrowserActivity extends MediaTabletActivity {
 
 	private String mParentId; // the homestead of these, or null if it's the sharing selection view
 
+	// missing icons are rendered in the background, then faded in by updatePersonIcon (see requestPersonIcon)
+	private final OnIconRenderedListener mIconRenderedListener = new OnIconRenderedListener() {
+		@Override
+		public void onIconRendered(final String cacheId) {
+			mScrollHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					updatePersonIcon(cacheId);
+				}
+			});
+		}
+	};
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -121,6 +137,9 @@ public class PeopleBrowserActivity extends MediaTabletActivity {
 	@Override
 	protected void onDestroy() {
 		ImageCacheUtilities.cleanupCache();
+		if (mPersonAdapter != null) {
+			mPersonAdapter.close();
+		}
 		super.onDestroy();
 	}
 
@@ -298,6 +317,15 @@ public class PeopleBrowserActivity extends MediaTabletActivity {
 		return mPendingIconsUpdate; // for PersonAdapter purposes
 	}
 
+	/**
+	 * Render a missing icon in the background rather than on the UI thread - when it is ready it is faded in, but only
+	 * if a view is still waiting to show that person (for PersonAdapter purposes)
+	 */
+	public void requestPersonIcon(String personInternalId) {
+		((MediaTabletApplication) getApplication()).getIconRenderQueue().requestPersonIcon(personInternalId,
+				mIconRenderedListener);
+	}
+
 	/**
 	 * Switch to an item's view when it is touched
 	 * 
@@ -323,51 +351,75 @@ public class PeopleBrowserActivity extends MediaTabletActivity {
 		startActivityForResult(browseMediaIntent, R.id.intent_media_browser);
 	}
 
-	// setBackgroundDrawable is deprecated from API 16+ (Jelly Bean), but we still want to target earlier versions;
-	// since this is purely a name change, there's no real reason to do anything platform-independent
-	@SuppressWarnings("deprecation")
 	private void updatePeopleIcons(boolean fadeIn) {
 		mPendingIconsUpdate = false;
 
 		final GridView grid = mGrid;
-		final FastBitmapDrawable icon = mDefaultIcon;
 		final int count = grid.getChildCount();
 
 		for (int i = 0; i < count; i++) {
 			final View view = grid.getChildAt(i);
 			final PersonViewHolder holder = (PersonViewHolder) view.getTag();
 			if (holder.queryIcon) {
-				// if the icon has gone missing (recently imported or cache deletion), regenerate it
+				// if the icon has gone missing (recently imported or cache deletion), regenerate it in the background
 				String personCacheId = PersonItem.getCacheId(holder.personInternalId);
-				FastBitmapDrawable cachedIcon = ImageCacheUtilities.getCachedIcon(MediaTablet.DIRECTORY_THUMBS,
-						personCacheId, ImageCacheUtilities.NULL_DRAWABLE);
+				FastBitmapDrawable cachedIcon = IconCache.getCachedIcon(personCacheId,
+						ImageCacheUtilities.NULL_DRAWABLE);
 				if (ImageCacheUtilities.NULL_DRAWABLE.equals(cachedIcon)) {
-					PersonManager.reloadPersonIcon(getResources(), getContentResolver(), holder.personInternalId);
-					cachedIcon = ImageCacheUtilities.getCachedIcon(MediaTablet.DIRECTORY_THUMBS, personCacheId, icon);
-				}
-
-				if (fadeIn) {
-					CrossFadeDrawable d = holder.transition;
-					d.setEnd(cachedIcon.getBitmap());
-					holder.display.setBackgroundDrawable(d);
-					d.startTransition(MediaTablet.ANIMATION_FADE_TRANSITION_DURATION);
+					requestPersonIcon(holder.personInternalId); // shown by updatePersonIcon
+					updatePersonOverlay(holder);
 				} else {
-					holder.display.setBackgroundDrawable(cachedIcon);
+					showPersonIcon(holder, cachedIcon, fadeIn);
 				}
+			}
+		}
 
-				holder.loader.setVisibility(View.GONE);
-				holder.queryIcon = false;
+		grid.invalidate();
+	}
 
-				if (holder.selected) {
-					holder.overlay.setBackgroundResource(R.drawable.item_public);
-					holder.overlay.setPadding(0, 0, 0, 0);
-				} else {
-					holder.overlay.setBackgroundDrawable(null);
-				}
+	// called when a requested icon has been rendered - the grid's views are recycled, so only views that are still
+	// waiting for this person's icon are updated
+	private void updatePersonIcon(String cacheId) {
+		final GridView grid = mGrid;
+		if (grid == null || mPendingIconsUpdate || mScrollState == ScrollManager.SCROLL_STATE_FLING) {
+			return; // icons will be updated when scrolling stops
+		}
+
+		final int count = grid.getChildCount();
+		for (int i = 0; i < count; i++) {
+			final PersonViewHolder holder = (PersonViewHolder) grid.getChildAt(i).getTag();
+			if (holder.queryIcon && cacheId.equals(PersonItem.getCacheId(holder.personInternalId))) {
+				showPersonIcon(holder, IconCache.getCachedIcon(cacheId, mDefaultIcon), true); // default if failed
 			}
 		}
+	}
 
-		grid.invalidate();
+	// setBackgroundDrawable is deprecated from API 16+ (Jelly Bean), but we still want to target earlier versions;
+	// since this is purely a name change, there's no real reason to do anything platform-independent
+	@SuppressWarnings("deprecation")
+	private void showPersonIcon(PersonViewHolder holder, FastBitmapDrawable cachedIcon, boolean fadeIn) {
+		if (fadeIn) {
+			CrossFadeDrawable d = holder.transition;
+			d.setEnd(cachedIcon.getBitmap());
+			holder.display.setBackgroundDrawable(d);
+			d.startTransition(MediaTablet.ANIMATION_FADE_TRANSITION_DURATION);
+		} else {
+			holder.display.setBackgroundDrawable(cachedIcon);
+		}
+
+		holder.loader.setVisibility(View.GONE);
+		holder.queryIcon = false;
+		updatePersonOverlay(holder);
+	}
+
+	@SuppressWarnings("deprecation")
+	private void updatePersonOverlay(PersonViewHolder holder) {
+		if (holder.selected) {
+			holder.overlay.setBackgroundResource(R.drawable.item_public);
+			holder.overlay.setPadding(0, 0, 0, 0);
+		} else {
+			holder.overlay.setBackgroundDrawable(null);
+		}
 	}
 
 	private void postUpdatePeopleIcons() {
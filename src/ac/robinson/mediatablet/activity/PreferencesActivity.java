@@ -21,10 +21,19 @@
 package ac.robinson.mediatablet.activity;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 
 import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.mediatablet.PerformanceReport;
 import ac.robinson.mediatablet.R;
+import ac.robinson.mediatablet.importing.ImportedFileParser;
+import ac.robinson.mediatablet.provider.BitmapPool;
+import ac.robinson.mediatablet.provider.IconCache;
+import ac.robinson.mediatablet.provider.MediaContentStore;
+import ac.robinson.mediatablet.provider.MediaTabletProvider;
+import ac.robinson.mediatablet.provider.ThumbnailPack;
 import ac.robinson.mediatablet.view.HomesteadSurfaceView;
 import ac.robinson.mediautilities.SelectDirectoryActivity;
 import ac.robinson.util.DebugUtilities;
@@ -145,6 +154,48 @@ public class PreferencesActivity extends PreferenceActivity {
 			}
 		});
 
+		// show database timings, the slow operation log and import statistics, which can be saved for offline analysis
+		Preference statisticsButton = (Preference) findPreference(getString(R.string.key_performance_statistics));
+		statisticsButton.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+			@Override
+			public boolean onPreferenceClick(Preference preference) {
+				final String statistics = ImportedFileParser.getImportStatistics() + "\n"
+						+ MediaContentStore.getStatistics() + "\n\n" + MediaTabletProvider.getCacheStatistics() + "\n"
+						+ IconCache.getStatistics() + "\n" + ThumbnailPack.getIconPackStatistics() + "\n"
+						+ BitmapPool.getStatistics() + "\n\n" + MediaTabletProvider.getQueryStatistics();
+				AlertDialog.Builder builder = new AlertDialog.Builder(PreferencesActivity.this);
+				builder.setTitle(R.string.preferences_performance_statistics_title).setMessage(statistics)
+						.setPositiveButton(R.string.preferences_performance_statistics_save,
+								new DialogInterface.OnClickListener() {
+									@Override
+									public void onClick(DialogInterface dialog, int id) {
+										savePerformanceStatistics(statistics);
+									}
+								})
+						.setNeutralButton(R.string.preferences_performance_statistics_reset,
+								new DialogInterface.OnClickListener() {
+									@Override
+									public void onClick(DialogInterface dialog, int id) {
+										MediaTabletProvider.clearQueryStatistics();
+										ImportedFileParser.clearImportStatistics();
+										MediaContentStore.clearStatistics();
+										IconCache.clearStatistics();
+										ThumbnailPack.clearIconPackStatistics();
+										BitmapPool.clearStatistics();
+									}
+								})
+						.setNegativeButton(R.string.preferences_performance_statistics_close,
+								new DialogInterface.OnClickListener() {
+									@Override
+									public void onClick(DialogInterface dialog, int id) {
+										dialog.cancel();
+									}
+								});
+				builder.show();
+				return true;
+			}
+		});
+
 		// add the contact us button
 		PreferenceScreen preferenceScreen = getPreferenceScreen();
 		Preference contactUsPreference = preferenceScreen.findPreference(getString(R.string.key_contact_us));
@@ -191,6 +242,23 @@ public class PreferencesActivity extends PreferenceActivity {
 
 	}
 
+	private void savePerformanceStatistics(String statistics) {
+		File statisticsFile = PerformanceReport.getFile("performance");
+		FileWriter fileWriter = null;
+		try {
+			fileWriter = new FileWriter(statisticsFile);
+			fileWriter.write(DebugUtilities.getDeviceDebugSummary(getWindowManager(), getResources()) + "\n\n");
+			fileWriter.write(statistics);
+			fileWriter.flush();
+			UIUtilities.showFormattedToast(PreferencesActivity.this, R.string.preferences_performance_statistics_saved,
+					statisticsFile.getAbsolutePath());
+		} catch (IOException e) {
+			UIUtilities.showToast(PreferencesActivity.this, R.string.preferences_performance_statistics_error);
+		} finally {
+			IOUtilities.closeStream(fileWriter);
+		}
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		getMenuInflater().inflate(R.menu.save, menu);
@@ -27,8 +27,10 @@ import java.io.IOException;
 import java.io.LineNumberReader;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ac.robinson.mediatablet.MediaTablet;
 import ac.robinson.mediautilities.MediaUtilities;
@@ -46,11 +48,24 @@ import android.util.Log;
 
 public class BluetoothObserver extends FileObserver {
 
-	// synchronized because onEvent() runs on a separate thread
-	private Map<String, Map<String, Boolean>> mSMILContents = Collections
-			.synchronizedMap(new HashMap<String, Map<String, Boolean>>());
+	// narratives waiting for components, by SMIL file path, and a reverse index from each component's path to the
+	// narrative(s) that require it, so that each received file is handled without scanning every narrative - both are
+	// accessed only while synchronized on this, because onEvent() runs on a separate thread
+	private final HashMap<String, PendingNarrative> mPendingNarratives = new HashMap<String, PendingNarrative>();
+	private final HashMap<String, ArrayList<PendingNarrative>> mComponentNarratives =
+			new HashMap<String, ArrayList<PendingNarrative>>();
 	private String mPreviousExport = null; // for tracking duplicates
 
+	// results of claimPendingNarrative
+	private static final int NARRATIVE_CLAIMED = 0;
+	private static final int NARRATIVE_ALREADY_PENDING = 1;
+	private static final int NARRATIVE_ALREADY_SENT = 2;
+	private static final int NARRATIVE_DUPLICATE = 3; // the other half of a SMIL/sync pair
+
+	// pending narratives are only kept in memory (and are cleared by stopWatching), so are registered again from the
+	// files already received each time this observer starts watching
+	private final AtomicBoolean mReceivedFilesRegistered = new AtomicBoolean(false);
+
 	private final Handler mHandler;
 	private final String mBluetoothDirectoryPath;
 
@@ -97,46 +112,101 @@ public class BluetoothObserver extends FileObserver {
 		mHandler.sendMessage(msg);
 	}
 
-	private String fileIsRequiredForSMIL(String filePath) {
-		for (String smilFile : mSMILContents.keySet()) {
-			if (mSMILContents.get(smilFile).containsKey(filePath)) {
-				return smilFile;
-			}
+	private synchronized boolean isRequiredForSMIL(String filePath) {
+		return mComponentNarratives.containsKey(filePath);
+	}
+
+	/**
+	 * Check whether a narrative is new and, if so, add it to the pending narratives, in one step - a file can be
+	 * handled by registerReceivedNarratives and by a real event at the same time, and must only be imported once.
+	 * Components are added later, with addPendingNarrative.
+	 * 
+	 * @param previousFile the other half of the narrative's SMIL/sync pair, or null
+	 */
+	private synchronized int claimPendingNarrative(PendingNarrative narrative, String previousFile) {
+		if (mPendingNarratives.containsKey(narrative.mSMILPath)) {
+			return NARRATIVE_ALREADY_PENDING;
+		}
+		if (narrative.mSMILPath.equals(mPreviousExport)) {
+			return NARRATIVE_ALREADY_SENT;
 		}
-		return null;
+		// the file could exist if we're still processing it from this import
+		if (previousFile != null
+				&& (mPendingNarratives.containsKey(previousFile) || previousFile.equals(mPreviousExport))) {
+			mPreviousExport = null;
+			return NARRATIVE_DUPLICATE;
+		}
+		mPendingNarratives.put(narrative.mSMILPath, narrative);
+		return NARRATIVE_CLAIMED;
 	}
 
-	private boolean checkAndSendSMILContents(String smilParent, Map<String, Boolean> smilContents) {
+	// must be called with the lock held, after claimPendingNarrative
+	private void addPendingNarrative(PendingNarrative narrative) {
+		for (String mediaFile : narrative.mComponents.keySet()) {
+			ArrayList<PendingNarrative> narratives = mComponentNarratives.get(mediaFile);
+			if (narratives == null) {
+				narratives = new ArrayList<PendingNarrative>(1); // a file is almost never in more than one narrative
+				mComponentNarratives.put(mediaFile, narratives);
+			}
+			narratives.add(narrative);
+		}
+	}
 
-		// check that the files themselves exist (i.e. haven't been deleted since we first received them)
-		for (String mediaFile : smilContents.keySet()) {
-			if (new File(mediaFile).exists()) {
-				smilContents.put(mediaFile, true);
-			} else {
-				smilContents.put(mediaFile, false);
+	/**
+	 * Mark a file as received by every narrative that requires it, sending any that are now complete
+	 * 
+	 * @return whether the file is required for any narrative
+	 */
+	private synchronized boolean setComponentReceived(String mediaFile) {
+		final ArrayList<PendingNarrative> narratives = mComponentNarratives.get(mediaFile);
+		if (narratives == null) {
+			return false;
+		}
+		for (PendingNarrative narrative : new ArrayList<PendingNarrative>(narratives)) { // sending modifies the list
+			if (Boolean.FALSE.equals(narrative.mComponents.put(mediaFile, true))) {
+				narrative.mOutstandingCount -= 1;
 			}
+			checkAndSendSMILContents(narrative);
 		}
+		return true;
+	}
 
-		// check that we have all the required files
-		boolean allContentsComplete = true;
-		for (String mediaFile : smilContents.keySet()) {
-			if (!smilContents.get(mediaFile)) {
-				allContentsComplete = false;
+	// must be called with the lock held
+	private boolean checkAndSendSMILContents(PendingNarrative narrative) {
+
+		// only check the files on disk once they have all been received - they could have been deleted since then, in
+		// which case we wait for them to be sent again
+		if (narrative.mOutstandingCount <= 0) {
+			for (Map.Entry<String, Boolean> mediaFile : narrative.mComponents.entrySet()) {
+				if (!new File(mediaFile.getKey()).exists()) {
+					mediaFile.setValue(false);
+					narrative.mOutstandingCount += 1;
+				}
 			}
 		}
 
 		// send the message and reset
-		if (allContentsComplete) {
-			sendMessage(MediaUtilities.MSG_RECEIVED_SMIL_FILE, smilParent);
-			mPreviousExport = smilParent;
-			mSMILContents.remove(smilParent);
+		if (narrative.mOutstandingCount <= 0) {
+			sendMessage(MediaUtilities.MSG_RECEIVED_SMIL_FILE, narrative.mSMILPath);
+			mPreviousExport = narrative.mSMILPath;
+			mPendingNarratives.remove(narrative.mSMILPath);
+			for (String mediaFile : narrative.mComponents.keySet()) {
+				final ArrayList<PendingNarrative> narratives = mComponentNarratives.get(mediaFile);
+				if (narratives != null) {
+					narratives.remove(narrative);
+					if (narratives.isEmpty()) {
+						mComponentNarratives.remove(mediaFile);
+					}
+				}
+			}
 			if (MediaTablet.DEBUG)
 				Log.d(DebugUtilities.getLogTag(this), "Sending SMIL");
 			return true;
 		}
 
 		if (MediaTablet.DEBUG)
-			Log.d(DebugUtilities.getLogTag(this), "SMIL not yet complete - waiting");
+			Log.d(DebugUtilities.getLogTag(this), "SMIL not yet complete - waiting for " + narrative.mOutstandingCount
+					+ " file(s)");
 		return false;
 	}
 
@@ -160,7 +230,7 @@ public class BluetoothObserver extends FileObserver {
 				if (IOUtilities.fileExtensionIs(fileAbsolutePath, MediaUtilities.HTML_FILE_EXTENSION)) {
 
 					// html is a simple single-file import, but an html file is also sent for smil - need to ignore it
-					if (fileIsRequiredForSMIL(fileAbsolutePath) == null) {
+					if (!isRequiredForSMIL(fileAbsolutePath)) {
 						FileReader fileReader = null;
 						LineNumberReader lineNumberReader = null;
 						try {
@@ -191,30 +261,33 @@ public class BluetoothObserver extends FileObserver {
 					if (MediaTablet.DEBUG)
 						Log.d(DebugUtilities.getLogTag(this), "Starting to parse SMIL: " + receivedFile.getName());
 
+					// we've parsed the .smil and now have the .sync.jpg, or vice-versa - need to deal with this
+					String previousFile = null;
+					if (fileAbsolutePath.endsWith(MediaUtilities.SYNC_FILE_EXTENSION)) {
+						previousFile = fileAbsolutePath.replace(MediaUtilities.SYNC_FILE_EXTENSION,
+								MediaUtilities.SMIL_FILE_EXTENSION);
+					} else if (fileAbsolutePath.endsWith(MediaUtilities.SMIL_FILE_EXTENSION)) {
+						previousFile = fileAbsolutePath.replace(MediaUtilities.SMIL_FILE_EXTENSION,
+								MediaUtilities.SYNC_FILE_EXTENSION);
+					}
+
 					// don't add the same key twice - could confuse things a lot
-					if (!mSMILContents.containsKey(fileAbsolutePath)) {
-
-						// we've parsed the .smil and now have the .sync.jpg, or vice-versa - need to deal with this
-						String previousFile = null;
-						if (fileAbsolutePath.endsWith(MediaUtilities.SYNC_FILE_EXTENSION)) {
-							previousFile = fileAbsolutePath.replace(MediaUtilities.SYNC_FILE_EXTENSION,
-									MediaUtilities.SMIL_FILE_EXTENSION);
-						} else if (fileAbsolutePath.endsWith(MediaUtilities.SMIL_FILE_EXTENSION)) {
-							previousFile = fileAbsolutePath.replace(MediaUtilities.SMIL_FILE_EXTENSION,
-									MediaUtilities.SYNC_FILE_EXTENSION);
-						}
-						if (previousFile != null // the file could exist if we're still processing it from this import
-								&& (mSMILContents.containsKey(previousFile) || previousFile.equals(mPreviousExport))) {
-							mPreviousExport = null;
+					final PendingNarrative narrative = new PendingNarrative(fileAbsolutePath);
+					final int claimResult = claimPendingNarrative(narrative, previousFile);
+					if (claimResult != NARRATIVE_ALREADY_PENDING) {
+						if (claimResult == NARRATIVE_DUPLICATE) {
 							receivedFile.delete(); // because otherwise we'll miss it, regardless of deletion prefs
 							if (MediaTablet.DEBUG)
 								Log.d(DebugUtilities.getLogTag(this), "Found duplicate SMIL/sync file - deleting: "
 										+ receivedFile.getName());
 							break;
+						} else if (claimResult == NARRATIVE_ALREADY_SENT) {
+							if (MediaTablet.DEBUG)
+								Log.d(DebugUtilities.getLogTag(this), "SMIL already sent - ignoring: "
+										+ receivedFile.getName());
+							break;
 						}
 
-						Map<String, Boolean> smilContents = Collections.synchronizedMap(new HashMap<String, Boolean>());
-
 						// TODO: we include non-media elements so we can delete them;
 						// but importing successfully is more important than deleting all files...
 						ArrayList<String> smilUnparsedContents = SMILUtilities
@@ -227,13 +300,15 @@ public class BluetoothObserver extends FileObserver {
 
 								// in case the file has already been received
 								if (smilMediaFile.exists()) {
-									smilContents.put(smilMediaPath, true);
+									narrative.mComponents.put(smilMediaPath, true);
 									if (MediaTablet.DEBUG)
 										Log.d(DebugUtilities.getLogTag(this), "SMIL component found (file exists): "
 												+ smilMediaPath);
 								} else {
 									if (!smilMediaPath.endsWith(MediaUtilities.SYNC_FILE_EXTENSION)) {
-										smilContents.put(smilMediaPath, false);
+										if (!Boolean.FALSE.equals(narrative.mComponents.put(smilMediaPath, false))) {
+											narrative.mOutstandingCount += 1;
+										}
 										if (MediaTablet.DEBUG)
 											Log.d(DebugUtilities.getLogTag(this), "SMIL component not yet sent: "
 													+ smilMediaPath);
@@ -243,15 +318,18 @@ public class BluetoothObserver extends FileObserver {
 									}
 								}
 							}
-
-							mSMILContents.put(fileAbsolutePath, smilContents);
 						} else {
 							// error - couldn't parse the smil file
 							if (MediaTablet.DEBUG)
 								Log.d(DebugUtilities.getLogTag(this), "SMIL parse error: " + receivedFile.getName());
 						}
 
-						checkAndSendSMILContents(fileAbsolutePath, smilContents);
+						synchronized (this) {
+							if (smilUnparsedContents != null) {
+								addPendingNarrative(narrative);
+							}
+							checkAndSendSMILContents(narrative);
+						}
 						break;
 
 					} else {
@@ -263,18 +341,10 @@ public class BluetoothObserver extends FileObserver {
 				}
 
 				// handle any other files
-				String smilParent = fileIsRequiredForSMIL(fileAbsolutePath);
-				if (smilParent != null) {
-					Map<String, Boolean> smilContents = mSMILContents.get(smilParent);
-
+				// update the list(s) if this file is part of a narrative - we now have it
+				if (setComponentReceived(fileAbsolutePath)) {
 					if (MediaTablet.DEBUG)
 						Log.d(DebugUtilities.getLogTag(this), "SMIL component received: " + fileAbsolutePath);
-
-					// update the list - we now have this file
-					smilContents.remove(fileAbsolutePath);
-					smilContents.put(fileAbsolutePath, true);
-
-					checkAndSendSMILContents(smilParent, smilContents);
 				} else {
 					if (MediaTablet.DEBUG)
 						Log.d(DebugUtilities.getLogTag(this), "Importing non-SMIL component: " + fileAbsolutePath);
@@ -309,13 +379,70 @@ public class BluetoothObserver extends FileObserver {
 		super.startWatching();
 		if (MediaTablet.DEBUG)
 			Log.d(DebugUtilities.getLogTag(this), "Initialising/refreshing - watching " + mBluetoothDirectoryPath);
+		if (mReceivedFilesRegistered.compareAndSet(false, true)) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					registerReceivedNarratives();
+				}
+			}, "BluetoothObserver registration").start();
+		}
+	}
+
+	/**
+	 * Handle any SMIL and sync files that were received before we started watching, oldest first, exactly as if they
+	 * had just been received - their components that are already present are found on disk, so only those that are
+	 * still missing need to be sent. Narratives whose import had already started are not here, as ImportJournal has
+	 * moved them (and resumes them itself).
+	 */
+	private void registerReceivedNarratives() {
+		final File[] receivedFiles = new File(mBluetoothDirectoryPath).listFiles();
+		if (receivedFiles == null) {
+			return;
+		}
+		final ArrayList<File> narrativeFiles = new ArrayList<File>();
+		for (File file : receivedFiles) {
+			final String filePath = file.getAbsolutePath();
+			if (IOUtilities.fileExtensionIs(filePath, MediaUtilities.SMIL_FILE_EXTENSION)
+					|| IOUtilities.fileExtensionIs(filePath, MediaUtilities.SYNC_FILE_EXTENSION)) {
+				narrativeFiles.add(file);
+			}
+		}
+		Collections.sort(narrativeFiles, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				final long lhsModified = lhs.lastModified();
+				final long rhsModified = rhs.lastModified();
+				return lhsModified < rhsModified ? -1 : (lhsModified > rhsModified ? 1 : 0);
+			}
+		});
+		for (File file : narrativeFiles) {
+			onEvent(CLOSE_WRITE, file.getName());
+		}
+		if (MediaTablet.DEBUG)
+			Log.d(DebugUtilities.getLogTag(this), "Registered " + narrativeFiles.size()
+					+ " previously received narrative file(s)");
 	}
 
 	@Override
 	public void stopWatching() {
 		super.stopWatching();
-		mSMILContents.clear();
+		synchronized (this) {
+			mPendingNarratives.clear();
+			mComponentNarratives.clear();
+		}
+		mReceivedFilesRegistered.set(false); // pending narratives are forgotten, so register them again when restarted
 		if (MediaTablet.DEBUG)
 			Log.d(DebugUtilities.getLogTag(this), "Stopping - no longer watching " + mBluetoothDirectoryPath);
 	}
+
+	private static class PendingNarrative {
+		private final String mSMILPath;
+		private final HashMap<String, Boolean> mComponents = new HashMap<String, Boolean>(); // path -> received
+		private int mOutstandingCount = 0; // the number of components that have not yet been received
+
+		private PendingNarrative(String smilPath) {
+			mSMILPath = smilPath;
+		}
+	}
 }
@@ -0,0 +1,145 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.importing;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.util.DebugUtilities;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs imports on a small pool of background threads, so that several narratives received at once are imported in
+ * parallel without blocking the UI thread. Each task has a key (e.g., the narrative's name), and tasks with the same
+ * key are run one at a time in the order they were submitted, so the parts of a single narrative are never imported
+ * out of order or at the same time.
+ *
+ * The pool's queue is bounded: when it is full, further tasks wait in submission order (holding only the task itself,
+ * not any file data) and are queued as running tasks finish, so the number of files being copied at once never exceeds
+ * what storage can sustain. submit() never blocks, so it is safe to call from the UI thread.
+ */
+public class ImportExecutor {
+
+	private final ThreadPoolExecutor mExecutor;
+
+	private final LinkedList<KeyedTask> mWaitingTasks = new LinkedList<KeyedTask>(); // in submission order
+	private final HashSet<String> mActiveKeys = new HashSet<String>(); // keys with a task queued or running
+
+	public ImportExecutor() {
+		this(getThreadCount(), MediaTablet.IMPORT_QUEUE_SIZE);
+	}
+
+	public ImportExecutor(int threadCount, int queueSize) {
+		mExecutor = new ThreadPoolExecutor(threadCount, threadCount, MediaTablet.IMPORT_THREAD_KEEP_ALIVE,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ImportThreadFactory());
+		mExecutor.allowCoreThreadTimeOut(true); // imports are occasional - don't keep idle threads
+	}
+
+	/**
+	 * One thread per core, but no more than MediaTablet.IMPORT_MAXIMUM_THREADS, as imports are mostly file copies and
+	 * are limited by storage speed rather than processing
+	 */
+	public static int getThreadCount() {
+		return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MediaTablet.IMPORT_MAXIMUM_THREADS));
+	}
+
+	/**
+	 * Run a task in the background, after any previously submitted task with the same key has finished
+	 */
+	public synchronized void submit(String key, Runnable task) {
+		mWaitingTasks.add(new KeyedTask(key, task));
+		dispatchWaitingTasks();
+	}
+
+	/**
+	 * Get the number of tasks that have been submitted but not yet finished
+	 */
+	public synchronized int getPendingCount() {
+		return mWaitingTasks.size() + mActiveKeys.size();
+	}
+
+	private synchronized void onTaskFinished(KeyedTask task) {
+		mActiveKeys.remove(task.mKey);
+		dispatchWaitingTasks();
+	}
+
+	// must be called with the lock held - only this class adds to the pool's queue, so checking its capacity first
+	// means that execute() will never reject a task
+	private void dispatchWaitingTasks() {
+		final Iterator<KeyedTask> waitingTasks = mWaitingTasks.iterator();
+		while (waitingTasks.hasNext() && mExecutor.getQueue().remainingCapacity() > 0) {
+			final KeyedTask task = waitingTasks.next();
+			if (!mActiveKeys.contains(task.mKey)) {
+				waitingTasks.remove();
+				mActiveKeys.add(task.mKey);
+				mExecutor.execute(task);
+			}
+		}
+		if (MediaTablet.DEBUG && mWaitingTasks.size() > 0) {
+			Log.d(DebugUtilities.getLogTag(this), mWaitingTasks.size() + " import(s) waiting for the queue");
+		}
+	}
+
+	private class KeyedTask implements Runnable {
+		private final String mKey;
+		private final Runnable mTask;
+
+		private KeyedTask(String key, Runnable task) {
+			mKey = key;
+			mTask = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				mTask.run();
+			} catch (Throwable t) {
+				// an import that fails must not stop the next one with the same key from running
+				Log.e(DebugUtilities.getLogTag(this), "Import failed for " + mKey + ": " + t.getLocalizedMessage());
+			} finally {
+				onTaskFinished(this);
+			}
+		}
+	}
+
+	private static class ImportThreadFactory implements ThreadFactory {
+		private final AtomicInteger mThreadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND); // keep the UI responsive
+					runnable.run();
+				}
+			}, "Import #" + mThreadNumber.getAndIncrement());
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.importing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.mediatablet.provider.MediaContentStore;
+import ac.robinson.mediatablet.provider.MediaTabletProvider;
+import ac.robinson.mediautilities.MediaUtilities;
+import ac.robinson.util.DebugUtilities;
+import ac.robinson.util.IOUtilities;
+import android.util.Log;
+
+/**
+ * A write-ahead journal for a single narrative import, so that an import that is interrupted (e.g., because the
+ * application is killed) can be resumed when the application next starts, rather than the narrative having to be sent
+ * again. Before anything is imported the narrative's SMIL file is moved out of the receiving directory into the
+ * journal directory, and each step is then recorded (and synced to storage) as it completes:
+ *
+ * narrative - the original SMIL file's path, and the new items' owner and visibility (the manifest)
+ * stored - a component that has been moved into MediaContentStore, and its content id
+ * committing - the internal id of an item in the transaction that adds the narrative's items to the database
+ *
+ * Resuming is idempotent: components that were already stored are not stored again, and if the committing item is
+ * already in the database the transaction completed, so only cleaning up remains. A journal that cannot be read is
+ * rolled back by deleting it - any files it stored are no longer referenced, and are removed by DeletedItemCollector.
+ */
+public class ImportJournal {
+
+	public static final String DIRECTORY_NAME = "_imports"; // in MediaTablet.DIRECTORY_STORAGE; not a valid person id
+	private static final String JOURNAL_FILE_EXTENSION = ".journal";
+
+	private static final String RECORD_NARRATIVE = "narrative";
+	private static final String RECORD_STORED = "stored";
+	private static final String RECORD_COMMITTING = "committing";
+	private static final String FIELD_SEPARATOR = "\t";
+
+	// names of the journals owned by an import in this process (new or resumed), which must not be rolled back
+	private static final HashSet<String> mOpenJournals = new HashSet<String>();
+
+	private final File mJournalFile;
+	private final File mSMILFile; // the journal's own copy of the narrative's SMIL file
+	private String mSourcePath = null; // the SMIL file's original path, next to its components
+	private String mParentId = null;
+	private int mVisibility;
+	private final HashMap<String, String> mStoredContent = new HashMap<String, String>(); // source path -> content id
+	private String mCommittingId = null;
+	private FileOutputStream mJournalStream = null;
+
+	private ImportJournal(File journalFile) {
+		mJournalFile = journalFile;
+		mSMILFile = new File(journalFile.getParentFile(), IOUtilities.removeExtension(journalFile.getName())
+				+ MediaUtilities.SYNC_FILE_EXTENSION);
+	}
+
+	public static File getDirectory() {
+		if (MediaTablet.DIRECTORY_STORAGE == null) {
+			return null;
+		}
+		return new File(MediaTablet.DIRECTORY_STORAGE, DIRECTORY_NAME);
+	}
+
+	/**
+	 * Start a new journal, moving the given SMIL file into the journal directory (so it will not be noticed or imported
+	 * again by anything watching its original directory)
+	 */
+	public static ImportJournal begin(File smilFile, String parentId, int visibility) throws IOException {
+		final File directory = getDirectory();
+		if (directory == null || (!directory.exists() && !directory.mkdirs())) {
+			throw new IOException("Journal directory is not available");
+		}
+
+		final ImportJournal journal = new ImportJournal(new File(directory, MediaTabletProvider.getNewInternalId()
+				+ JOURNAL_FILE_EXTENSION));
+		synchronized (mOpenJournals) {
+			mOpenJournals.add(journal.mJournalFile.getName()); // before the file exists, so it is never rolled back
+		}
+		journal.mSourcePath = smilFile.getAbsolutePath();
+		journal.mParentId = parentId;
+		journal.mVisibility = visibility;
+		// record first: if interrupted before the move, the journal is unreadable (no SMIL file) and is rolled back,
+		// leaving the original SMIL file where it was
+		if (!journal.writeRecord(RECORD_NARRATIVE, journal.mSourcePath, parentId, Integer.toString(visibility))) {
+			journal.finish();
+			throw new IOException("Unable to write import journal");
+		}
+		try {
+			MediaContentStore.transferFile(smilFile, journal.mSMILFile, true);
+		} catch (IOException e) {
+			journal.finish();
+			throw e;
+		}
+		return journal;
+	}
+
+	/**
+	 * Load every journal that was not finished - i.e., imports that were interrupted. Journals that cannot be read are
+	 * rolled back (deleted) rather than returned. Journals owned by an import in this process (including any already
+	 * returned by this method) are skipped, as they are still being written. Must not be called from the UI thread.
+	 */
+	public static ArrayList<ImportJournal> loadUnfinished() {
+		final ArrayList<ImportJournal> journals = new ArrayList<ImportJournal>();
+		final File directory = getDirectory();
+		final File[] files = directory != null ? directory.listFiles() : null;
+		if (files == null) {
+			return journals;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(JOURNAL_FILE_EXTENSION)) {
+				synchronized (mOpenJournals) {
+					if (!mOpenJournals.add(file.getName())) {
+						continue; // in progress
+					}
+				}
+				final ImportJournal journal = new ImportJournal(file);
+				if (journal.read()) {
+					journals.add(journal);
+				} else {
+					if (MediaTablet.DEBUG)
+						Log.d(DebugUtilities.getLogTag(file), "Rolling back unreadable journal " + file.getName());
+					journal.finish();
+				}
+			}
+		}
+		return journals;
+	}
+
+	/**
+	 * Get the content ids of every file stored by a journal that has not been finished, including imports that are
+	 * still in progress, so that DeletedItemCollector can keep them until their items are added. Unlike
+	 * loadUnfinished, no journal is rolled back. Must not be called from the UI thread.
+	 */
+	public static HashSet<String> loadUnfinishedContentIds() {
+		final HashSet<String> contentIds = new HashSet<String>();
+		final File directory = getDirectory();
+		final File[] files = directory != null ? directory.listFiles() : null;
+		if (files == null) {
+			return contentIds;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(JOURNAL_FILE_EXTENSION)) {
+				final ImportJournal journal = new ImportJournal(file);
+				journal.read(); // stored records are still valid if the journal is incomplete
+				contentIds.addAll(journal.mStoredContent.values());
+			}
+		}
+		return contentIds;
+	}
+
+	private boolean read() {
+		BufferedReader journalReader = null;
+		try {
+			journalReader = new BufferedReader(new FileReader(mJournalFile));
+			String record;
+			while ((record = journalReader.readLine()) != null) {
+				final String[] fields = record.split(FIELD_SEPARATOR);
+				if (RECORD_NARRATIVE.equals(fields[0]) && fields.length == 4) {
+					mSourcePath = fields[1];
+					mParentId = fields[2];
+					mVisibility = Integer.parseInt(fields[3]);
+				} else if (RECORD_STORED.equals(fields[0]) && fields.length == 3) {
+					mStoredContent.put(fields[1], fields[2]);
+				} else if (RECORD_COMMITTING.equals(fields[0]) && fields.length == 2) {
+					mCommittingId = fields[1];
+				} // anything else is a partially written record, which is ignored
+			}
+		} catch (IOException e) {
+			return false;
+		} catch (NumberFormatException e) {
+			return false;
+		} finally {
+			IOUtilities.closeStream(journalReader);
+		}
+		return mSourcePath != null && mSMILFile.exists();
+	}
+
+	// append a record and make sure it has reached storage before continuing
+	private boolean writeRecord(String... fields) {
+		final StringBuilder record = new StringBuilder();
+		for (String field : fields) {
+			if (record.length() > 0) {
+				record.append(FIELD_SEPARATOR);
+			}
+			record.append(field);
+		}
+		record.append('\n');
+		try {
+			if (mJournalStream == null) {
+				mJournalStream = new FileOutputStream(mJournalFile, true);
+			}
+			mJournalStream.write(record.toString().getBytes());
+			mJournalStream.getFD().sync();
+			return true;
+		} catch (IOException e) {
+			if (MediaTablet.DEBUG)
+				Log.e(DebugUtilities.getLogTag(this), "Unable to write import journal: " + e.getLocalizedMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * Get the journal's copy of the narrative's SMIL file - note that its components are in getSourceDirectory(), not
+	 * alongside this file
+	 */
+	public File getSMILFile() {
+		return mSMILFile;
+	}
+
+	public File getSourceFile() {
+		return new File(mSourcePath);
+	}
+
+	public File getSourceDirectory() {
+		return new File(mSourcePath).getParentFile();
+	}
+
+	public String getParentId() {
+		return mParentId;
+	}
+
+	public int getVisibility() {
+		return mVisibility;
+	}
+
+	/**
+	 * Get the content id that a component was stored with before the import was interrupted, or null if it has not yet
+	 * been stored (or its stored file has since been removed)
+	 */
+	public String getStoredContentId(String sourcePath) {
+		final String contentId = mStoredContent.get(sourcePath);
+		if (contentId != null && MediaContentStore.getFile(contentId).exists()) {
+			return contentId;
+		}
+		return null;
+	}
+
+	public void recordStored(String sourcePath, String contentId) {
+		mStoredContent.put(sourcePath, contentId);
+		writeRecord(RECORD_STORED, sourcePath, contentId);
+	}
+
+	/**
+	 * Get the internal id of an item that was being added to the database when the import was interrupted, or null if
+	 * the import was interrupted before then
+	 */
+	public String getCommittingId() {
+		return mCommittingId;
+	}
+
+	public void recordCommitting(String internalId) {
+		mCommittingId = internalId;
+		writeRecord(RECORD_COMMITTING, internalId);
+	}
+
+	/**
+	 * Remove the journal and its copy of the SMIL file - call when the import has completed or been abandoned
+	 */
+	public void finish() {
+		IOUtilities.closeStream(mJournalStream);
+		mJournalStream = null;
+		mSMILFile.delete();
+		mJournalFile.delete();
+		synchronized (mOpenJournals) {
+			mOpenJournals.remove(mJournalFile.getName());
+		}
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.importing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.mediatablet.PerformanceReport;
+import ac.robinson.mediatablet.provider.MediaContentStore;
+import ac.robinson.mediatablet.provider.MediaManager;
+import ac.robinson.mediatablet.provider.MediaTabletProvider;
+import ac.robinson.mediautilities.MediaUtilities;
+import ac.robinson.util.DebugUtilities;
+import ac.robinson.util.IOUtilities;
+import android.app.IntentService;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A load generator for testing import performance without a room full of phones. Writes synthetic Com-Phone
+ * narratives (a SMIL file, its .sync.jpg duplicate, and image, audio and text components for each frame) into the
+ * directory watched by BluetoothObserver, at a configurable rate and from several simulated senders at once, then
+ * waits for each narrative to be imported and reports end-to-end latency and throughput. Only runs in DEBUG builds,
+ * and the application must be running and watching for files (imports go to whoever is currently being viewed).
+ *
+ * The service is commented out in AndroidManifest.xml, as it must be exported to be started with adb - uncomment it
+ * (and set MediaTablet.DEBUG), then run from a computer with, for example (all extras are optional - see the EXTRA_
+ * constants for defaults):
+ *
+ * adb shell am startservice -n ac.robinson.mediatablet/.importing.ImportLoadGenerator --ei narratives 20 --ei frames
+ * 10 --ei interval 2000 --ei senders 4
+ *
+ * A narrative is considered imported once all of its files have been removed from the watched directory, which the
+ * import does only after its items have been added to the database. The report is written to the log and to a file
+ * on external storage, alongside the import and database statistics.
+ */
+public class ImportLoadGenerator extends IntentService {
+
+	public static final String EXTRA_DIRECTORY = "directory"; // default: MediaTablet.IMPORT_DIRECTORY
+	public static final String EXTRA_NARRATIVES = "narratives"; // default: 10
+	public static final String EXTRA_FRAMES = "frames"; // per narrative; default: 8
+	public static final String EXTRA_INTERVAL = "interval"; // milliseconds between narratives starting; default 1000
+	public static final String EXTRA_SENDERS = "senders"; // narratives that can be sent at once; default 3
+	public static final String EXTRA_TRANSFER_RATE = "rate"; // bytes per second, per sender; default 100000
+	public static final String EXTRA_IMAGE_SIZE = "image_size"; // width and height, in pixels; default 640
+	public static final String EXTRA_AUDIO_SIZE = "audio_size"; // bytes per audio component; default 40000
+	public static final String EXTRA_SMIL_FIRST = "smil_first"; // send the SMIL file before components; default true
+	public static final String EXTRA_SEND_SYNC_FILE = "sync"; // also send the .sync.jpg duplicate; default true
+	public static final String EXTRA_PARTIAL_RATE = "partial"; // percentage of files first sent incomplete; default 0
+	public static final String EXTRA_TIMEOUT = "timeout"; // milliseconds to wait after sending; default 120000
+	public static final String EXTRA_SEED = "seed"; // for repeatable runs; default: random
+
+	private static final int TRANSFER_CHUNK_SIZE = 8192;
+	private static final int POLL_INTERVAL = 100; // milliseconds
+
+	private static final String SMIL_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<smil xmlns=\"http://www.w3.org/ns/SMIL\" version=\"3.0\" baseProfile=\"Language\">\n<head>\n<layout>\n"
+			+ "<root-layout width=\"%1$d\" height=\"%1$d\" backgroundColor=\"#000000\" />\n"
+			+ "<region id=\"image\" top=\"0\" left=\"0\" width=\"%1$d\" height=\"%1$d\" fit=\"meet\" />\n"
+			+ "<region id=\"text\" top=\"0\" left=\"0\" width=\"%1$d\" height=\"%1$d\" />\n</layout>\n</head>\n"
+			+ "<body>\n<seq>\n";
+	private static final String SMIL_FRAME = "<par dur=\"%1$dms\">\n<img src=\"%2$s\" region=\"image\" />\n"
+			+ "<audio src=\"%3$s\" begin=\"0ms\" dur=\"%1$dms\" />\n<text src=\"%4$s\" region=\"text\" />\n</par>\n";
+	private static final String SMIL_FOOTER = "</seq>\n</body>\n</smil>\n";
+
+	public ImportLoadGenerator() {
+		super("ImportLoadGenerator");
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (!MediaTablet.DEBUG) {
+			Log.w(DebugUtilities.getLogTag(this), "Import load generator is only available in DEBUG builds");
+			return;
+		}
+
+		final String directoryPath = intent.getStringExtra(EXTRA_DIRECTORY);
+		final File directory = new File(directoryPath != null ? directoryPath : MediaTablet.IMPORT_DIRECTORY);
+		final int narrativeCount = intent.getIntExtra(EXTRA_NARRATIVES, 10);
+		final int frameCount = intent.getIntExtra(EXTRA_FRAMES, 8);
+		final int interval = intent.getIntExtra(EXTRA_INTERVAL, 1000);
+		final int senderCount = intent.getIntExtra(EXTRA_SENDERS, 3);
+		final int transferRate = intent.getIntExtra(EXTRA_TRANSFER_RATE, 100000);
+		final int imageSize = intent.getIntExtra(EXTRA_IMAGE_SIZE, 640);
+		final int audioSize = intent.getIntExtra(EXTRA_AUDIO_SIZE, 40000);
+		final boolean smilFirst = intent.getBooleanExtra(EXTRA_SMIL_FIRST, true);
+		final boolean sendSyncFile = intent.getBooleanExtra(EXTRA_SEND_SYNC_FILE, true);
+		final int partialRate = intent.getIntExtra(EXTRA_PARTIAL_RATE, 0);
+		final long timeout = intent.getIntExtra(EXTRA_TIMEOUT, 120000);
+		final long seed = intent.getLongExtra(EXTRA_SEED, System.nanoTime());
+
+		if (!directory.isDirectory()) {
+			Log.e(DebugUtilities.getLogTag(this), "Import directory " + directory + " does not exist");
+			return;
+		}
+
+		final int narrativeType = MediaTabletProvider.TYPE_NARRATIVE - 1;
+		final int initialNarratives = MediaManager.countMediaByType(getContentResolver(), null, false)[narrativeType];
+		final Random random = new Random(seed);
+
+		// create every narrative before sending anything, so that generating content doesn't affect the timings
+		final ArrayList<SyntheticNarrative> narratives = new ArrayList<SyntheticNarrative>(narrativeCount);
+		for (int i = 0; i < narrativeCount; i++) {
+			narratives.add(new SyntheticNarrative(directory, frameCount, imageSize, audioSize, smilFirst,
+					sendSyncFile, partialRate, random));
+		}
+
+		final long startTime = SystemClock.uptimeMillis();
+		final ScheduledExecutorService senders = new ScheduledThreadPoolExecutor(Math.max(1, senderCount));
+		for (int i = 0; i < narrativeCount; i++) {
+			final SyntheticNarrative narrative = narratives.get(i);
+			senders.schedule(new Runnable() {
+				@Override
+				public void run() {
+					narrative.send(transferRate);
+				}
+			}, (long) i * interval, TimeUnit.MILLISECONDS);
+		}
+		senders.shutdown(); // scheduled tasks still run
+
+		// wait for everything to be sent and imported (or for the timeout to pass after everything has been sent)
+		int importedCount = 0;
+		long deadline = Long.MAX_VALUE;
+		while (importedCount < narrativeCount && SystemClock.uptimeMillis() < deadline) {
+			SystemClock.sleep(POLL_INTERVAL);
+			final long now = SystemClock.uptimeMillis();
+			importedCount = 0;
+			for (SyntheticNarrative narrative : narratives) {
+				if (narrative.mImportedTime <= 0 && narrative.mSentTime > 0 && narrative.isImported()) {
+					narrative.mImportedTime = now;
+				}
+				if (narrative.mImportedTime > 0) {
+					importedCount += 1;
+				}
+			}
+			if (senders.isTerminated() && deadline == Long.MAX_VALUE) {
+				deadline = now + timeout;
+			}
+		}
+		final long endTime = SystemClock.uptimeMillis();
+		senders.shutdownNow();
+
+		final int addedNarratives = MediaManager.countMediaByType(getContentResolver(), null, false)[narrativeType]
+				- initialNarratives;
+		PerformanceReport.save(this, "import-benchmark", getReport(narratives, startTime, endTime, addedNarratives,
+				intent, seed));
+	}
+
+	private String getReport(ArrayList<SyntheticNarrative> narratives, long startTime, long endTime,
+			int addedNarratives, Intent intent, long seed) {
+		final ArrayList<Long> latencies = new ArrayList<Long>(narratives.size());
+		long totalBytes = 0;
+		long lastImportedTime = startTime;
+		for (SyntheticNarrative narrative : narratives) {
+			if (narrative.mImportedTime > 0) {
+				latencies.add(narrative.mImportedTime - narrative.mSentTime);
+				totalBytes += narrative.mTotalBytes;
+				lastImportedTime = Math.max(lastImportedTime, narrative.mImportedTime);
+			}
+		}
+
+		final StringBuilder report = new StringBuilder("Import benchmark: ");
+		report.append(intent.getExtras() != null ? intent.getExtras().toString() : "defaults");
+		report.append(", seed ");
+		report.append(seed);
+		report.append("\nNarratives sent ");
+		report.append(narratives.size());
+		report.append(", imported ");
+		report.append(latencies.size());
+		report.append(" (");
+		report.append(addedNarratives);
+		report.append(" added to the database) in ");
+		report.append(endTime - startTime);
+		report.append(" ms\n");
+		if (latencies.size() > 0) {
+			final float seconds = Math.max(1, lastImportedTime - startTime) / 1000f;
+			report.append("Latency after last file sent: ");
+			PerformanceReport.appendLatencies(report, latencies, 1);
+			report.append("\nThroughput: ");
+			report.append(String.format(Locale.US, "%.2f", latencies.size() / seconds));
+			report.append(" narratives/s, ");
+			report.append(Math.round(totalBytes / seconds));
+			report.append(" bytes/s\n");
+		}
+		report.append("\n");
+		report.append(ImportedFileParser.getImportStatistics());
+		report.append("\n");
+		report.append(MediaContentStore.getStatistics());
+		report.append("\n\n");
+		report.append(MediaTabletProvider.getQueryStatistics());
+		return report.toString();
+	}
+
+	private static class SyntheticNarrative {
+		private final ArrayList<SyntheticFile> mFiles = new ArrayList<SyntheticFile>(); // in sending order
+		private final long mTotalBytes;
+		private volatile long mSentTime = 0; // uptime after the last file was sent
+		private long mImportedTime = 0;
+
+		private SyntheticNarrative(File directory, int frameCount, int imageSize, int audioSize, boolean smilFirst,
+				boolean sendSyncFile, int partialRate, Random random) {
+			final String narrativeName = MediaTabletProvider.getNewInternalId();
+			final StringBuilder smil = new StringBuilder(String.format(SMIL_HEADER, imageSize));
+			final ArrayList<SyntheticFile> components = new ArrayList<SyntheticFile>();
+			for (int i = 0; i < frameCount; i++) {
+				final String imageName = MediaTabletProvider.getNewInternalId() + ".jpg";
+				final String audioName = MediaTabletProvider.getNewInternalId() + ".m4a";
+				final String textName = MediaTabletProvider.getNewInternalId() + ".txt";
+				smil.append(String.format(SMIL_FRAME, MediaTablet.NARRATIVE_DEFAULT_FRAME_DURATION, imageName,
+						audioName, textName));
+				components.add(new SyntheticFile(new File(directory, imageName), createImage(imageSize, random),
+						random.nextInt(100) < partialRate));
+				final byte[] audio = new byte[audioSize]; // not real audio, but importing doesn't need to decode it
+				random.nextBytes(audio);
+				components.add(new SyntheticFile(new File(directory, audioName), audio,
+						random.nextInt(100) < partialRate));
+				components.add(new SyntheticFile(new File(directory, textName), ("Frame " + (i + 1) + " of "
+						+ narrativeName).getBytes(), random.nextInt(100) < partialRate));
+			}
+			smil.append(SMIL_FOOTER);
+			Collections.shuffle(components, random);
+
+			final byte[] smilBytes = smil.toString().getBytes();
+			final SyntheticFile smilFile = new SyntheticFile(new File(directory, narrativeName
+					+ MediaUtilities.SMIL_FILE_EXTENSION), smilBytes, false);
+			if (smilFirst) {
+				mFiles.add(smilFile);
+				mFiles.addAll(components);
+			} else {
+				mFiles.addAll(components);
+				mFiles.add(random.nextInt(mFiles.size() + 1), smilFile);
+			}
+			if (sendSyncFile) {
+				mFiles.add(mFiles.indexOf(smilFile) + 1, new SyntheticFile(new File(directory, narrativeName
+						+ MediaUtilities.SYNC_FILE_EXTENSION), smilBytes, false));
+			}
+
+			long totalBytes = 0;
+			for (SyntheticFile file : mFiles) {
+				totalBytes += file.mContents.length;
+			}
+			mTotalBytes = totalBytes;
+		}
+
+		private static byte[] createImage(int imageSize, Random random) {
+			// random blocks of colour, so the image compresses (and is stored) like a photo rather than a flat colour
+			final int blockSize = 8;
+			final int[] pixels = new int[imageSize * imageSize];
+			for (int y = 0; y < imageSize; y += blockSize) {
+				for (int x = 0; x < imageSize; x += blockSize) {
+					final int colour = 0xff000000 | random.nextInt(0x1000000);
+					for (int by = y; by < Math.min(y + blockSize, imageSize); by++) {
+						for (int bx = x; bx < Math.min(x + blockSize, imageSize); bx++) {
+							pixels[by * imageSize + bx] = colour;
+						}
+					}
+				}
+			}
+			final Bitmap image = Bitmap.createBitmap(pixels, imageSize, imageSize, Bitmap.Config.ARGB_8888);
+			final ByteArrayOutputStream imageStream = new ByteArrayOutputStream();
+			image.compress(Bitmap.CompressFormat.JPEG, 80, imageStream);
+			image.recycle();
+			return imageStream.toByteArray();
+		}
+
+		private void send(int transferRate) {
+			for (SyntheticFile file : mFiles) {
+				try {
+					file.send(transferRate);
+				} catch (IOException e) {
+					Log.e(DebugUtilities.getLogTag(this), "Unable to send " + file.mFile + ": " + e.getMessage());
+				}
+			}
+			mSentTime = SystemClock.uptimeMillis();
+		}
+
+		private boolean isImported() {
+			for (SyntheticFile file : mFiles) {
+				if (file.mFile.exists()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static class SyntheticFile {
+		private final File mFile;
+		private final byte[] mContents;
+		private final boolean mSendPartially; // whether to send half of the file, then the whole file again
+
+		private SyntheticFile(File file, byte[] contents, boolean sendPartially) {
+			mFile = file;
+			mContents = contents;
+			mSendPartially = sendPartially;
+		}
+
+		private void send(int transferRate) throws IOException {
+			// like some Bluetooth implementations, create an empty file before any data arrives (ignored when closed)
+			new FileOutputStream(mFile).close();
+			if (mSendPartially) {
+				write(mContents.length / 2, transferRate);
+			}
+			write(mContents.length, transferRate);
+		}
+
+		// write at no more than transferRate bytes per second, as a Bluetooth transfer would
+		private void write(int length, int transferRate) throws IOException {
+			FileOutputStream outputStream = null;
+			try {
+				outputStream = new FileOutputStream(mFile);
+				final long start = SystemClock.uptimeMillis();
+				int written = 0;
+				while (written < length) {
+					final int chunk = Math.min(TRANSFER_CHUNK_SIZE, length - written);
+					outputStream.write(mContents, written, chunk);
+					written += chunk;
+					final long due = start + (transferRate > 0 ? (1000L * written) / transferRate : 0);
+					final long now = SystemClock.uptimeMillis();
+					if (due > now) {
+						SystemClock.sleep(due - now);
+					}
+				}
+			} finally {
+				IOUtilities.closeStream(outputStream);
+			}
+		}
+	}
+}
@@ -29,8 +29,11 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.mediatablet.provider.MediaContentStore;
 import ac.robinson.mediatablet.provider.MediaItem;
 import ac.robinson.mediatablet.provider.MediaManager;
 import ac.robinson.mediatablet.provider.MediaTabletProvider;
@@ -40,37 +43,106 @@ import ac.robinson.mediautilities.SMILUtilities;
 import ac.robinson.util.DebugUtilities;
 import ac.robinson.util.IOUtilities;
 import android.content.ContentResolver;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 public class ImportedFileParser {
 
+	// for comparing move-based imports with copying (which writes every byte received) - see getImportStatistics
+	private static final AtomicLong mImportedFiles = new AtomicLong();
+	private static final AtomicLong mImportedBytes = new AtomicLong();
+	private static final AtomicLong mWrittenBytes = new AtomicLong();
+
 	public static MediaItem importMediaItem(ContentResolver contentResolver, String mediaParent, File importedFile,
 			int mediaVisibility, boolean deleteFiles) {
+		MediaItem newMediaItem = copyMediaItem(mediaParent, importedFile, mediaVisibility, deleteFiles, null);
+		if (newMediaItem != null) {
+			MediaManager.addMedia(contentResolver, newMediaItem);
+		}
+		return newMediaItem;
+	}
+
+	/**
+	 * Move (if deleteFiles is true) or copy a media file into MediaContentStore, but do not add it to the database -
+	 * nothing is written if the same file has already been stored. If journal is not null, the stored file is recorded
+	 * in it, and a file that the journal shows was stored before the import was interrupted is not stored again.
+	 */
+	private static MediaItem copyMediaItem(String mediaParent, File importedFile, int mediaVisibility,
+			boolean deleteFiles, ImportJournal journal) {
 		MediaItem newMediaItem = new MediaItem(mediaParent, importedFile.getName(), mediaVisibility);
+		final String sourcePath = importedFile.getAbsolutePath();
+		if (journal != null) {
+			final String storedContentId = journal.getStoredContentId(sourcePath);
+			if (storedContentId != null) {
+				newMediaItem.setContentId(storedContentId);
+				return newMediaItem;
+			}
+		}
+
+		final long fileSize = importedFile.length();
+		final long previousBytesWritten = mWrittenBytes.get();
 		try {
-			IOUtilities.copyFile(importedFile, newMediaItem.getFile());
-			MediaManager.addMedia(contentResolver, newMediaItem);
+			newMediaItem.setContentId(MediaContentStore.store(importedFile, newMediaItem.getFileExtension(),
+					deleteFiles, mWrittenBytes));
+			if (journal != null) {
+				journal.recordStored(sourcePath, newMediaItem.getContentId());
+			}
 		} catch (IOException e) {
 			if (MediaTablet.DEBUG)
 				Log.e(DebugUtilities.getLogTag(importedFile), "Error: unable to copy file for " + importedFile);
 			return null;
 		}
-		if (deleteFiles) {
-			importedFile.delete();
-		}
+
+		mImportedFiles.incrementAndGet();
+		mImportedBytes.addAndGet(fileSize);
+		if (MediaTablet.DEBUG) // (approximate when several imports are running)
+			Log.d(DebugUtilities.getLogTag(importedFile), "Imported " + importedFile.getName() + ": " + fileSize
+					+ " bytes, " + (mWrittenBytes.get() - previousBytesWritten) + " written");
 		return newMediaItem;
 	}
 
+	/**
+	 * Get the number of files and bytes imported, and the number of bytes actually written to storage - a copy-based
+	 * import would write every imported byte
+	 */
+	public static String getImportStatistics() {
+		final long importedBytes = mImportedBytes.get();
+		final long writtenBytes = mWrittenBytes.get();
+		return "Imports[files " + mImportedFiles.get() + ", bytes imported " + importedBytes + ", bytes written "
+				+ writtenBytes + " (" + (importedBytes > 0 ? Math.round(100f * writtenBytes / importedBytes) : 0)
+				+ "% of copying), bytes saved " + (importedBytes - writtenBytes) + "]";
+	}
+
+	public static void clearImportStatistics() {
+		mImportedFiles.set(0);
+		mImportedBytes.set(0);
+		mWrittenBytes.set(0);
+	}
+
 	public static MediaItem importTextItem(ContentResolver contentResolver, String mediaParent,
 			String originalFilename, String text, int mediaVisibility) {
+		MediaItem newMediaItem = createTextItem(mediaParent, originalFilename, text, mediaVisibility);
+		if (newMediaItem != null) {
+			MediaManager.addMedia(contentResolver, newMediaItem);
+		}
+		return newMediaItem;
+	}
+
+	/**
+	 * Write the given text to a new file in MediaContentStore, but do not add it to the database
+	 */
+	private static MediaItem createTextItem(String mediaParent, String originalFilename, String text,
+			int mediaVisibility) {
 		MediaItem newMediaItem = new MediaItem(mediaParent, originalFilename, mediaVisibility);
 		FileOutputStream fileOutputStream = null;
 		try {
-			fileOutputStream = new FileOutputStream(newMediaItem.getFile());
-			fileOutputStream.write(text.getBytes());
-			newMediaItem.setTextExtra(text);
-			MediaManager.addMedia(contentResolver, newMediaItem);
+			final File textFile = MediaContentStore.createTemporaryFile(newMediaItem.getFileExtension());
+			fileOutputStream = new FileOutputStream(textFile);
+			fileOutputStream.write(text.getBytes()); // text is loaded from the file when needed - not saved in the db
+			fileOutputStream.close();
+			fileOutputStream = null;
+			newMediaItem.setContentId(MediaContentStore.store(textFile, newMediaItem.getFileExtension(), true, null));
 		} catch (FileNotFoundException e) {
 			return null;
 		} catch (IOException e) {
@@ -81,83 +153,165 @@ public class ImportedFileParser {
 		return newMediaItem;
 	}
 
+	/**
+	 * Get the name shared by a narrative's SMIL and sync files (i.e., the file name without either extension)
+	 */
+	public static String getNarrativeName(File smilFile) {
+		final String fileName = smilFile.getAbsolutePath();
+		if (fileName.endsWith(MediaUtilities.SYNC_FILE_EXTENSION)) {
+			return fileName.substring(0, fileName.length() - MediaUtilities.SYNC_FILE_EXTENSION.length());
+		} else if (fileName.endsWith(MediaUtilities.SMIL_FILE_EXTENSION)) {
+			return fileName.substring(0, fileName.length() - MediaUtilities.SMIL_FILE_EXTENSION.length());
+		}
+		return fileName;
+	}
+
 	public static void importSMILNarrative(ContentResolver contentResolver, File smilFile, String parentId,
 			int visibility) {
-
-		File tempSMILFile = new File(MediaTablet.DIRECTORY_TEMP, MediaTabletProvider.getNewInternalId()
-				+ MediaUtilities.SYNC_FILE_EXTENSION);
+		final ImportJournal journal;
 		try {
-			// so we don't delete (sync file is a non-media item in getSMILFrameList)
-			if (MediaTablet.DIRECTORY_TEMP != null) {
-				IOUtilities.copyFile(smilFile, tempSMILFile);
-			} else {
-				throw new IOException();
-			}
+			journal = ImportJournal.begin(smilFile, parentId, visibility);
 		} catch (IOException e) {
 			if (MediaTablet.DEBUG)
-				Log.e(DebugUtilities.getLogTag(smilFile), "Unable to copy SMIL file");
+				Log.e(DebugUtilities.getLogTag(smilFile), "Unable to start import journal");
+			return;
+		}
+		importSMILNarrative(contentResolver, journal);
+	}
+
+	/**
+	 * Import (or finish importing, if it was interrupted) the narrative recorded in an ImportJournal - any step that
+	 * has already been completed is not repeated
+	 */
+	public static void importSMILNarrative(ContentResolver contentResolver, ImportJournal journal) {
+		final File sourceDirectory = journal.getSourceDirectory();
+		final String committingId = journal.getCommittingId();
+		if (committingId == null || MediaManager.findMediaByInternalId(contentResolver, committingId) == null) {
+			ArrayList<FrameMediaContainer> smilFrames = SMILUtilities.getSMILFrameList(journal.getSMILFile(), 1,
+					false);
+			if (smilFrames == null) {
+				if (MediaTablet.DEBUG)
+					Log.e(DebugUtilities.getLogTag(journal), "Unable to parse SMIL - abandoning import");
+				journal.finish();
+				return;
+			}
+
+			// the journal's copy of the SMIL file is not alongside its components
+			for (FrameMediaContainer frame : smilFrames) {
+				if (frame.mImagePath != null) {
+					frame.mImagePath = getSourcePath(sourceDirectory, frame.mImagePath);
+				}
+				final ArrayList<String> sourceAudioPaths = new ArrayList<String>(frame.mAudioPaths.size());
+				for (String mediaPath : frame.mAudioPaths) {
+					sourceAudioPaths.add(getSourcePath(sourceDirectory, mediaPath));
+				}
+				frame.mAudioPaths = sourceAudioPaths;
+			}
+
+			ArrayList<MediaItem> newMediaItems = new ArrayList<MediaItem>();
+			duplicateSMILElements(smilFrames, journal.getSMILFile(), journal.getParentId(), journal.getVisibility(),
+					true, newMediaItems, journal);
+			if (newMediaItems.size() > 0) {
+				// any one item identifies the transaction, as they are all added together
+				journal.recordCommitting(newMediaItems.get(newMediaItems.size() - 1).getInternalId());
+				MediaManager.addMedia(contentResolver, newMediaItems); // one transaction (and notification)
+			}
 		}
 
-		ArrayList<FrameMediaContainer> smilFrames = SMILUtilities.getSMILFrameList(smilFile, 1, true);
-		duplicateSMILElements(contentResolver, smilFrames, tempSMILFile, parentId, visibility, true);
+		// delete any other files that were sent with the narrative (components have already been moved), and the
+		// SMIL file's duplicate (see BluetoothObserver) - only then is the import complete
+		ArrayList<String> smilFiles = SMILUtilities.getSimpleSMILFileList(journal.getSMILFile(), true);
+		if (smilFiles != null) {
+			for (String fileName : smilFiles) {
+				new File(sourceDirectory, new File(fileName).getName()).delete();
+			}
+		}
+		final String narrativeName = getNarrativeName(journal.getSourceFile());
+		new File(narrativeName + MediaUtilities.SMIL_FILE_EXTENSION).delete();
+		new File(narrativeName + MediaUtilities.SYNC_FILE_EXTENSION).delete();
+		journal.finish();
+	}
 
-		// delete all the temporary files that could be remaining (sync file will be deleted automatically)
-		new File(smilFile.getParent(), smilFile.getName().replace(MediaUtilities.SYNC_FILE_EXTENSION, "")
-				+ MediaUtilities.SMIL_FILE_EXTENSION).delete();
-		tempSMILFile.delete();
+	private static String getSourcePath(File sourceDirectory, String mediaPath) {
+		return new File(sourceDirectory, new File(mediaPath).getName()).getAbsolutePath();
 	}
 
 	public static void duplicateSMILElements(ContentResolver contentResolver,
 			ArrayList<FrameMediaContainer> smilFrames, File smilFile, String parentId, int visibility,
 			boolean deleteFiles) {
+		ArrayList<MediaItem> newMediaItems = new ArrayList<MediaItem>();
+		duplicateSMILElements(smilFrames, smilFile, parentId, visibility, deleteFiles, newMediaItems);
+		MediaManager.addMedia(contentResolver, newMediaItems); // one transaction (and notification) per narrative
+	}
+
+	/**
+	 * Copy a narrative and its components to a new owner, adding the new items to newMediaItems rather than the
+	 * database, so that several narratives (e.g., when sharing to multiple people) can be added in one transaction
+	 */
+	public static void duplicateSMILElements(ArrayList<FrameMediaContainer> smilFrames, File smilFile,
+			String parentId, int visibility, boolean deleteFiles, ArrayList<MediaItem> newMediaItems) {
+		duplicateSMILElements(smilFrames, smilFile, parentId, visibility, deleteFiles, newMediaItems, null);
+	}
+
+	private static void duplicateSMILElements(ArrayList<FrameMediaContainer> smilFrames, File smilFile,
+			String parentId, int visibility, boolean deleteFiles, ArrayList<MediaItem> newMediaItems,
+			ImportJournal journal) {
 
-		ArrayList<StringPair> replacementSMILElements = new ArrayList<StringPair>();
+		HashMap<String, String> replacementSMILElements = new HashMap<String, String>(); // original name -> new name
 		for (FrameMediaContainer frame : smilFrames) {
 			if (frame.mImagePath != null) {
-				final MediaItem newImageMedia = importMediaItem(contentResolver, parentId, new File(frame.mImagePath),
-						visibility, deleteFiles);
+				final MediaItem newImageMedia = copyMediaItem(parentId, new File(frame.mImagePath), visibility,
+						deleteFiles, journal);
 				if (newImageMedia != null) {
-					replacementSMILElements.add(new StringPair(new File(frame.mImagePath).getName(), newImageMedia
-							.getFile().getName()));
+					newMediaItems.add(newImageMedia);
+					replacementSMILElements.put(new File(frame.mImagePath).getName(), newImageMedia.getFile()
+							.getName());
 				}
 			}
 
 			final ArrayList<String> newAudioPaths = new ArrayList<String>();
 			for (String mediaPath : frame.mAudioPaths) {
-				final MediaItem newAudioMedia = importMediaItem(contentResolver, parentId, new File(mediaPath),
-						visibility, deleteFiles);
+				final MediaItem newAudioMedia = copyMediaItem(parentId, new File(mediaPath), visibility, deleteFiles,
+						journal);
 				if (newAudioMedia != null) {
-					replacementSMILElements.add(new StringPair(new File(mediaPath).getName(), newAudioMedia.getFile()
-							.getName()));
+					newMediaItems.add(newAudioMedia);
+					replacementSMILElements.put(new File(mediaPath).getName(), newAudioMedia.getFile().getName());
 				}
 			}
 			frame.mAudioPaths = newAudioPaths;
 
 			if (!TextUtils.isEmpty(frame.mTextContent)) {
-				importTextItem(contentResolver, parentId, MediaTabletProvider.getNewInternalId() + ".txt",
-						frame.mTextContent, visibility); // no need to save or replace text items
+				final MediaItem newTextMedia = createTextItem(parentId, MediaTabletProvider.getNewInternalId()
+						+ ".txt", frame.mTextContent, visibility); // no need to save or replace text items
+				if (newTextMedia != null) {
+					newMediaItems.add(newTextMedia);
+				}
 			}
 		}
 
-		// replace with the new names (hacky!)
+		// replace with the new names, in a single pass over the file
 		String newFileName = IOUtilities.removeExtension(smilFile.getName()) + MediaUtilities.SYNC_FILE_EXTENSION;
 		MediaItem newNarrativeItem = new MediaItem(parentId, newFileName, visibility);
 		BufferedReader smilFileReader = null;
 		BufferedWriter smilFileWriter = null;
 		try {
+			final File newSMILFile = MediaContentStore.createTemporaryFile(newNarrativeItem.getFileExtension());
 			smilFileReader = new BufferedReader(new FileReader(smilFile));
-			smilFileWriter = new BufferedWriter(new FileWriter(newNarrativeItem.getFile()));
-			String readLine = null;
-			while ((readLine = smilFileReader.readLine()) != null) {
-				for (StringPair sp : replacementSMILElements) {
-					if (!sp.getReplaced() && readLine.contains(sp.getOriginal())) {
-						readLine = readLine.replace(sp.getOriginal(), sp.getReplacement());
-						sp.setReplaced();
-					}
-				}
-				smilFileWriter.write(readLine + '\n');
-			}
-			MediaManager.addMedia(contentResolver, newNarrativeItem);
+			smilFileWriter = new BufferedWriter(new FileWriter(newSMILFile));
+			final long rewriteStart = SystemClock.uptimeMillis();
+			final int replacedCount = SMILReferenceRewriter.rewrite(smilFileReader, smilFileWriter,
+					replacementSMILElements);
+			final long rewriteTime = SystemClock.uptimeMillis() - rewriteStart;
+			smilFileWriter.close();
+			smilFileWriter = null;
+
+			// components are stored by content, so a narrative shared again (or received twice) is only stored once
+			newNarrativeItem.setContentId(MediaContentStore.store(newSMILFile, newNarrativeItem.getFileExtension(),
+					true, null));
+			newMediaItems.add(newNarrativeItem);
+			if (MediaTablet.DEBUG)
+				Log.d(DebugUtilities.getLogTag(smilFile), "Rewrote " + replacedCount + " SMIL references to "
+						+ replacementSMILElements.size() + " components in " + rewriteTime + " ms");
 		} catch (Exception e) {
 			if (MediaTablet.DEBUG)
 				Log.e(DebugUtilities.getLogTag(smilFile), "Unable to update SMIL file paths");
@@ -166,31 +320,4 @@ public class ImportedFileParser {
 			IOUtilities.closeStream(smilFileWriter);
 		}
 	}
-
-	private static class StringPair {
-		private String mOriginal = null;
-		private String mReplacement = null;
-		private boolean mReplaced = false;
-
-		public StringPair(String original, String replacement) {
-			mOriginal = original;
-			mReplacement = replacement;
-		}
-
-		public String getOriginal() {
-			return mOriginal;
-		}
-
-		public String getReplacement() {
-			return mReplacement;
-		}
-
-		public void setReplaced() {
-			mReplaced = true;
-		}
-
-		public boolean getReplaced() {
-			return mReplaced;
-		}
-	}
 }
@@ -0,0 +1,122 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.importing;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Rewrites the file references in a SMIL narrative in a single pass. Every quoted attribute value inside a tag is
+ * looked up (by the file name after its last /, so any path prefix is kept) in a map of replacements, so the cost is
+ * linear in the size of the file however many components the narrative has, and a file that is referred to more than
+ * once has every reference replaced. Text outside tags (and comments' contents) is copied unchanged.
+ */
+public class SMILReferenceRewriter {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final String COMMENT_START = "!--"; // after <
+
+	/**
+	 * Copy a SMIL file from input to output, replacing references to the files named in replacements
+	 *
+	 * @param replacements the new file name for each original file name
+	 * @return the number of references that were replaced
+	 */
+	public static int rewrite(Reader input, Writer output, Map<String, String> replacements) throws IOException {
+		final char[] buffer = new char[BUFFER_SIZE];
+		final StringBuilder value = new StringBuilder();
+		boolean inTag = false;
+		int tagLength = 0; // characters since the start of the current tag (up to the length of COMMENT_START)
+		boolean inComment = false;
+		int commentDashes = 0; // consecutive dashes, to detect the end of a comment
+		char quote = 0; // the quote character of the current attribute value, or 0 if not in a value
+		int replacedCount = 0;
+
+		int charsRead;
+		while ((charsRead = input.read(buffer)) >= 0) {
+			int copyStart = 0; // characters from here to the current position are copied unchanged
+			for (int i = 0; i < charsRead; i++) {
+				final char c = buffer[i];
+				if (quote != 0) {
+					if (c == quote) {
+						replacedCount += writeValue(output, value, replacements);
+						value.setLength(0);
+						quote = 0;
+						copyStart = i; // the closing quote
+					} else {
+						value.append(c);
+					}
+				} else if (inComment) {
+					if (c == '>' && commentDashes >= 2) {
+						inComment = false;
+					}
+					commentDashes = c == '-' ? commentDashes + 1 : 0;
+				} else if (inTag) {
+					if (tagLength <= COMMENT_START.length()) {
+						tagLength += 1;
+					}
+					if (c == '"' || c == '\'') {
+						output.write(buffer, copyStart, i + 1 - copyStart);
+						quote = c;
+					} else if (c == '>') {
+						inTag = false;
+					} else if (tagLength <= COMMENT_START.length()) {
+						if (c != COMMENT_START.charAt(tagLength - 1)) {
+							tagLength = COMMENT_START.length(); // not a comment
+						} else if (tagLength == COMMENT_START.length()) {
+							inTag = false;
+							inComment = true;
+							commentDashes = 0;
+						}
+					}
+				} else if (c == '<') {
+					inTag = true;
+					tagLength = 0;
+				}
+			}
+			if (quote == 0) {
+				output.write(buffer, copyStart, charsRead - copyStart);
+			}
+		}
+
+		if (quote != 0) {
+			output.write(value.toString()); // unterminated value - copy as is
+		}
+		return replacedCount;
+	}
+
+	private static int writeValue(Writer output, StringBuilder value, Map<String, String> replacements)
+			throws IOException {
+		final String originalValue = value.toString();
+		final int nameStart = originalValue.lastIndexOf('/') + 1;
+		final String replacement = replacements.get(nameStart > 0 ? originalValue.substring(nameStart)
+				: originalValue);
+		if (replacement == null) {
+			output.write(originalValue);
+			return 0;
+		}
+		output.write(originalValue, 0, nameStart);
+		output.write(replacement);
+		return 1;
+	}
+}
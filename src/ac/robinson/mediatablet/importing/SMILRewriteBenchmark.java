@@ -0,0 +1,175 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.importing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.mediatablet.PerformanceReport;
+import ac.robinson.mediatablet.provider.MediaTabletProvider;
+import ac.robinson.util.DebugUtilities;
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Compares SMILReferenceRewriter with the line-by-line replacement that ImportedFileParser.duplicateSMILElements used
+ * before it (every replacement checked against every line, each replaced at most once). A synthetic narrative (200
+ * frames by default, each with an image, audio and text component, as ImportLoadGenerator creates) is rewritten in
+ * memory with new names for every image and audio component - 400 references by default - so only the rewriting
+ * itself is timed, not reading or writing files. Only runs in DEBUG builds.
+ *
+ * The service is commented out in AndroidManifest.xml, as it must be exported to be started with adb - uncomment it
+ * (and set MediaTablet.DEBUG), then run from a computer with, for example (all extras are optional - see the EXTRA_
+ * constants for defaults):
+ *
+ * adb shell am startservice -n ac.robinson.mediatablet/.importing.SMILRewriteBenchmark --ei frames 200 --ei runs 500
+ *
+ * The report is written to the log and to a file on external storage.
+ */
+public class SMILRewriteBenchmark extends IntentService {
+
+	public static final String EXTRA_FRAMES = "frames"; // frames in the narrative; default 200
+	public static final String EXTRA_RUNS = "runs"; // timed rewrites with each method; default 500
+	public static final String EXTRA_WARM_UP_RUNS = "warm_up"; // untimed rewrites first, for the JIT; default 50
+
+	private static final String SMIL_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<smil xmlns=\"http://www.w3.org/ns/SMIL\" version=\"3.0\" baseProfile=\"Language\">\n<head>\n<layout>\n"
+			+ "<root-layout width=\"640\" height=\"640\" backgroundColor=\"#000000\" />\n"
+			+ "<region id=\"image\" top=\"0\" left=\"0\" width=\"640\" height=\"640\" fit=\"meet\" />\n"
+			+ "<region id=\"text\" top=\"0\" left=\"0\" width=\"640\" height=\"640\" />\n</layout>\n</head>\n"
+			+ "<body>\n<seq>\n";
+	private static final String SMIL_FRAME = "<par dur=\"%1$dms\">\n<img src=\"%2$s\" region=\"image\" />\n"
+			+ "<audio src=\"%3$s\" begin=\"0ms\" dur=\"%1$dms\" />\n<text src=\"%4$s\" region=\"text\" />\n</par>\n";
+	private static final String SMIL_FOOTER = "</seq>\n</body>\n</smil>\n";
+
+	public SMILRewriteBenchmark() {
+		super("SMILRewriteBenchmark");
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (!MediaTablet.DEBUG) {
+			Log.w(DebugUtilities.getLogTag(this), "SMIL rewrite benchmark is only available in DEBUG builds");
+			return;
+		}
+
+		final int frameCount = Math.max(1, intent.getIntExtra(EXTRA_FRAMES, 200));
+		final int runCount = Math.max(1, intent.getIntExtra(EXTRA_RUNS, 500));
+		final int warmUpCount = intent.getIntExtra(EXTRA_WARM_UP_RUNS, 50);
+
+		// the narrative, and new names for its image and audio components (as duplicateSMILElements creates)
+		final StringBuilder smil = new StringBuilder(SMIL_HEADER);
+		final HashMap<String, String> replacements = new HashMap<String, String>();
+		for (int i = 0; i < frameCount; i++) {
+			final String imageName = MediaTabletProvider.getNewInternalId() + ".jpg";
+			final String audioName = MediaTabletProvider.getNewInternalId() + ".m4a";
+			smil.append(String.format(SMIL_FRAME, MediaTablet.NARRATIVE_DEFAULT_FRAME_DURATION, imageName, audioName,
+					MediaTabletProvider.getNewInternalId() + ".txt"));
+			replacements.put(imageName, MediaTabletProvider.getNewInternalId() + ".jpg");
+			replacements.put(audioName, MediaTabletProvider.getNewInternalId() + ".m4a");
+		}
+		smil.append(SMIL_FOOTER);
+		final String smilContents = smil.toString();
+
+		final ArrayList<Long> streamingTimes = new ArrayList<Long>(runCount);
+		final ArrayList<Long> lineTimes = new ArrayList<Long>(runCount);
+		String streamingOutput = null;
+		String lineOutput = null;
+		int replacedCount = 0;
+		try {
+			for (int i = 0; i < warmUpCount; i++) {
+				SMILReferenceRewriter.rewrite(new StringReader(smilContents), new StringWriter(), replacements);
+				rewriteByLine(smilContents, replacements);
+			}
+			for (int i = 0; i < runCount; i++) { // alternate, so that both methods see the same conditions
+				long startTime = System.nanoTime();
+				final StringWriter output = new StringWriter(smilContents.length());
+				replacedCount = SMILReferenceRewriter.rewrite(new StringReader(smilContents), output, replacements);
+				streamingTimes.add(System.nanoTime() - startTime);
+				streamingOutput = output.toString();
+
+				startTime = System.nanoTime();
+				lineOutput = rewriteByLine(smilContents, replacements);
+				lineTimes.add(System.nanoTime() - startTime);
+			}
+		} catch (IOException e) {
+			Log.e(DebugUtilities.getLogTag(this), "Unable to rewrite SMIL: " + e.getLocalizedMessage());
+			return;
+		}
+
+		final StringBuilder report = new StringBuilder("SMIL rewrite benchmark: ");
+		report.append(intent.getExtras() != null ? intent.getExtras().toString() : "defaults");
+		report.append("\n");
+		report.append(frameCount);
+		report.append(" frames (");
+		report.append(smilContents.length());
+		report.append(" characters), ");
+		report.append(replacements.size());
+		report.append(" components renamed; ");
+		report.append(runCount);
+		report.append(" runs after ");
+		report.append(warmUpCount);
+		report.append(" warm-up runs\n");
+		report.append("SMILReferenceRewriter, per narrative: ");
+		PerformanceReport.appendLatencies(report, streamingTimes, 1000000);
+		report.append("\nLine by line (previous), per narrative: ");
+		PerformanceReport.appendLatencies(report, lineTimes, 1000000);
+		report.append("\n");
+		report.append("References replaced: ");
+		report.append(replacedCount);
+		report.append("; outputs ");
+		report.append(streamingOutput.equals(lineOutput) ? "identical" : "differ");
+		report.append("\n");
+
+		PerformanceReport.save(this, "smil-benchmark", report.toString());
+	}
+
+	// as duplicateSMILElements did before SMILReferenceRewriter was added
+	private static String rewriteByLine(String smilContents, Map<String, String> replacements) throws IOException {
+		final ArrayList<String[]> pairs = new ArrayList<String[]>(replacements.size()); // original, replacement
+		for (Map.Entry<String, String> replacement : replacements.entrySet()) {
+			pairs.add(new String[] { replacement.getKey(), replacement.getValue() });
+		}
+		final boolean[] replaced = new boolean[pairs.size()];
+
+		final BufferedReader reader = new BufferedReader(new StringReader(smilContents));
+		final StringWriter output = new StringWriter(smilContents.length());
+		String readLine = null;
+		while ((readLine = reader.readLine()) != null) {
+			for (int i = 0; i < pairs.size(); i++) {
+				final String[] pair = pairs.get(i);
+				if (!replaced[i] && readLine.contains(pair[0])) {
+					readLine = readLine.replace(pair[0], pair[1]);
+					replaced[i] = true;
+				}
+			}
+			output.write(readLine + '\n');
+		}
+		return output.toString();
+	}
+}
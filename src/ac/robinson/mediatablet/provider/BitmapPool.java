@@ -0,0 +1,172 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import ac.robinson.mediatablet.MediaTablet;
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * A pool of mutable bitmaps that are no longer in use, kept by size and configuration so that they can be reused
+ * rather than allocating new bitmaps - as canvases for rendering icons (see MediaItem.loadIcon), or for decoding into
+ * via BitmapFactory.Options.inBitmap (API 11+, where the size must match exactly before API 19). Bitmaps are only
+ * returned to the pool once nothing else can draw them: icons after they have been saved to the thumbnail cache, and
+ * panorama tiles when HomesteadSurfaceView stops drawing them. Bitmaps in IconCache are never pooled, as they may
+ * still be displayed after they are evicted.
+ *
+ * The pool is bounded by the total size of its bitmaps; when it is full, returned bitmaps are left to the garbage
+ * collector. getStatistics reports how many allocations (and bytes) the pool has saved.
+ */
+public class BitmapPool {
+
+	private static final HashMap<String, ArrayList<Bitmap>> mBitmaps = new HashMap<String, ArrayList<Bitmap>>();
+	private static final long mMaximumBytes = Runtime.getRuntime().maxMemory() / MediaTablet.BITMAP_POOL_FRACTION;
+	private static long mCurrentBytes = 0;
+
+	private static int mRequestCount = 0;
+	private static int mReuseCount = 0;
+	private static long mReusedBytes = 0;
+	private static int mReturnCount = 0;
+	private static int mDiscardCount = 0;
+
+	private static String getKey(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + "-" + config;
+	}
+
+	private static long getByteCount(Bitmap bitmap) {
+		return (long) bitmap.getRowBytes() * bitmap.getHeight(); // getByteCount() is not available before API 12
+	}
+
+	/**
+	 * Get a mutable bitmap of the given size and configuration, from the pool if possible - the contents of a pooled
+	 * bitmap are undefined, so callers must draw over all of it
+	 */
+	public static Bitmap getBitmap(int width, int height, Bitmap.Config config) {
+		final Bitmap bitmap = take(width, height, config);
+		return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+	}
+
+	private static synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+		mRequestCount += 1;
+		final ArrayList<Bitmap> bitmaps = mBitmaps.get(getKey(width, height, config));
+		if (bitmaps == null || bitmaps.size() <= 0) {
+			return null;
+		}
+		final Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+		final long bitmapBytes = getByteCount(bitmap);
+		mCurrentBytes -= bitmapBytes;
+		mReuseCount += 1;
+		mReusedBytes += bitmapBytes;
+		return bitmap;
+	}
+
+	/**
+	 * Return a bitmap that is no longer used anywhere, so that it can be reused - immutable or recycled bitmaps are
+	 * ignored, as they cannot be drawn on or decoded into
+	 */
+	public static synchronized void putBitmap(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+			return;
+		}
+		final long bitmapBytes = getByteCount(bitmap);
+		if (mCurrentBytes + bitmapBytes > mMaximumBytes) {
+			mDiscardCount += 1;
+			return;
+		}
+		final String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		ArrayList<Bitmap> bitmaps = mBitmaps.get(key);
+		if (bitmaps == null) {
+			bitmaps = new ArrayList<Bitmap>();
+			mBitmaps.put(key, bitmaps);
+		}
+		bitmaps.add(bitmap);
+		mCurrentBytes += bitmapBytes;
+		mReturnCount += 1;
+	}
+
+	/**
+	 * Decode an image file, reusing a pooled bitmap of the same size where possible (API 11+)
+	 *
+	 * @return the decoded bitmap (mutable, so that it can be returned to the pool), or null if it could not be decoded
+	 */
+	public static Bitmap decodeFile(File file, BitmapFactory.Options defaultOptions) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return BitmapFactory.decodeFile(file.getAbsolutePath(), defaultOptions);
+		}
+		return decodeFileReusingBitmap(file, defaultOptions);
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static Bitmap decodeFileReusingBitmap(File file, BitmapFactory.Options defaultOptions) {
+		final String filePath = file.getAbsolutePath();
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true; // reads only the header
+		BitmapFactory.decodeFile(filePath, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+
+		options.inJustDecodeBounds = false;
+		options.inPreferredConfig = defaultOptions.inPreferredConfig;
+		options.inDither = defaultOptions.inDither;
+		options.inSampleSize = 1; // inBitmap must be exactly the decoded size
+		options.inMutable = true;
+		options.inBitmap = take(options.outWidth, options.outHeight, options.inPreferredConfig);
+		if (options.inBitmap == null) {
+			return BitmapFactory.decodeFile(filePath, options);
+		}
+		try {
+			return BitmapFactory.decodeFile(filePath, options);
+		} catch (IllegalArgumentException e) {
+			// the pooled bitmap could not be reused (e.g., the file's format can't be decoded into it) - allocate
+			options.inBitmap = null;
+			return BitmapFactory.decodeFile(filePath, options);
+		}
+	}
+
+	public static synchronized String getStatistics() {
+		return "Bitmaps[pooled " + mCurrentBytes + " of " + mMaximumBytes + " bytes, requests " + mRequestCount
+				+ ", reused " + mReuseCount + " (" + mReusedBytes + " bytes not allocated), returned " + mReturnCount
+				+ ", discarded " + mDiscardCount + "]";
+	}
+
+	public static synchronized void clearStatistics() {
+		mRequestCount = 0;
+		mReuseCount = 0;
+		mReusedBytes = 0;
+		mReturnCount = 0;
+		mDiscardCount = 0;
+	}
+
+	/**
+	 * Release every pooled bitmap (e.g., when memory is low)
+	 */
+	public static synchronized void clear() {
+		mBitmaps.clear();
+		mCurrentBytes = 0;
+	}
+}
@@ -0,0 +1,553 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.mediatablet.importing.ImportJournal;
+import ac.robinson.mediautilities.SMILUtilities;
+import ac.robinson.util.DebugUtilities;
+import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Permanently removes items that have been marked as deleted, along with their media files and cached icons, and then
+ * any files in the storage directory that no longer belong to an item. Work is done in small batches when the UI
+ * thread is idle, and progress is saved after each batch so that an interrupted collection continues where it left
+ * off rather than starting again.
+ *
+ * Deleted media that are still used by a narrative that has not been deleted are kept (and checked again on the next
+ * cycle), as the narrative's SMIL file refers to their files directly. Files in MediaContentStore may be shared by
+ * several items, so they are only removed (in the final phase) once no item refers to them at all.
+ */
+public class DeletedItemCollector implements MessageQueue.IdleHandler {
+
+	private static final int PHASE_MEDIA = 0;
+	private static final int PHASE_PEOPLE = 1;
+	private static final int PHASE_ORPHANED_FILES = 2;
+	private static final int PHASE_CONTENT = 3;
+
+	private static final String KEY_PHASE = "collector_phase";
+	private static final String KEY_CHECKPOINT_ID = "collector_checkpoint_id"; // _id of the last row processed
+	private static final String KEY_CHECKPOINT_DIRECTORY = "collector_checkpoint_directory";
+	private static final String KEY_CHECKPOINT_CONTENT = "collector_checkpoint_content"; // last content file name
+	private static final String KEY_NEXT_CYCLE = "collector_next_cycle"; // wall clock time
+
+	private static final String mDeletedMediaSelection;
+	private static final String mDeletedPeopleSelection;
+	private static final String mLiveNarrativeSelection;
+	private static final String mMediaParentIdSelection;
+
+	static {
+		StringBuilder selection = new StringBuilder();
+		selection.append(MediaItem.DELETED);
+		selection.append("!=0 AND ");
+		selection.append(MediaItem._ID);
+		selection.append(">?");
+		mDeletedMediaSelection = selection.toString();
+
+		selection.setLength(0);
+		selection.append(PersonItem.DELETED);
+		selection.append("!=0 AND ");
+		selection.append(PersonItem._ID);
+		selection.append(">?");
+		mDeletedPeopleSelection = selection.toString();
+
+		selection.setLength(0);
+		selection.append(MediaItem.PARENT_ID);
+		selection.append("=? AND ");
+		selection.append(MediaItem.TYPE);
+		selection.append("=");
+		selection.append(MediaTabletProvider.TYPE_NARRATIVE);
+		selection.append(" AND ");
+		selection.append(MediaItem.DELETED);
+		selection.append("=0");
+		mLiveNarrativeSelection = selection.toString();
+
+		selection.setLength(0);
+		selection.append(MediaItem.PARENT_ID);
+		selection.append("=?");
+		mMediaParentIdSelection = selection.toString();
+	}
+
+	private final Context mContext;
+	private final ThreadPoolExecutor mExecutor;
+	private CollectorTask mCollectorTask = null;
+	private long mNextBatchTime = 0; // uptime
+
+	public DeletedItemCollector(Context context) {
+		mContext = context.getApplicationContext();
+
+		// AsyncTask's default executor is serial from Honeycomb, so a batch would hold up the media grid's page queries
+		mExecutor = new ThreadPoolExecutor(1, 1, MediaTablet.COLLECTOR_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new CollectorThreadFactory());
+		mExecutor.allowCoreThreadTimeOut(true); // batches are at least COLLECTOR_BATCH_INTERVAL apart
+	}
+
+	/**
+	 * Start collecting whenever the calling thread (which must have a Looper - normally the UI thread) is idle
+	 */
+	public void start() {
+		Looper.myQueue().addIdleHandler(this);
+	}
+
+	@Override
+	public boolean queueIdle() {
+		if (mCollectorTask == null && SystemClock.uptimeMillis() >= mNextBatchTime
+				&& MediaTablet.DIRECTORY_STORAGE != null) {
+			mCollectorTask = new CollectorTask();
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+				executeOnExecutor(mCollectorTask, mExecutor);
+			} else {
+				mCollectorTask.execute(); // before Honeycomb, AsyncTasks run in parallel anyway
+			}
+		}
+		return true; // keep checking every time the queue becomes idle
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void executeOnExecutor(CollectorTask task, Executor executor) {
+		task.executeOnExecutor(executor);
+	}
+
+	private class CollectorTask extends AsyncTask<Void, Void, Long> {
+		@Override
+		protected Long doInBackground(Void... unused) {
+			return collectNextBatch();
+		}
+
+		@Override
+		protected void onPostExecute(Long delay) {
+			mNextBatchTime = SystemClock.uptimeMillis() + delay;
+			mCollectorTask = null;
+		}
+	}
+
+	/**
+	 * Process one batch of the current phase and save a checkpoint - must not be called from the UI thread
+	 *
+	 * @return the time to wait (in milliseconds) before the next batch
+	 */
+	private long collectNextBatch() {
+		final SharedPreferences state = mContext.getSharedPreferences(MediaTablet.APPLICATION_NAME,
+				Context.MODE_PRIVATE);
+		final long now = System.currentTimeMillis();
+		final long nextCycle = state.getLong(KEY_NEXT_CYCLE, 0);
+		if (now < nextCycle) {
+			return Math.min(nextCycle - now, MediaTablet.COLLECTOR_CYCLE_INTERVAL); // in case the clock has changed
+		}
+
+		final ContentResolver contentResolver = mContext.getContentResolver();
+		final SharedPreferences.Editor stateEditor = state.edit();
+		int phase = state.getInt(KEY_PHASE, PHASE_MEDIA);
+		boolean phaseComplete;
+		switch (phase) {
+			case PHASE_MEDIA:
+				long lastMediaId = collectDeletedMedia(contentResolver, state.getLong(KEY_CHECKPOINT_ID, 0));
+				phaseComplete = lastMediaId < 0;
+				stateEditor.putLong(KEY_CHECKPOINT_ID, phaseComplete ? 0 : lastMediaId);
+				break;
+
+			case PHASE_PEOPLE:
+				long lastPersonId = collectDeletedPeople(contentResolver, state.getLong(KEY_CHECKPOINT_ID, 0));
+				phaseComplete = lastPersonId < 0;
+				stateEditor.putLong(KEY_CHECKPOINT_ID, phaseComplete ? 0 : lastPersonId);
+				break;
+
+			case PHASE_ORPHANED_FILES:
+				String lastDirectory = collectOrphanedFiles(contentResolver,
+						state.getString(KEY_CHECKPOINT_DIRECTORY, ""));
+				phaseComplete = lastDirectory == null;
+				stateEditor.putString(KEY_CHECKPOINT_DIRECTORY, phaseComplete ? "" : lastDirectory);
+				break;
+
+			default:
+				String lastContentFile = collectUnreferencedContent(contentResolver,
+						state.getString(KEY_CHECKPOINT_CONTENT, ""));
+				phaseComplete = lastContentFile == null;
+				stateEditor.putString(KEY_CHECKPOINT_CONTENT, phaseComplete ? "" : lastContentFile);
+				break;
+		}
+
+		long delay = MediaTablet.COLLECTOR_BATCH_INTERVAL;
+		if (phaseComplete) {
+			phase += 1;
+			if (phase > PHASE_CONTENT) {
+				phase = PHASE_MEDIA;
+				stateEditor.putLong(KEY_NEXT_CYCLE, now + MediaTablet.COLLECTOR_CYCLE_INTERVAL);
+				delay = MediaTablet.COLLECTOR_CYCLE_INTERVAL;
+				if (MediaTablet.DEBUG) {
+					Log.d(DebugUtilities.getLogTag(this), "Collection cycle complete");
+				}
+			}
+			stateEditor.putInt(KEY_PHASE, phase);
+		}
+		stateEditor.commit(); // we're on a background thread, so no need for apply()
+		return delay;
+	}
+
+	/**
+	 * Remove the next batch of deleted media items, their files (unless in MediaContentStore, which are removed by
+	 * collectUnreferencedContent once no other item refers to them) and their cached icons
+	 *
+	 * @return the _id of the last item processed, or -1 if there are no more deleted items
+	 */
+	private long collectDeletedMedia(ContentResolver contentResolver, long afterId) {
+		final ArrayList<MediaItem> deletedMedia = new ArrayList<MediaItem>();
+		long lastId = -1;
+		Cursor c = null;
+		try {
+			c = contentResolver.query(getBatchUri(MediaItem.CONTENT_URI), MediaItem.PROJECTION_ALL,
+					mDeletedMediaSelection, new String[] { Long.toString(afterId) }, MediaItem._ID + " ASC");
+			final int idIndex = c.getColumnIndexOrThrow(MediaItem._ID);
+			while (c.moveToNext()) {
+				deletedMedia.add(MediaItem.fromCursor(c));
+				lastId = c.getLong(idIndex);
+			}
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+
+		// narratives refer to their components' files, so keep any that are still in use
+		final HashMap<String, HashSet<String>> narrativeReferences = new HashMap<String, HashSet<String>>(); // by owner
+		final ArrayList<MediaItem> unusedMedia = new ArrayList<MediaItem>();
+		final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		for (MediaItem media : deletedMedia) {
+			final String parentId = media.getParentId();
+			if (!narrativeReferences.containsKey(parentId)) {
+				narrativeReferences.put(parentId, loadLiveNarrativeReferences(contentResolver, parentId));
+			}
+			final HashSet<String> references = narrativeReferences.get(parentId);
+			if (references != null && !references.contains(media.getFile().getName())) {
+				unusedMedia.add(media);
+				operations.add(ContentProviderOperation.newDelete(MediaItem.getItemUri(media.getInternalId())).build());
+			}
+		}
+
+		if (applyOperations(contentResolver, operations)) {
+			for (MediaItem media : unusedMedia) {
+				if (media.getContentId() == null) {
+					media.getFile().delete();
+				}
+				deleteCachedMediaIcons(media.getInternalId());
+			}
+		}
+		if (MediaTablet.DEBUG) {
+			Log.d(DebugUtilities.getLogTag(this), "Collected " + unusedMedia.size() + " of " + deletedMedia.size()
+					+ " deleted media items");
+		}
+		return lastId;
+	}
+
+	/**
+	 * Remove the next batch of deleted people, along with all of their media, their storage directory and cached icons
+	 *
+	 * @return the _id of the last person processed, or -1 if there are no more deleted people
+	 */
+	private long collectDeletedPeople(ContentResolver contentResolver, long afterId) {
+		final ArrayList<String> deletedPeople = new ArrayList<String>();
+		long lastId = -1;
+		Cursor c = null;
+		try {
+			c = contentResolver.query(getBatchUri(PersonItem.CONTENT_URI), new String[] { PersonItem._ID,
+					PersonItem.INTERNAL_ID }, mDeletedPeopleSelection, new String[] { Long.toString(afterId) },
+					PersonItem._ID + " ASC");
+			final int idIndex = c.getColumnIndexOrThrow(PersonItem._ID);
+			final int internalIdIndex = c.getColumnIndexOrThrow(PersonItem.INTERNAL_ID);
+			while (c.moveToNext()) {
+				deletedPeople.add(c.getString(internalIdIndex));
+				lastId = c.getLong(idIndex);
+			}
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+
+		for (String personId : deletedPeople) {
+			final String[] arguments1 = new String[] { personId };
+			for (String mediaId : loadMediaIds(contentResolver, personId)) {
+				deleteCachedMediaIcons(mediaId);
+			}
+			contentResolver.delete(MediaItem.CONTENT_URI, mMediaParentIdSelection, arguments1);
+			contentResolver.delete(PersonItem.getItemUri(personId), null, null);
+
+			final File storageDirectory = PersonItem.getStorageDirectory(personId);
+			final File[] files = storageDirectory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete(); // person directories are flat
+				}
+			}
+			storageDirectory.delete();
+			IconCache.remove(PersonItem.getCacheId(personId));
+			if (MediaTablet.DIRECTORY_THUMBS != null) {
+				new File(MediaTablet.DIRECTORY_THUMBS, PersonItem.getCacheId(personId)).delete();
+			}
+		}
+		if (MediaTablet.DEBUG) {
+			Log.d(DebugUtilities.getLogTag(this), "Collected " + deletedPeople.size() + " deleted people");
+		}
+		return lastId;
+	}
+
+	/**
+	 * Remove files from the next person's storage directory that don't belong to any media item - e.g., left behind
+	 * by an interrupted import. Recent files are kept, as imports copy files before adding their items.
+	 *
+	 * @return the name of the directory processed, or null if there are no more directories
+	 */
+	private String collectOrphanedFiles(ContentResolver contentResolver, String afterDirectory) {
+		final File storageDirectory = MediaTablet.DIRECTORY_STORAGE;
+		final String[] directoryNames = storageDirectory != null ? storageDirectory.list() : null;
+		if (directoryNames == null) {
+			return null;
+		}
+		Arrays.sort(directoryNames);
+
+		String personId = null;
+		for (String directoryName : directoryNames) {
+			if (directoryName.compareTo(afterDirectory) > 0 && !MediaContentStore.DIRECTORY_NAME.equals(directoryName)
+					&& !ImportJournal.DIRECTORY_NAME.equals(directoryName)
+					&& new File(storageDirectory, directoryName).isDirectory()) {
+				personId = directoryName;
+				break;
+			}
+		}
+		if (personId == null) {
+			return null;
+		}
+
+		final File[] files = PersonItem.getStorageDirectory(personId).listFiles();
+		if (files != null) {
+			final HashSet<String> mediaIds = loadMediaIds(contentResolver, personId); // includes deleted items
+			final long oldestNewFile = System.currentTimeMillis() - MediaTablet.COLLECTOR_MINIMUM_ORPHAN_AGE;
+			int orphanCount = 0;
+			for (File file : files) {
+				final String fileId = MediaItem.getInternalId(file.getName());
+				if (file.isFile() && file.lastModified() < oldestNewFile && !mediaIds.contains(fileId)
+						&& !personId.equals(fileId)) { // the person's profile picture uses their own id
+					file.delete();
+					orphanCount += 1;
+				}
+			}
+			if (MediaTablet.DEBUG) {
+				Log.d(DebugUtilities.getLogTag(this), "Collected " + orphanCount + " orphaned files for " + personId);
+			}
+		}
+		return personId;
+	}
+
+	/**
+	 * Remove the next batch of files from MediaContentStore that no item refers to, along with any temporary files left
+	 * behind by an interrupted import. As in collectOrphanedFiles, recent files are kept, as imports store files before
+	 * adding their items (storing touches a file, even if it was already present). Files recorded in an unfinished
+	 * ImportJournal are also kept, however old, as the import will refer to them when it is resumed.
+	 *
+	 * @return the name of the last file processed, or null if there are no more files
+	 */
+	private String collectUnreferencedContent(ContentResolver contentResolver, String afterFile) {
+		final File contentDirectory = MediaContentStore.getDirectory();
+		final String[] fileNames = contentDirectory != null ? contentDirectory.list() : null;
+		if (fileNames == null) {
+			return null;
+		}
+		Arrays.sort(fileNames);
+
+		final ArrayList<String> batch = new ArrayList<String>();
+		for (String fileName : fileNames) {
+			if (fileName.compareTo(afterFile) > 0) {
+				batch.add(fileName);
+				if (batch.size() >= MediaTablet.COLLECTOR_BATCH_SIZE) {
+					break;
+				}
+			}
+		}
+		if (batch.size() <= 0) {
+			return null;
+		}
+		final String lastFile = batch.get(batch.size() - 1);
+
+		// only old files are candidates - anything stored (or touched) from now on is newer, and checked again below
+		final HashSet<String> journalContent = ImportJournal.loadUnfinishedContentIds();
+		final ArrayList<String> candidates = new ArrayList<String>();
+		long oldestNewFile = System.currentTimeMillis() - MediaTablet.COLLECTOR_MINIMUM_ORPHAN_AGE;
+		for (String fileName : batch) {
+			final File file = new File(contentDirectory, fileName);
+			if (!journalContent.contains(fileName) && file.lastModified() < oldestNewFile) {
+				candidates.add(fileName);
+			}
+		}
+		if (candidates.size() <= 0) {
+			return lastFile;
+		}
+
+		final HashSet<String> referencedContent = new HashSet<String>();
+		final StringBuilder selection = new StringBuilder(MediaItem.CONTENT_ID);
+		selection.append(" IN (");
+		for (int i = 0; i < candidates.size(); i++) {
+			selection.append(i == 0 ? "?" : ",?");
+		}
+		selection.append(")");
+		Cursor c = null;
+		try {
+			c = contentResolver.query(MediaItem.CONTENT_REFERENCES_URI, MediaItem.PROJECTION_CONTENT_REFERENCES,
+					selection.toString(), candidates.toArray(new String[candidates.size()]), null);
+			final int contentIdIndex = c.getColumnIndexOrThrow(MediaItem.CONTENT_ID);
+			while (c.moveToNext()) {
+				referencedContent.add(c.getString(contentIdIndex));
+			}
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+
+		// check the time again just before deleting, in case a new item's file was stored while we were querying
+		int unreferencedCount = 0;
+		for (String fileName : candidates) {
+			final File file = new File(contentDirectory, fileName);
+			oldestNewFile = System.currentTimeMillis() - MediaTablet.COLLECTOR_MINIMUM_ORPHAN_AGE;
+			if (!referencedContent.contains(fileName) && file.lastModified() < oldestNewFile) {
+				file.delete(); // includes temporary files, which are never referenced
+				unreferencedCount += 1;
+			}
+		}
+		if (MediaTablet.DEBUG) {
+			Log.d(DebugUtilities.getLogTag(this), "Collected " + unreferencedCount + " of " + batch.size()
+					+ " stored files");
+		}
+		return lastFile;
+	}
+
+	/**
+	 * Get a URI that limits a query to one batch, so that only the batch is read (and counted by the provider) rather
+	 * than every remaining deleted item
+	 */
+	private static Uri getBatchUri(Uri contentUri) {
+		return contentUri.buildUpon().appendQueryParameter(MediaTabletProvider.QUERY_PARAMETER_LIMIT,
+				Integer.toString(MediaTablet.COLLECTOR_BATCH_SIZE)).build();
+	}
+
+	/**
+	 * Get the names of the files referred to by the owner's narratives that have not been deleted
+	 *
+	 * @return the file names, or null if a narrative could not be read (so nothing of theirs should be removed yet)
+	 */
+	private static HashSet<String> loadLiveNarrativeReferences(ContentResolver contentResolver, String parentId) {
+		final HashSet<String> references = new HashSet<String>();
+		Cursor c = null;
+		try {
+			c = contentResolver.query(MediaItem.CONTENT_URI, MediaItem.PROJECTION_ALL, mLiveNarrativeSelection,
+					new String[] { parentId }, null);
+			while (c.moveToNext()) {
+				final File narrativeFile = MediaItem.fromCursor(c).getFile();
+				if (narrativeFile.exists()) {
+					final ArrayList<String> narrativeFiles = SMILUtilities.getSimpleSMILFileList(narrativeFile, true);
+					if (narrativeFiles == null) {
+						return null;
+					}
+					for (String fileName : narrativeFiles) {
+						references.add(new File(fileName).getName());
+					}
+				}
+			}
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+		return references;
+	}
+
+	private static HashSet<String> loadMediaIds(ContentResolver contentResolver, String parentId) {
+		final HashSet<String> mediaIds = new HashSet<String>();
+		Cursor c = null;
+		try {
+			c = contentResolver.query(MediaItem.CONTENT_URI, new String[] { MediaItem.INTERNAL_ID },
+					mMediaParentIdSelection, new String[] { parentId }, null);
+			final int internalIdIndex = c.getColumnIndexOrThrow(MediaItem.INTERNAL_ID);
+			while (c.moveToNext()) {
+				mediaIds.add(c.getString(internalIdIndex));
+			}
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+		return mediaIds;
+	}
+
+	private static void deleteCachedMediaIcons(String mediaId) {
+		MediaManager.cancelMediaIcons(mediaId);
+		MediaManager.deleteMediaIcon(MediaItem.getCacheId(mediaId, MediaItem.MEDIA_PRIVATE));
+		MediaManager.deleteMediaIcon(MediaItem.getCacheId(mediaId, MediaItem.MEDIA_PUBLIC));
+	}
+
+	private static class CollectorThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			return new Thread(runnable, "Deleted item collector"); // AsyncTask sets the background priority itself
+		}
+	}
+
+	private boolean applyOperations(ContentResolver contentResolver, ArrayList<ContentProviderOperation> operations) {
+		if (operations.size() <= 0) {
+			return true;
+		}
+		try {
+			contentResolver.applyBatch(MediaTabletProvider.URI_AUTHORITY, operations); // one transaction per batch
+			return true;
+		} catch (RemoteException e) {
+			if (MediaTablet.DEBUG)
+				Log.e(DebugUtilities.getLogTag(this), "Unable to remove deleted items: " + e.getLocalizedMessage());
+		} catch (OperationApplicationException e) {
+			if (MediaTablet.DEBUG)
+				Log.e(DebugUtilities.getLogTag(this), "Unable to remove deleted items: " + e.getLocalizedMessage());
+		}
+		return false;
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.util.ArrayList;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.mediatablet.PerformanceReport;
+import ac.robinson.util.DebugUtilities;
+import android.annotation.TargetApi;
+import android.app.IntentService;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures media grid query latency while items are being written, with write-ahead logging turned on and then off.
+ * Each phase uses a new database with the same schema as the media database (see
+ * MediaTabletProvider.getDatabaseHelper), so the user's media are never changed and the provider's own setting is
+ * left alone. Each sample queries the first few pages of public media as MediaAdapter does when the grid is scrolled
+ * (see PagedCursor), and samples are taken first with nothing else running, then while another thread writes items in
+ * small transactions, as importing narratives does. Only runs in DEBUG builds, and needs API 16+ to turn write-ahead
+ * logging off.
+ *
+ * The service is commented out in AndroidManifest.xml, as it must be exported to be started with adb - uncomment it
+ * (and set MediaTablet.DEBUG), then run from a computer with, for example (all extras are optional - see the EXTRA_
+ * constants for defaults):
+ *
+ * adb shell am startservice -n ac.robinson.mediatablet/.provider.GridQueryBenchmark --ei items 2000 --ei writes 500
+ *
+ * The report is written to the log and to a file on external storage.
+ */
+public class GridQueryBenchmark extends IntentService {
+
+	public static final String EXTRA_ITEMS = "items"; // public items added before sampling; default 2000
+	public static final String EXTRA_WRITES = "writes"; // items written while sampling; default 500
+	public static final String EXTRA_WRITE_BATCH = "write_batch"; // items per write transaction; default 25
+	public static final String EXTRA_PAGES = "pages"; // pages queried per sample; default 3
+	public static final String EXTRA_IDLE_SAMPLES = "idle_samples"; // samples before starting the writes; default 50
+	public static final String EXTRA_SAMPLE_INTERVAL = "sample_interval"; // milliseconds between samples; default 50
+
+	private static final String DATABASE_NAME = "query-benchmark.db";
+
+	public GridQueryBenchmark() {
+		super("GridQueryBenchmark");
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (!MediaTablet.DEBUG) {
+			Log.w(DebugUtilities.getLogTag(this), "Grid query benchmark is only available in DEBUG builds");
+			return;
+		}
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+			Log.e(DebugUtilities.getLogTag(this), "Write-ahead logging can only be turned off on API 16 and later");
+			return;
+		}
+
+		final int itemCount = intent.getIntExtra(EXTRA_ITEMS, 2000);
+		final int writeCount = intent.getIntExtra(EXTRA_WRITES, 500);
+		final int writeBatch = Math.max(1, intent.getIntExtra(EXTRA_WRITE_BATCH, 25));
+		final int pageCount = Math.max(1, intent.getIntExtra(EXTRA_PAGES, 3));
+		final int idleSamples = intent.getIntExtra(EXTRA_IDLE_SAMPLES, 50);
+		final int sampleInterval = intent.getIntExtra(EXTRA_SAMPLE_INTERVAL, 50);
+
+		final StringBuilder report = new StringBuilder("Grid query benchmark: ");
+		report.append(intent.getExtras() != null ? intent.getExtras().toString() : "defaults");
+		report.append("\nEach sample queries ");
+		report.append(pageCount);
+		report.append(" pages of ");
+		report.append(MediaTablet.MEDIA_BROWSER_PAGE_SIZE);
+		report.append(" public media items, from ");
+		report.append(itemCount);
+		report.append(" items\n");
+
+		final boolean[] writeAheadLogging = new boolean[] { true, false };
+		for (boolean enabled : writeAheadLogging) {
+			deleteDatabase(DATABASE_NAME);
+			final SQLiteOpenHelper databaseHelper = MediaTabletProvider.getDatabaseHelper(this, DATABASE_NAME);
+			try {
+				final SQLiteDatabase db = openDatabase(databaseHelper, enabled);
+				if (db == null) {
+					report.append("\nUnable to turn write-ahead logging ");
+					report.append(enabled ? "on" : "off");
+					report.append("\n");
+					continue;
+				}
+				final String phase = "WAL " + (enabled ? "on" : "off");
+				final String ownerId = MediaTabletProvider.getNewInternalId();
+				insertItems(db, ownerId, itemCount, writeBatch);
+
+				final ArrayList<Long> idleLatencies = new ArrayList<Long>(idleSamples);
+				for (int i = 0; i < idleSamples; i++) {
+					idleLatencies.add(queryPages(db, pageCount));
+					SystemClock.sleep(sampleInterval);
+				}
+
+				// start writing, then keep sampling until the writes have finished
+				final Thread writer = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						insertItems(db, ownerId, writeCount, writeBatch);
+					}
+				}, "GridQueryBenchmarkWriter");
+				final long writeStartTime = SystemClock.uptimeMillis();
+				writer.start();
+
+				final ArrayList<Long> writeLatencies = new ArrayList<Long>();
+				while (writer.isAlive()) {
+					writeLatencies.add(queryPages(db, pageCount));
+					SystemClock.sleep(sampleInterval);
+				}
+				final long writeTime = SystemClock.uptimeMillis() - writeStartTime;
+
+				report.append("\n");
+				report.append(phase);
+				report.append(", idle: ");
+				appendLatencies(report, idleLatencies);
+				report.append(phase);
+				report.append(", writing ");
+				report.append(writeCount);
+				report.append(" items in ");
+				report.append(writeTime);
+				report.append(" ms: ");
+				appendLatencies(report, writeLatencies);
+			} finally {
+				databaseHelper.close();
+				deleteDatabase(DATABASE_NAME);
+			}
+		}
+
+		PerformanceReport.save(this, "query-benchmark", report.toString());
+	}
+
+	// the setting must be applied before the database is first opened; returns null if it could not be applied
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static SQLiteDatabase openDatabase(SQLiteOpenHelper databaseHelper, boolean writeAheadLogging) {
+		databaseHelper.setWriteAheadLoggingEnabled(writeAheadLogging);
+		final SQLiteDatabase db = databaseHelper.getWritableDatabase();
+		return db.isWriteAheadLoggingEnabled() == writeAheadLogging ? db : null;
+	}
+
+	// one transaction per batch, started as the provider starts its batches (see MediaTabletProvider.bulkInsert)
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void insertItems(SQLiteDatabase db, String ownerId, int count, int batchSize) {
+		int inserted = 0;
+		while (inserted < count) {
+			final int batchEnd = Math.min(inserted + batchSize, count);
+			db.beginTransactionNonExclusive();
+			try {
+				for (int i = inserted; i < batchEnd; i++) {
+					db.insert(MediaTabletProvider.MEDIA_LOCATION, null, new MediaItem(ownerId, "benchmark-" + i
+							+ ".jpg", MediaItem.MEDIA_PUBLIC).getContentValues());
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			inserted = batchEnd;
+		}
+	}
+
+	// query pages as MediaAdapter does when the grid scrolls, returning the total time in milliseconds
+	private static long queryPages(SQLiteDatabase db, int pageCount) {
+		final String selection = MediaItem.VISIBILITY + "=" + MediaItem.MEDIA_PUBLIC + " AND " + MediaItem.DELETED
+				+ "=0";
+		final String pageSize = Integer.toString(MediaTablet.MEDIA_BROWSER_PAGE_SIZE);
+		final long startTime = SystemClock.uptimeMillis();
+		String pageSelection = selection;
+		for (int i = 0; i < pageCount; i++) {
+			final Cursor page = db.query(MediaTabletProvider.MEDIA_LOCATION, MediaItem.PROJECTION_GRID, pageSelection,
+					null, null, null, MediaItem.PAGED_SORT_ORDER, pageSize);
+			try {
+				// reading the count runs the query, as the grid would when it is displayed
+				if (page.getCount() < MediaTablet.MEDIA_BROWSER_PAGE_SIZE || !page.moveToLast()) {
+					break;
+				}
+				pageSelection = selection + " AND " + MediaTabletProvider.getPageSelection(
+						page.getLong(page.getColumnIndexOrThrow(MediaItem.DATE_CREATED)),
+						page.getLong(page.getColumnIndexOrThrow(MediaItem._ID)));
+			} finally {
+				page.close();
+			}
+		}
+		return SystemClock.uptimeMillis() - startTime;
+	}
+
+	private static void appendLatencies(StringBuilder report, ArrayList<Long> latencies) {
+		report.append(latencies.size());
+		report.append(" samples: ");
+		PerformanceReport.appendLatencies(report, latencies, 1);
+		report.append("\n");
+	}
+
+}
@@ -55,7 +55,7 @@ public class HomesteadItem implements BaseColumns {
 			+ MediaTabletProvider.URI_SEPARATOR + MediaTabletProvider.HOMESTEADS_LOCATION);
 
 	public static final String[] PROJECTION_ALL = new String[] { HomesteadItem._ID, HomesteadItem.INTERNAL_ID,
-			HomesteadItem.X_POSITION, HomesteadItem.Y_POSITION, HomesteadItem.COLOUR, MediaItem.DELETED };
+			HomesteadItem.X_POSITION, HomesteadItem.Y_POSITION, HomesteadItem.COLOUR, HomesteadItem.DELETED };
 
 	public static final String INTERNAL_ID = "internal_id";
 	public static final String X_POSITION = "x_position";
@@ -76,6 +76,13 @@ public class HomesteadItem implements BaseColumns {
 	private ColorFilter mColourFilter;
 	private static final int DEFAULT_COLOUR = Color.WHITE;
 
+	/**
+	 * Get the URI of a single homestead
+	 */
+	public static Uri getItemUri(String internalId) {
+		return Uri.withAppendedPath(CONTENT_URI, internalId);
+	}
+
 	public HomesteadItem(String internalId, int xPosition, int yPosition) {
 		mInternalId = internalId;
 		mXPosition = xPosition;
@@ -187,7 +194,7 @@ public class HomesteadItem implements BaseColumns {
 		SVG audioSVG = SVGParser.getSVGFromResource(resources, R.raw.ic_homestead);
 		homesteadBitmapCanvas.drawPicture(audioSVG.getPicture(), drawRect);
 
-		ArrayList<PersonItem> homesteadPeople = PersonManager.findPeopleByParentId(contentResolver, mInternalId);
+		ArrayList<String> homesteadPeople = PersonManager.findPersonIdsByParentId(contentResolver, mInternalId);
 		int numPeople = homesteadPeople.size();
 		if (numPeople > 0) {
 
@@ -234,10 +241,9 @@ public class HomesteadItem implements BaseColumns {
 			clipPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
 
 			// finally, draw the actual icons
-			// for (PersonItem person : homesteadPeople) { //instead, reverse the list to get items in better draw order
-			for (ListIterator<PersonItem> it = homesteadPeople.listIterator(homesteadPeople.size()); it.hasPrevious();) {
-				final PersonItem person = it.previous();
-				final File pictureFile = person.getProfilePictureFile();
+			// for (String personId : homesteadPeople) { //instead, reverse the list to get items in better draw order
+			for (ListIterator<String> it = homesteadPeople.listIterator(homesteadPeople.size()); it.hasPrevious();) {
+				final File pictureFile = PersonItem.getProfilePictureFile(it.previous());
 				if (pictureFile.exists()) {
 					personBitmap = BitmapUtilities.loadAndCreateScaledBitmap(pictureFile.getAbsolutePath(),
 							personIconSize, personIconSize, BitmapUtilities.ScalingLogic.CROP, true);
@@ -292,6 +298,14 @@ public class HomesteadItem implements BaseColumns {
 		return values;
 	}
 
+	public static HomesteadItem fromExisting(HomesteadItem existing) {
+		final HomesteadItem homestead = new HomesteadItem(existing.mInternalId, existing.mXPosition,
+				existing.mYPosition);
+		homestead.mColour = existing.mColour;
+		homestead.mDeleted = existing.mDeleted;
+		return homestead;
+	}
+
 	public static HomesteadItem fromCursor(Cursor c) {
 		final HomesteadItem homestead = new HomesteadItem();
 		homestead.mInternalId = c.getString(c.getColumnIndexOrThrow(INTERNAL_ID));
@@ -32,8 +32,12 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 
 public class HomesteadManager {
-	private static String mHomesteadInternalIdSelection;
-	private static String[] mArguments1 = new String[1];
+
+	// invalidated by MediaTabletProvider on every write to the homesteads table
+	static final ItemCache<HomesteadItem> HOMESTEAD_CACHE = new ItemCache<HomesteadItem>("Homesteads",
+			MediaTablet.ITEM_CACHE_SIZE_HOMESTEADS);
+
+	private static final String mHomesteadInternalIdSelection;
 
 	static {
 		StringBuilder selection = new StringBuilder();
@@ -49,6 +53,7 @@ public class HomesteadManager {
 
 		ImageCacheUtilities.addIconToCache(MediaTablet.DIRECTORY_THUMBS, homestead.getCacheId(), homesteadIcon,
 				cacheTypeContainer.type, MediaTablet.ICON_CACHE_QUALITY);
+		IconCache.remove(homestead.getCacheId());
 	}
 
 	public static void reloadHomesteadIcon(Resources resources, ContentResolver contentResolver, String homesteadId) {
@@ -72,8 +77,7 @@ public class HomesteadManager {
 	}
 
 	public static boolean updateHomestead(ContentResolver contentResolver, HomesteadItem homestead) {
-		final String[] arguments1 = mArguments1;
-		arguments1[0] = homestead.getInternalId();
+		final String[] arguments1 = new String[] { homestead.getInternalId() };
 		int count = contentResolver.update(HomesteadItem.CONTENT_URI, homestead.getContentValues(),
 				mHomesteadInternalIdSelection, arguments1);
 		return count == 1;
@@ -82,8 +86,7 @@ public class HomesteadManager {
 	// okay to actually delete here (rather than just setting deleted) - we have no adapter trying to load deleted items
 	// TODO: delete people when homestead is deleted?
 	public static boolean deleteHomesteadByInternalId(ContentResolver contentResolver, String homesteadId) {
-		final String[] arguments1 = mArguments1;
-		arguments1[0] = homesteadId;
+		final String[] arguments1 = new String[] { homesteadId };
 		int count = contentResolver.delete(HomesteadItem.CONTENT_URI, mHomesteadInternalIdSelection, arguments1);
 		return count > 0;
 	}
@@ -107,16 +110,21 @@ public class HomesteadManager {
 	}
 
 	public static HomesteadItem findHomesteadByInternalId(ContentResolver contentResolver, String internalId) {
+		HomesteadItem cachedHomestead = HOMESTEAD_CACHE.get(internalId);
+		if (cachedHomestead != null) {
+			return HomesteadItem.fromExisting(cachedHomestead);
+		}
+		final int cacheGeneration = HOMESTEAD_CACHE.getGeneration();
 		Cursor c = null;
 		try {
-			final String[] arguments1 = mArguments1;
-			arguments1[0] = internalId;
+			final String[] arguments1 = new String[] { internalId };
 			c = contentResolver.query(HomesteadItem.CONTENT_URI, HomesteadItem.PROJECTION_ALL,
 					mHomesteadInternalIdSelection, arguments1, null);
 			if (c.getCount() > 0) { // TODO: this assumes there are no duplicates...
 				if (c.moveToFirst()) {
 					final HomesteadItem homestead = HomesteadItem.fromCursor(c);
-					return homestead;
+					HOMESTEAD_CACHE.put(internalId, homestead, cacheGeneration);
+					return HomesteadItem.fromExisting(homestead); // never return the cached instance
 				}
 			}
 		} finally {
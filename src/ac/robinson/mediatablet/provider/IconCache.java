@@ -0,0 +1,179 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.util.ImageCacheUtilities;
+import ac.robinson.view.FastBitmapDrawable;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * A least-recently-used cache of decoded icons, in front of the icon pack and icon files in
+ * MediaTablet.DIRECTORY_THUMBS (see ThumbnailPack), so that icons that have recently been displayed (e.g., just
+ * scrolled off-screen) are not decoded from storage again. Icons are keyed by cache id (their file name or pack key),
+ * and the cache is bounded by the total size of its bitmaps, which is set from the application's memory class (see
+ * setMemoryClass). It is shared by every view that displays icons.
+ *
+ * Whenever a stored icon is rewritten or deleted its entry must be removed, so a cached icon always matches storage.
+ */
+public class IconCache {
+
+	private static final LinkedHashMap<String, Bitmap> mIcons = new LinkedHashMap<String, Bitmap>(64, 0.75f, true);
+
+	// until setMemoryClass is called, size from the maximum heap (which is usually the same as the memory class)
+	private static long mMaximumBytes = Runtime.getRuntime().maxMemory() / MediaTablet.ICON_MEMORY_CACHE_FRACTION;
+	private static long mCurrentBytes = 0;
+
+	private static int mHitCount = 0;
+	private static int mMissCount = 0;
+	private static int mEvictionCount = 0;
+
+	/**
+	 * Size the cache from the memory class of the device (see ActivityManager.getMemoryClass) - call when the
+	 * application starts
+	 */
+	public static synchronized void setMemoryClass(Context context) {
+		final ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		mMaximumBytes = activityManager.getMemoryClass() * 1024L * 1024L / MediaTablet.ICON_MEMORY_CACHE_FRACTION;
+		trimToSize(mMaximumBytes);
+	}
+
+	/**
+	 * Get a cached icon, decoding it from the icon pack or MediaTablet.DIRECTORY_THUMBS (and keeping it in memory) if
+	 * it is not already in memory - a replacement for ImageCacheUtilities.getCachedIcon
+	 *
+	 * @return the icon, or defaultIcon if it has not been stored
+	 */
+	public static FastBitmapDrawable getCachedIcon(String cacheId, FastBitmapDrawable defaultIcon) {
+		final Bitmap icon = get(cacheId);
+		if (icon != null) {
+			return new FastBitmapDrawable(icon); // a new drawable each time, as callers may change its state
+		}
+
+		// until the pack is ready, its icons are treated as missing, and requested from IconRenderQueue (which waits)
+		final ThumbnailPack iconPack = ThumbnailPack.getIconPack();
+		final byte[] iconData = iconPack != null && iconPack.isReady() ? iconPack.get(cacheId) : null;
+		if (iconData != null) {
+			final Bitmap packedIcon = BitmapFactory.decodeByteArray(iconData, 0, iconData.length,
+					ImageCacheUtilities.mBitmapFactoryOptions);
+			if (packedIcon != null) {
+				put(cacheId, packedIcon);
+				return new FastBitmapDrawable(packedIcon);
+			}
+		}
+
+		// not in the pack - person and homestead icons, and media icons cached before the pack was used, are files
+		final FastBitmapDrawable cachedIcon = ImageCacheUtilities.getCachedIcon(MediaTablet.DIRECTORY_THUMBS, cacheId,
+				ImageCacheUtilities.NULL_DRAWABLE);
+		if (ImageCacheUtilities.NULL_DRAWABLE.equals(cachedIcon)) {
+			return defaultIcon;
+		}
+		put(cacheId, cachedIcon.getBitmap());
+		return cachedIcon;
+	}
+
+	/**
+	 * Get an icon that is already in memory
+	 *
+	 * @return the icon, or null if it is not in the cache
+	 */
+	public static synchronized Bitmap get(String cacheId) {
+		final Bitmap icon = mIcons.get(cacheId);
+		if (icon != null) {
+			mHitCount += 1;
+		} else {
+			mMissCount += 1;
+		}
+		return icon;
+	}
+
+	/**
+	 * Add a decoded icon to the cache - icons larger than the whole cache are not kept
+	 */
+	public static synchronized void put(String cacheId, Bitmap icon) {
+		if (cacheId == null || icon == null) {
+			return;
+		}
+		final long iconBytes = getByteCount(icon);
+		if (iconBytes > mMaximumBytes) {
+			return;
+		}
+		final Bitmap previousIcon = mIcons.put(cacheId, icon);
+		if (previousIcon != null) {
+			mCurrentBytes -= getByteCount(previousIcon);
+		}
+		mCurrentBytes += iconBytes;
+		trimToSize(mMaximumBytes);
+	}
+
+	/**
+	 * Remove an icon from memory - call whenever its file is rewritten or deleted
+	 */
+	public static synchronized void remove(String cacheId) {
+		final Bitmap icon = mIcons.remove(cacheId);
+		if (icon != null) {
+			mCurrentBytes -= getByteCount(icon);
+		}
+	}
+
+	/**
+	 * Remove every icon from memory (e.g., when memory is low)
+	 */
+	public static synchronized void clear() {
+		mEvictionCount += mIcons.size();
+		mIcons.clear();
+		mCurrentBytes = 0;
+	}
+
+	// icons are never recycled when evicted, as they may still be displayed - they are freed when no longer in use
+	private static void trimToSize(long maximumBytes) {
+		final Iterator<Map.Entry<String, Bitmap>> icons = mIcons.entrySet().iterator(); // least recently used first
+		while (mCurrentBytes > maximumBytes && icons.hasNext()) {
+			mCurrentBytes -= getByteCount(icons.next().getValue());
+			icons.remove();
+			mEvictionCount += 1;
+		}
+	}
+
+	private static long getByteCount(Bitmap bitmap) {
+		return (long) bitmap.getRowBytes() * bitmap.getHeight(); // getByteCount() is not available before API 12
+	}
+
+	public static synchronized String getStatistics() {
+		int requests = mHitCount + mMissCount;
+		return "Icons[size " + mIcons.size() + ", bytes " + mCurrentBytes + " of " + mMaximumBytes + ", hits "
+				+ mHitCount + ", misses " + mMissCount + ", hit rate "
+				+ (requests > 0 ? Math.round(100f * mHitCount / requests) : 0) + "%, evictions " + mEvictionCount + "]";
+	}
+
+	public static synchronized void clearStatistics() {
+		mHitCount = 0;
+		mMissCount = 0;
+		mEvictionCount = 0;
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.util.DebugUtilities;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Renders the cached icons of newly added media items in the background, so that they are usually ready before the
+ * items are first displayed, rather than being generated on the UI thread by MediaAdapter. Items are rendered newest
+ * first (the order they are browsed in), on a single low-priority thread, as decoding media for icons uses a lot of
+ * memory. Each item's private icon is rendered, and its public icon too if it is publicly shared.
+ *
+ * Work for an item that is deleted before it is rendered is cancelled - an item is also checked again before it is
+ * rendered, and before its icons are saved, so icons are not left behind for items that DeletedItemCollector removed
+ * in the meantime.
+ *
+ * Icons that are missing when they are displayed (e.g., after the cache has been cleared) are requested individually
+ * by the media and people browsers. These requests are rendered before anything else, most recent first (i.e., the
+ * items that were scrolled to last), and a listener is told when each is ready. Requests are keyed by cache id, so
+ * asking for an icon that is already queued does not render it twice.
+ */
+public class IconRenderQueue {
+
+	private final Resources mResources;
+	private final ContentResolver mContentResolver;
+	private final ThreadPoolExecutor mExecutor;
+
+	// by internal id for new items, or by cache id for requested icons
+	private final HashMap<String, RenderTask> mQueuedTasks = new HashMap<String, RenderTask>();
+	private final AtomicLong mSequence = new AtomicLong();
+
+	public interface OnIconRenderedListener {
+		/**
+		 * Called (on the rendering thread) when a requested icon has been rendered - or could not be, in which case
+		 * its file still does not exist
+		 */
+		public void onIconRendered(String cacheId);
+	}
+
+	public IconRenderQueue(Context context) {
+		mResources = context.getResources();
+		mContentResolver = context.getContentResolver();
+		mExecutor = new ThreadPoolExecutor(1, 1, MediaTablet.ICON_RENDER_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new RenderThreadFactory());
+		mExecutor.allowCoreThreadTimeOut(true); // items are added occasionally - don't keep an idle thread
+	}
+
+	/**
+	 * Queue a media item's icons to be rendered - if the item is already queued it is moved to the front of the queue
+	 */
+	public void queue(MediaItem media) {
+		execute(new MediaIconsTask(media.getInternalId(), media.getCreationDate(), mSequence.incrementAndGet()));
+	}
+
+	/**
+	 * Render a media item's icon for the given visibility, ahead of any new items' icons
+	 */
+	public void requestMediaIcon(String internalId, int visibility, OnIconRenderedListener listener) {
+		execute(new RequestedIconTask(MediaItem.getCacheId(internalId, visibility), internalId, visibility,
+				mSequence.incrementAndGet(), listener));
+	}
+
+	/**
+	 * Render a person's icon, ahead of any new items' icons
+	 */
+	public void requestPersonIcon(String internalId, OnIconRenderedListener listener) {
+		execute(new RequestedIconTask(PersonItem.getCacheId(internalId), internalId, -1, mSequence.incrementAndGet(),
+				listener));
+	}
+
+	// replaces any queued task with the same key, so the new task takes its place in the order
+	private synchronized void execute(RenderTask task) {
+		final RenderTask existingTask = mQueuedTasks.remove(task.mKey);
+		if (existingTask != null) {
+			mExecutor.remove(existingTask);
+		}
+		mQueuedTasks.put(task.mKey, task);
+		mExecutor.execute(task);
+	}
+
+	/**
+	 * Remove a media item's icons from the queue (e.g., because the item has been deleted) - an item that is already
+	 * being rendered will notice that it has been deleted before its icons are saved
+	 */
+	public synchronized void cancel(String internalId) {
+		cancelTask(internalId);
+		cancelTask(MediaItem.getCacheId(internalId, MediaItem.MEDIA_PRIVATE));
+		cancelTask(MediaItem.getCacheId(internalId, MediaItem.MEDIA_PUBLIC));
+	}
+
+	private void cancelTask(String key) {
+		final RenderTask task = mQueuedTasks.remove(key);
+		if (task != null && mExecutor.remove(task)) {
+			if (MediaTablet.DEBUG)
+				Log.d(DebugUtilities.getLogTag(this), "Cancelled icon rendering for " + key);
+		}
+	}
+
+	/**
+	 * Get the number of items whose icons are waiting to be rendered
+	 */
+	public synchronized int getQueuedCount() {
+		return mQueuedTasks.size();
+	}
+
+	private synchronized boolean onTaskStarted(RenderTask task) {
+		// the task may have been replaced or cancelled after the executor took it from the queue
+		if (mQueuedTasks.get(task.mKey) != task) {
+			return false;
+		}
+		mQueuedTasks.remove(task.mKey);
+		return true;
+	}
+
+	private boolean isCurrent(String internalId) {
+		final MediaItem media = MediaManager.findMediaByInternalId(mContentResolver, internalId);
+		return media != null && !media.getDeleted();
+	}
+
+	private void render(String internalId, int visibility) {
+		final MediaItem media = MediaManager.findMediaByInternalId(mContentResolver, internalId);
+		if (media == null || media.getDeleted() || MediaTablet.DIRECTORY_THUMBS == null) {
+			return;
+		}
+		if (MediaManager.hasMediaIcon(media.getCacheId(visibility))) {
+			return; // e.g., already rendered when it was requested for display
+		}
+		MediaManager.reloadMediaIcon(mResources, mContentResolver, media, visibility);
+		if (!isCurrent(internalId)) { // deleted while rendering - the collector may already have removed its icons
+			MediaManager.deleteMediaIcon(media.getCacheId(visibility));
+		}
+	}
+
+	private void renderPerson(String internalId) {
+		if (MediaTablet.DIRECTORY_THUMBS == null
+				|| new File(MediaTablet.DIRECTORY_THUMBS, PersonItem.getCacheId(internalId)).exists()) {
+			return;
+		}
+		final PersonItem person = PersonManager.findPersonByInternalId(mContentResolver, internalId);
+		if (person != null && !person.getDeleted()) {
+			PersonManager.reloadPersonIcon(mResources, person);
+		}
+	}
+
+	private abstract class RenderTask implements Runnable, Comparable<RenderTask> {
+		protected final String mKey;
+		private final boolean mRequested; // whether the icon is waiting to be displayed
+		private final long mCreationDate;
+		private final long mSequence;
+
+		private RenderTask(String key, boolean requested, long creationDate, long sequence) {
+			mKey = key;
+			mRequested = requested;
+			mCreationDate = creationDate;
+			mSequence = sequence;
+		}
+
+		@Override
+		public int compareTo(RenderTask another) {
+			// requested icons first; then newest first, as in MediaItem.DEFAULT_SORT_ORDER; then most recently queued
+			if (mRequested != another.mRequested) {
+				return mRequested ? -1 : 1;
+			}
+			if (mCreationDate != another.mCreationDate) {
+				return mCreationDate > another.mCreationDate ? -1 : 1;
+			}
+			return mSequence > another.mSequence ? -1 : (mSequence < another.mSequence ? 1 : 0);
+		}
+
+		@Override
+		public void run() {
+			if (!onTaskStarted(this)) {
+				return;
+			}
+			try {
+				final long startTime = System.currentTimeMillis();
+				render();
+				if (MediaTablet.DEBUG)
+					Log.d(DebugUtilities.getLogTag(this), "Rendered icons for " + mKey + " in "
+							+ (System.currentTimeMillis() - startTime) + " ms");
+			} catch (Throwable t) {
+				// a file that can't be decoded must not stop the rest of the queue - it will be requested again when
+				// it is next displayed
+				Log.e(DebugUtilities.getLogTag(this), "Icon rendering failed for " + mKey + ": "
+						+ t.getLocalizedMessage());
+			} finally {
+				onRendered();
+			}
+		}
+
+		protected abstract void render();
+
+		protected void onRendered() {
+		}
+	}
+
+	// both icons of a newly added media item, keyed by internal id
+	private class MediaIconsTask extends RenderTask {
+		private MediaIconsTask(String internalId, long creationDate, long sequence) {
+			super(internalId, false, creationDate, sequence);
+		}
+
+		@Override
+		protected void render() {
+			IconRenderQueue.this.render(mKey, MediaItem.MEDIA_PRIVATE);
+			final MediaItem media = MediaManager.findMediaByInternalId(mContentResolver, mKey);
+			if (media != null && media.isPubliclyShared()) {
+				IconRenderQueue.this.render(mKey, MediaItem.MEDIA_PUBLIC);
+			}
+		}
+	}
+
+	// a single icon that is waiting to be displayed, keyed by cache id
+	private class RequestedIconTask extends RenderTask {
+		private final String mInternalId;
+		private final int mVisibility; // or -1 for a person's icon
+		private final OnIconRenderedListener mListener;
+
+		private RequestedIconTask(String cacheId, String internalId, int visibility, long sequence,
+				OnIconRenderedListener listener) {
+			super(cacheId, true, 0, sequence);
+			mInternalId = internalId;
+			mVisibility = visibility;
+			mListener = listener;
+		}
+
+		@Override
+		protected void render() {
+			if (mVisibility < 0) {
+				renderPerson(mInternalId);
+			} else {
+				IconRenderQueue.this.render(mInternalId, mVisibility);
+			}
+		}
+
+		@Override
+		protected void onRendered() {
+			if (mListener != null) {
+				mListener.onIconRendered(mKey);
+			}
+		}
+	}
+
+	private static class RenderThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND); // keep the UI responsive
+					runnable.run();
+				}
+			}, "Icon renderer");
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of items keyed by internal id. Entries are removed by MediaTabletProvider
+ * whenever the corresponding rows are written, so a cached item is never newer or older than the database.
+ *
+ * Cached items are mutable, so callers must store and return copies rather than the cached instances themselves.
+ */
+public class ItemCache<T> {
+
+	private final String mName;
+	private final LinkedHashMap<String, T> mItems;
+
+	// incremented on every invalidation, so that a query that started before a write cannot cache its (stale) result
+	private int mGeneration = 0;
+
+	private int mHitCount = 0;
+	private int mMissCount = 0;
+	private int mInvalidationCount = 0;
+
+	public ItemCache(String name, final int maximumSize) {
+		mName = name;
+		mItems = new LinkedHashMap<String, T>(16, 0.75f, true) { // access order, for LRU eviction
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	public synchronized T get(String internalId) {
+		T item = mItems.get(internalId);
+		if (item != null) {
+			mHitCount += 1;
+		} else {
+			mMissCount += 1;
+		}
+		return item;
+	}
+
+	/**
+	 * Get the current generation - call before querying the database, then pass the result to put()
+	 */
+	public synchronized int getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * Cache an item, unless the cache has been invalidated since generation was obtained from getGeneration()
+	 */
+	public synchronized void put(String internalId, T item, int generation) {
+		if (internalId != null && item != null && generation == mGeneration) {
+			mItems.put(internalId, item);
+		}
+	}
+
+	public synchronized void remove(String internalId) {
+		mGeneration += 1;
+		mInvalidationCount += 1;
+		mItems.remove(internalId);
+	}
+
+	public synchronized void clear() {
+		mGeneration += 1;
+		mInvalidationCount += 1;
+		mItems.clear();
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	public synchronized int getInvalidationCount() {
+		return mInvalidationCount;
+	}
+
+	public synchronized int size() {
+		return mItems.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		int requests = mHitCount + mMissCount;
+		return mName + "[size " + mItems.size() + ", hits " + mHitCount + ", misses " + mMissCount + ", hit rate "
+				+ (requests > 0 ? Math.round(100f * mHitCount / requests) : 0) + "%, invalidations "
+				+ mInvalidationCount + "]";
+	}
+}
@@ -28,8 +28,12 @@ import ac.robinson.util.ImageCacheUtilities;
 import ac.robinson.view.CrossFadeDrawable;
 import ac.robinson.view.FastBitmapDrawable;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -67,12 +71,28 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 	private int[] mMediaTypeFilter = MediaTabletProvider.NO_MEDIA_TYPES.clone();
 	private StringBuilder mTypeFilterBuilder = new StringBuilder();
 	private String mOwnerFilter = null;
+	private volatile String mSearchFilter = null; // set from runQuery's constraint, which is null when re-filtering
 
 	private final String[] mFilterArguments0 = new String[0];
 	private final String[] mFilterArguments1 = new String[1];
 
+	private NextPageTask mNextPageTask = null;
+
+	// observes MediaItem.CONTENT_URI (including single item URIs) - our paged cursors have no notification URI
+	private final ContentObserver mContentObserver = new ContentObserver(new Handler()) {
+		@Override
+		public void onChange(boolean selfChange) {
+			onChange(selfChange, null); // before API 16 we don't know which item changed
+		}
+
+		@Override
+		public void onChange(boolean selfChange, Uri uri) {
+			onMediaChanged(MediaTabletProvider.getItemInternalId(uri));
+		}
+	};
+
 	public MediaAdapter(MediaBrowserActivity activity, String ownerId, int mediaVisibility) {
-		super(activity, activity.managedQuery(MediaItem.CONTENT_URI, MediaItem.PROJECTION_ALL, "1=?",
+		super(activity, activity.managedQuery(MediaItem.CONTENT_URI, MediaItem.PROJECTION_GRID, "1=?",
 				new String[] { "0" }, null), true); // hack to show no data initially
 
 		mActivity = activity;
@@ -121,6 +141,16 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		mVisibilityFilter = mediaVisibility;
 		buildMediaFilter();
 		setOwnerFilter(ownerId);
+
+		activity.getContentResolver().registerContentObserver(MediaItem.CONTENT_URI, true, mContentObserver);
+	}
+
+	/**
+	 * Stop observing changes and close the current cursor - must be called when the activity is destroyed
+	 */
+	public void close() {
+		mActivity.getContentResolver().unregisterContentObserver(mContentObserver);
+		changeCursor(null); // paged cursors are not managed by the activity, so must be closed here
 	}
 
 	public FastBitmapDrawable getDefaultIcon() {
@@ -131,6 +161,28 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		mFilter.filter(null);
 	}
 
+	@Override
+	protected void onContentChanged() {
+		// nothing to do - changes are handled by mContentObserver, which can update single items
+	}
+
+	private void onMediaChanged(String internalId) {
+		final Cursor cursor = getCursor();
+		if (internalId != null && cursor instanceof PagedCursor) {
+			new PatchRowTask((PagedCursor) cursor, internalId).execute();
+		} else {
+			// requerying a paged cursor would re-run every page with its original keyset - start from the first page
+			reFilter();
+		}
+	}
+
+	/**
+	 * Only show items whose original file name or text content contains every word in searchFilter (null for all)
+	 */
+	public void setSearchFilter(String searchFilter) {
+		mFilter.filter(searchFilter == null ? "" : searchFilter);
+	}
+
 	public void setOwnerFilter(String ownerFilter) {
 		mOwnerFilter = ownerFilter;
 		if (mOwnerFilter == null) {
@@ -235,6 +287,10 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		holder.mediaType = c.getInt(mTypeIndex);
 		holder.mediaVisibility = c.getInt(mVisibilityIndex);
 
+		if (c.getPosition() >= c.getCount() - MediaTablet.MEDIA_BROWSER_PAGE_PREFETCH) {
+			loadNextPage();
+		}
+
 		final MediaBrowserActivity activity = mActivity;
 		int iconVisibility = mOwnerFilter == null ? MediaItem.MEDIA_PUBLIC : MediaItem.MEDIA_PRIVATE;
 		if (activity.getScrollState() == AbsListView.OnScrollListener.SCROLL_STATE_FLING
@@ -243,20 +299,20 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 			holder.display.setImageDrawable(mDefaultIcon);
 			holder.queryIcon = true;
 		} else {
-			// if the icon has gone missing (recently imported or cache deletion), regenerate it
-			// this will happen on every new person, but we check for the file before generation, so not too bad
+			// if the icon has gone missing (recently imported or cache deletion), regenerate it in the background -
+			// until then, show the default icon and the loader, as when scrolling (the activity fades the icon in)
 			String mediaCacheId = MediaItem.getCacheId(holder.mediaInternalId, iconVisibility);
-			FastBitmapDrawable cachedIcon = ImageCacheUtilities.getCachedIcon(MediaTablet.DIRECTORY_THUMBS,
-					mediaCacheId, ImageCacheUtilities.NULL_DRAWABLE);
+			FastBitmapDrawable cachedIcon = IconCache.getCachedIcon(mediaCacheId, ImageCacheUtilities.NULL_DRAWABLE);
 			if (ImageCacheUtilities.NULL_DRAWABLE.equals(cachedIcon)) {
-				MediaManager.reloadMediaIcon(mActivity.getResources(), mActivity.getContentResolver(),
-						holder.mediaInternalId, iconVisibility);
-				cachedIcon = ImageCacheUtilities
-						.getCachedIcon(MediaTablet.DIRECTORY_THUMBS, mediaCacheId, mDefaultIcon);
+				holder.loader.setVisibility(View.VISIBLE);
+				holder.display.setImageDrawable(mDefaultIcon);
+				holder.queryIcon = true;
+				activity.requestMediaIcon(holder.mediaInternalId, iconVisibility);
+			} else {
+				holder.display.setImageDrawable(cachedIcon);
+				holder.loader.setVisibility(View.GONE);
+				holder.queryIcon = false;
 			}
-			holder.display.setImageDrawable(cachedIcon);
-			holder.loader.setVisibility(View.GONE);
-			holder.queryIcon = false;
 		}
 		if (mOwnerFilter != null && holder.mediaVisibility == MediaItem.MEDIA_PUBLIC) {
 			holder.overlay.setBackgroundResource(R.drawable.item_public);
@@ -283,7 +339,7 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		}
 		buffer.append(mSelectionType);
 
-		final String[] filterArguments;
+		String[] filterArguments;
 		if (mOwnerFilter != null) {
 			buffer.append(mSelectionId);
 			filterArguments = mFilterArguments1;
@@ -292,10 +348,96 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 			buffer.append(")"); // hack!
 			filterArguments = mFilterArguments0;
 		}
+
+		// a null constraint means we're re-filtering (e.g., after changing type), so keep the current search
+		if (constraint != null) {
+			mSearchFilter = constraint.toString();
+		}
+		final String searchQuery = MediaTabletProvider.getSearchQuery(mSearchFilter);
+		if (searchQuery != null) {
+			buffer.append(" AND ");
+			buffer.append(MediaTabletProvider.MEDIA_SEARCH_SELECTION);
+			filterArguments = mOwnerFilter != null ? new String[] { mOwnerFilter, searchQuery }
+					: new String[] { searchQuery };
+		}
 		mSelection = buffer.toString(); // buffer.append('%') // wildcard
 
-		// TODO: sort out projection to only return necessary columns
-		return mActivity.managedQuery(MediaItem.CONTENT_URI, MediaItem.PROJECTION_ALL, mSelection, filterArguments,
-				MediaItem.DEFAULT_SORT_ORDER);
+		// only the first page is loaded here - the rest are loaded as the grid scrolls towards them (see bindView)
+		return PagedCursor.query(mActivity.getContentResolver(), MediaItem.PROJECTION_GRID, mSelection, filterArguments,
+				MediaTablet.MEDIA_BROWSER_PAGE_SIZE);
+	}
+
+	private void loadNextPage() {
+		final Cursor cursor = getCursor();
+		if (mNextPageTask != null || !(cursor instanceof PagedCursor)) {
+			return;
+		}
+		final PagedCursor pagedCursor = (PagedCursor) cursor;
+		if (pagedCursor.hasMorePages()) {
+			mNextPageTask = new NextPageTask(pagedCursor);
+			mNextPageTask.execute();
+		}
+	}
+
+	private class NextPageTask extends AsyncTask<Void, Void, Cursor> {
+		private final PagedCursor mPagedCursor;
+		private final long mAfterDateCreated;
+		private final long mAfterId;
+
+		public NextPageTask(PagedCursor pagedCursor) {
+			mPagedCursor = pagedCursor;
+			mAfterDateCreated = pagedCursor.getLastDateCreated();
+			mAfterId = pagedCursor.getLastId();
+		}
+
+		@Override
+		protected Cursor doInBackground(Void... unused) {
+			return mPagedCursor.queryPage(mActivity.getContentResolver(), mAfterDateCreated, mAfterId);
+		}
+
+		@Override
+		protected void onPostExecute(Cursor page) {
+			mNextPageTask = null;
+			if (page == null) {
+				return;
+			}
+			if (getCursor() == mPagedCursor && !mPagedCursor.isClosed()) {
+				mPagedCursor.addPage(page);
+				notifyDataSetChanged();
+			} else {
+				page.close(); // the filter has changed since this page was requested
+			}
+		}
+	}
+
+	private class PatchRowTask extends AsyncTask<Void, Void, Cursor> {
+		private final PagedCursor mPagedCursor;
+		private final String mInternalId;
+
+		public PatchRowTask(PagedCursor pagedCursor, String internalId) {
+			mPagedCursor = pagedCursor;
+			mInternalId = internalId;
+		}
+
+		@Override
+		protected Cursor doInBackground(Void... unused) {
+			return mPagedCursor.queryRow(mActivity.getContentResolver(), mInternalId);
+		}
+
+		@Override
+		protected void onPostExecute(Cursor row) {
+			if (row == null) {
+				return;
+			}
+			if (getCursor() == mPagedCursor && !mPagedCursor.isClosed()) {
+				if (mPagedCursor.patchRow(mInternalId, row)) {
+					notifyDataSetChanged();
+				} else {
+					reFilter(); // a new item that is within the loaded pages - it must be shown in the right place
+				}
+			} else {
+				row.close(); // the filter has changed since this row was requested
+			}
+		}
 	}
 }
@@ -0,0 +1,230 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.util.IOUtilities;
+
+/**
+ * Content-addressed storage for media files. Each file is stored once, named by the SHA-256 hash of its contents (plus
+ * its extension - together, the content id), and any number of media items can refer to it via MediaItem.CONTENT_ID.
+ * Sharing an item, or receiving the same file twice, therefore adds a database row rather than another copy.
+ *
+ * The number of items referring to each file is kept by triggers in MediaTabletProvider (see
+ * MediaItem.CONTENT_REFERENCES_URI); DeletedItemCollector removes files that are no longer referenced. The store is a
+ * single flat directory because narratives refer to their components by file name, relative to the narrative's own
+ * file - a narrative stored here can only find components that are also stored here.
+ *
+ * Items created before the store was added have no content id, and their files stay in their owner's directory.
+ */
+public class MediaContentStore {
+
+	public static final String DIRECTORY_NAME = "_content"; // in MediaTablet.DIRECTORY_STORAGE; not a valid person id
+	private static final String TEMPORARY_FILE_PREFIX = "tmp-"; // never a valid content id (hashes are hexadecimal)
+
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final int HASH_BUFFER_SIZE = 65536;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final AtomicLong mDuplicateFiles = new AtomicLong(); // files that were already stored
+	private static final AtomicLong mDuplicateBytes = new AtomicLong();
+
+	public static File getDirectory() {
+		if (MediaTablet.DIRECTORY_STORAGE == null) {
+			return null;
+		}
+		return new File(MediaTablet.DIRECTORY_STORAGE, DIRECTORY_NAME);
+	}
+
+	public static File getFile(String contentId) {
+		return new File(getDirectory(), contentId);
+	}
+
+	/**
+	 * Whether the given file is already in the store (in which case its name is its content id)
+	 */
+	public static boolean isStoredFile(File file) {
+		final File directory = getDirectory();
+		return directory != null && directory.equals(file.getParentFile());
+	}
+
+	/**
+	 * Get a new, empty file in the store's directory (i.e., on the same filesystem), to be written and then passed to
+	 * store() - temporary files that are never stored are removed by DeletedItemCollector
+	 */
+	public static File createTemporaryFile(String fileExtension) throws IOException {
+		final File directory = getDirectory();
+		if (directory == null || (!directory.exists() && !directory.mkdirs())) {
+			throw new IOException("Content directory is not available");
+		}
+		return new File(directory, TEMPORARY_FILE_PREFIX + MediaTabletProvider.getNewInternalId() + "."
+				+ fileExtension);
+	}
+
+	/**
+	 * Whether a file name in the store's directory is a temporary file (see createTemporaryFile)
+	 */
+	public static boolean isTemporaryFile(String fileName) {
+		return fileName.startsWith(TEMPORARY_FILE_PREFIX);
+	}
+
+	/**
+	 * Add a file to the store. If identical content has already been stored nothing is written, and the existing file
+	 * is used instead. Otherwise the file is moved (if deleteSource is true) or copied into the store.
+	 *
+	 * @param fileExtension the extension to store the file with (from MediaItem.getFileExtension)
+	 * @param deleteSource whether to remove the source file after it has been stored
+	 * @param bytesWritten if not null, the number of bytes actually written to storage is added to this counter
+	 * @return the new file's content id, for MediaItem.setContentId
+	 */
+	public static String store(File source, String fileExtension, boolean deleteSource, AtomicLong bytesWritten)
+			throws IOException {
+		if (isStoredFile(source) && !isTemporaryFile(source.getName())) {
+			return source.getName(); // e.g., a component of a narrative that is being shared
+		}
+
+		final String contentId = getContentId(source, fileExtension);
+		final File contentFile = getFile(contentId);
+		if (contentFile.exists()) {
+			// touch, so that DeletedItemCollector doesn't remove the file before the new item refers to it
+			contentFile.setLastModified(System.currentTimeMillis());
+			mDuplicateFiles.incrementAndGet();
+			mDuplicateBytes.addAndGet(contentFile.length());
+			if (deleteSource) {
+				source.delete();
+			}
+			return contentId;
+		}
+
+		// move or copy to a temporary name first, so that a partial file can never have a valid content id
+		final File temporaryFile = createTemporaryFile(fileExtension);
+		final long written = transferFile(source, temporaryFile, deleteSource);
+		if (!temporaryFile.renameTo(contentFile)) {
+			temporaryFile.delete();
+			throw new IOException("Unable to store " + source);
+		}
+		contentFile.setLastModified(System.currentTimeMillis()); // as above - a renamed file keeps the source's time
+		if (bytesWritten != null) {
+			bytesWritten.addAndGet(written);
+		}
+		return contentId;
+	}
+
+	/**
+	 * Move a file by renaming it, which is atomic and writes no data when both files are on the same filesystem; if
+	 * not (e.g., from internal storage to an SD card), or if deleteSource is false, the file is copied using
+	 * FileChannel.transferTo, which avoids copying the data through a buffer in the application
+	 *
+	 * @return the number of bytes written to storage (0 if the file was renamed)
+	 */
+	public static long transferFile(File source, File destination, boolean deleteSource) throws IOException {
+		if (deleteSource && source.renameTo(destination)) {
+			// the file keeps the source's modification time, so touch it - DeletedItemCollector removes old files
+			destination.setLastModified(System.currentTimeMillis());
+			return 0;
+		}
+
+		FileInputStream inputStream = null;
+		FileOutputStream outputStream = null;
+		long bytesWritten = 0;
+		try {
+			inputStream = new FileInputStream(source);
+			outputStream = new FileOutputStream(destination);
+			FileChannel inputChannel = inputStream.getChannel();
+			FileChannel outputChannel = outputStream.getChannel();
+			final long size = inputChannel.size();
+			while (bytesWritten < size) { // transferTo may not transfer everything in one call
+				final long transferred = inputChannel.transferTo(bytesWritten, size - bytesWritten, outputChannel);
+				if (transferred <= 0) {
+					throw new IOException("Unable to transfer " + source + " (" + bytesWritten + " of " + size
+							+ " bytes written)");
+				}
+				bytesWritten += transferred;
+			}
+		} catch (IOException e) {
+			IOUtilities.closeStream(outputStream);
+			outputStream = null;
+			destination.delete(); // don't leave a partial file
+			throw e;
+		} finally {
+			IOUtilities.closeStream(inputStream);
+			IOUtilities.closeStream(outputStream);
+		}
+
+		if (deleteSource) {
+			source.delete();
+		}
+		return bytesWritten;
+	}
+
+	private static String getContentId(File file, String fileExtension) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(HASH_ALGORITHM + " is not available");
+		}
+
+		FileInputStream inputStream = null;
+		try {
+			inputStream = new FileInputStream(file);
+			final byte[] buffer = new byte[HASH_BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = inputStream.read(buffer)) >= 0) {
+				digest.update(buffer, 0, bytesRead);
+			}
+		} finally {
+			IOUtilities.closeStream(inputStream);
+		}
+
+		final byte[] hash = digest.digest();
+		final StringBuilder contentId = new StringBuilder(hash.length * 2 + 1 + fileExtension.length());
+		for (byte b : hash) {
+			contentId.append(HEX_DIGITS[(b >> 4) & 0x0f]);
+			contentId.append(HEX_DIGITS[b & 0x0f]);
+		}
+		contentId.append('.');
+		contentId.append(fileExtension);
+		return contentId.toString();
+	}
+
+	/**
+	 * Get the number of files (and bytes) that were not stored because identical content was already present
+	 */
+	public static String getStatistics() {
+		return "Content[duplicate files " + mDuplicateFiles.get() + ", duplicate bytes not stored "
+				+ mDuplicateBytes.get() + "]";
+	}
+
+	public static void clearStatistics() {
+		mDuplicateFiles.set(0);
+		mDuplicateBytes.set(0);
+	}
+}
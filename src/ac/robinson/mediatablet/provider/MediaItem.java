@@ -57,9 +57,33 @@ public class MediaItem implements BaseColumns {
 	public static final Uri CONTENT_URI = Uri.parse(MediaTabletProvider.URI_PREFIX + MediaTabletProvider.URI_AUTHORITY
 			+ MediaTabletProvider.URI_SEPARATOR + MediaTabletProvider.MEDIA_LOCATION);
 
+	private static final Uri SEARCH_URI = Uri.parse(MediaTabletProvider.URI_PREFIX + MediaTabletProvider.URI_AUTHORITY
+			+ MediaTabletProvider.URI_SEPARATOR + MediaTabletProvider.SEARCH_LOCATION
+			+ MediaTabletProvider.URI_SEPARATOR + MediaTabletProvider.MEDIA_LOCATION);
+
+	// the number of media items for each combination of owner, type, visibility and deletion (kept up to date by
+	// triggers in MediaTabletProvider, so counting never needs to scan the media table)
+	public static final Uri COUNTS_URI = Uri.parse(MediaTabletProvider.URI_PREFIX + MediaTabletProvider.URI_AUTHORITY
+			+ MediaTabletProvider.URI_SEPARATOR + MediaTabletProvider.MEDIA_COUNTS_LOCATION);
+
+	// the number of media items that refer to each file in MediaContentStore (kept up to date by triggers)
+	public static final Uri CONTENT_REFERENCES_URI = Uri.parse(MediaTabletProvider.URI_PREFIX
+			+ MediaTabletProvider.URI_AUTHORITY + MediaTabletProvider.URI_SEPARATOR
+			+ MediaTabletProvider.MEDIA_CONTENT_LOCATION);
+
 	public static final String[] PROJECTION_ALL = new String[] { MediaItem._ID, MediaItem.INTERNAL_ID,
 			MediaItem.PARENT_ID, MediaItem.DATE_CREATED, MediaItem.FILE_EXTENSION, MediaItem.MEDIA_EXTRA,
-			MediaItem.TYPE, MediaItem.VISIBILITY, MediaItem.DELETED };
+			MediaItem.TYPE, MediaItem.VISIBILITY, MediaItem.DELETED, MediaItem.CONTENT_ID };
+
+	public static final String[] PROJECTION_COUNTS = new String[] { MediaItem.PARENT_ID, MediaItem.TYPE,
+			MediaItem.VISIBILITY, MediaItem.DELETED, MediaItem.COUNT };
+
+	public static final String[] PROJECTION_CONTENT_REFERENCES = new String[] { MediaItem.CONTENT_ID,
+			MediaItem.REFERENCE_COUNT };
+
+	// only the columns needed to display the media grid (date_created is required for paging - see PagedCursor)
+	public static final String[] PROJECTION_GRID = new String[] { MediaItem._ID, MediaItem.INTERNAL_ID,
+			MediaItem.PARENT_ID, MediaItem.DATE_CREATED, MediaItem.TYPE, MediaItem.VISIBILITY };
 
 	public static final String INTERNAL_ID = "internal_id";
 	public static final String PARENT_ID = "parent_id";
@@ -69,6 +93,9 @@ public class MediaItem implements BaseColumns {
 	public static final String TYPE = "type";
 	public static final String VISIBILITY = "visibility";
 	public static final String DELETED = "deleted";
+	public static final String CONTENT_ID = "content_id"; // null for items stored before MediaContentStore
+	public static final String COUNT = "item_count"; // COUNTS_URI only
+	public static final String REFERENCE_COUNT = "reference_count"; // CONTENT_REFERENCES_URI only
 
 	public static final int MEDIA_PRIVATE = 0;
 	public static final int MEDIA_PUBLIC = 1;
@@ -76,8 +103,14 @@ public class MediaItem implements BaseColumns {
 	// added to filenames to distinguish between types
 	public static final String ICON_PUBLIC = "-p";
 
+	// MEDIA_EXTRA is indexed, so only a bounded original file name is stored there (text content stays in the file)
+	public static final int MAXIMUM_ORIGINAL_FILE_NAME_LENGTH = 128;
+
 	public static final String DEFAULT_SORT_ORDER = DATE_CREATED + " DESC";
 
+	// paged queries need a unique order, so _id breaks ties between items created at the same time
+	public static final String PAGED_SORT_ORDER = DATE_CREATED + " DESC, " + _ID + " DESC";
+
 	private String mInternalId;
 	private String mParentId;
 	private long mCreationDate;
@@ -86,6 +119,39 @@ public class MediaItem implements BaseColumns {
 	private int mType;
 	private int mVisibility;
 	private int mDeleted;
+	private String mContentId;
+
+	/**
+	 * Get a URI for a page of at most limit media items, sorted by PAGED_SORT_ORDER
+	 * 
+	 * @param afterDateCreated the creation date of the last item on the previous page (ignored if afterId < 0)
+	 * @param afterId the _id of the last item on the previous page, or -1 for the first page
+	 */
+	public static Uri getPagedContentUri(int limit, long afterDateCreated, long afterId) {
+		Uri.Builder builder = CONTENT_URI.buildUpon();
+		builder.appendQueryParameter(MediaTabletProvider.QUERY_PARAMETER_LIMIT, Integer.toString(limit));
+		if (afterId >= 0) {
+			builder.appendQueryParameter(MediaTabletProvider.QUERY_PARAMETER_AFTER_DATE,
+					Long.toString(afterDateCreated));
+			builder.appendQueryParameter(MediaTabletProvider.QUERY_PARAMETER_AFTER_ID, Long.toString(afterId));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Get the URI of a single media item - observers of CONTENT_URI are notified with this URI when only it changes
+	 */
+	public static Uri getItemUri(String internalId) {
+		return Uri.withAppendedPath(CONTENT_URI, internalId);
+	}
+
+	/**
+	 * Get a URI for the media items whose original file name or text content contains every word in searchText
+	 */
+	public static Uri getSearchUri(String searchText) {
+		return SEARCH_URI.buildUpon().appendQueryParameter(MediaTabletProvider.QUERY_PARAMETER_SEARCH, searchText)
+				.build();
+	}
 
 	public MediaItem(String internalId, String parentId, String originalFileName, int type, int visibility) {
 		mInternalId = internalId;
@@ -136,11 +202,21 @@ public class MediaItem implements BaseColumns {
 	}
 
 	public void setOriginalFileName(String mediaExtra) {
+		if (mediaExtra != null && mediaExtra.length() > MAXIMUM_ORIGINAL_FILE_NAME_LENGTH) {
+			mediaExtra = mediaExtra.substring(0, MAXIMUM_ORIGINAL_FILE_NAME_LENGTH);
+		}
 		mMediaExtra = mediaExtra;
 	}
 
-	public void setTextExtra(String textExtra) {
-		mMediaExtra = textExtra;
+	/**
+	 * Text content is not stored in the database - load it from this item's file when it is actually needed
+	 */
+	public String loadTextContent() {
+		final File textFile = getFile();
+		if (mType != MediaTabletProvider.TYPE_TEXT || textFile == null || !textFile.exists()) {
+			return null;
+		}
+		return IOUtilities.getFileContents(textFile.getAbsolutePath());
 	}
 
 	public int getType() {
@@ -155,11 +231,26 @@ public class MediaItem implements BaseColumns {
 		mVisibility = sharedStatus;
 	}
 
+	/**
+	 * The id of this item's file in MediaContentStore, or null if its file is in its owner's storage directory
+	 */
+	public String getContentId() {
+		return mContentId;
+	}
+
+	public void setContentId(String contentId) {
+		mContentId = contentId;
+	}
+
 	public File getFile() {
-		return getFile(mParentId, mInternalId, mFileExtension);
+		return getFile(mParentId, mInternalId, mFileExtension, mContentId);
 	}
 
-	public static File getFile(String mediaParentId, String mediaInternalId, String mediaFileExtension) {
+	public static File getFile(String mediaParentId, String mediaInternalId, String mediaFileExtension,
+			String mediaContentId) {
+		if (mediaContentId != null) {
+			return MediaContentStore.getFile(mediaContentId);
+		}
 		final File filePath = new File(PersonItem.getStorageDirectory(mediaParentId), mediaInternalId + "."
 				+ mediaFileExtension);
 		return filePath;
@@ -231,11 +322,11 @@ public class MediaItem implements BaseColumns {
 		int iconWidth = resources.getDimensionPixelSize(R.dimen.media_icon_width);
 		int iconHeight = resources.getDimensionPixelSize(R.dimen.media_icon_height);
 		Bitmap iconBitmap;
-		Bitmap mediaBitmap = Bitmap.createBitmap(iconWidth, iconHeight,
-				ImageCacheUtilities.mBitmapFactoryOptions.inPreferredConfig);
+		Bitmap mediaBitmap = BitmapPool.getBitmap(iconWidth, iconHeight,
+				ImageCacheUtilities.mBitmapFactoryOptions.inPreferredConfig); // returned after caching (MediaManager)
+		mediaBitmap.eraseColor(resources.getColor(R.color.icon_background)); // a pooled bitmap's contents are undefined
 		Canvas mediaCanvas = new Canvas(mediaBitmap);
 		Paint mediaPaint = BitmapUtilities.getPaint(Color.BLACK, 1);
-		mediaCanvas.drawColor(resources.getColor(R.color.icon_background));
 
 		boolean noMediaIcon = false;
 		if (getFile() != null && getFile().exists()) {
@@ -248,6 +339,7 @@ public class MediaItem implements BaseColumns {
 					if (iconBitmap != null) {
 						mediaCanvas.drawBitmap(iconBitmap, (iconWidth - iconBitmap.getWidth()) / 2,
 								(iconHeight - iconBitmap.getHeight()) / 2, mediaPaint);
+						BitmapPool.putBitmap(iconBitmap);
 					} else {
 						noMediaIcon = true;
 					}
@@ -262,6 +354,7 @@ public class MediaItem implements BaseColumns {
 								BitmapUtilities.ScalingLogic.CROP);
 						mediaCanvas.drawBitmap(iconBitmap, (iconWidth - iconBitmap.getWidth()) / 2,
 								(iconHeight - iconBitmap.getHeight()) / 2, mediaPaint);
+						BitmapPool.putBitmap(iconBitmap);
 					} else {
 						noMediaIcon = true;
 					}
@@ -272,7 +365,7 @@ public class MediaItem implements BaseColumns {
 					break;
 
 				case MediaTabletProvider.TYPE_TEXT:
-					BitmapUtilities.drawScaledText(mMediaExtra, mediaCanvas, mediaPaint,
+					BitmapUtilities.drawScaledText(loadTextContent(), mediaCanvas, mediaPaint,
 							resources.getColor(R.color.icon_text_no_image), 0,
 							resources.getDimensionPixelSize(R.dimen.icon_text_padding), 0, false, 0, false, iconHeight,
 							resources.getDimensionPixelSize(R.dimen.icon_maximum_text_size),
@@ -294,6 +387,7 @@ public class MediaItem implements BaseColumns {
 							if (iconBitmap != null) {
 								mediaCanvas.drawBitmap(iconBitmap, (iconWidth - iconBitmap.getWidth()) / 2,
 										(iconHeight - iconBitmap.getHeight()) / 2, mediaPaint);
+								BitmapPool.putBitmap(iconBitmap);
 								hasImage = true;
 							}
 						}
@@ -419,10 +513,10 @@ public class MediaItem implements BaseColumns {
 			if (!personFile.exists() && MediaTablet.DIRECTORY_THUMBS != null) {
 				// create unknown person icon for unknown public media (bad place, but not many other places are better)
 				if (PersonItem.UNKNOWN_PERSON_ID.equals(parentOverlayId)) {
-					Bitmap personBitmap = Bitmap.createBitmap(personWidth, personHeight,
+					Bitmap personBitmap = BitmapPool.getBitmap(personWidth, personHeight,
 							ImageCacheUtilities.mBitmapFactoryOptions.inPreferredConfig);
+					personBitmap.eraseColor(resources.getColor(R.color.icon_background));
 					Canvas personCanvas = new Canvas(personBitmap);
-					personCanvas.drawColor(resources.getColor(R.color.icon_background));
 
 					Rect drawRect = new Rect(0, 0, personWidth, personHeight);
 					SVG personSVG = SVGParser.getSVGFromResource(resources, PersonItem.UNKNOWN_PERSON_ICON);
@@ -430,6 +524,7 @@ public class MediaItem implements BaseColumns {
 
 					BitmapUtilities.saveBitmap(personBitmap, Bitmap.CompressFormat.PNG, 100, personFile);
 					personCanvas = null;
+					BitmapPool.putBitmap(personBitmap);
 				} else {
 					PersonManager.reloadPersonIcon(resources, contentResolver, parentOverlayId);
 				}
@@ -449,6 +544,7 @@ public class MediaItem implements BaseColumns {
 					mediaPaint.setColor(resources.getColor(R.color.icon_person_border));
 					mediaPaint.setStyle(Paint.Style.STROKE);
 					mediaCanvas.drawRect(drawRect, mediaPaint);
+					BitmapPool.putBitmap(personBitmap);
 				}
 			}
 		}
@@ -484,6 +580,7 @@ public class MediaItem implements BaseColumns {
 		values.put(TYPE, mType);
 		values.put(VISIBILITY, mVisibility);
 		values.put(DELETED, mDeleted);
+		values.put(CONTENT_ID, mContentId);
 		return values;
 	}
 
@@ -498,6 +595,7 @@ public class MediaItem implements BaseColumns {
 		media.mType = existing.mType;
 		media.mVisibility = existing.mVisibility;
 		media.mDeleted = existing.mDeleted;
+		media.mContentId = existing.mContentId; // the new item shares the existing item's file
 		return media;
 	}
 
@@ -511,12 +609,13 @@ public class MediaItem implements BaseColumns {
 		media.mType = c.getInt(c.getColumnIndexOrThrow(TYPE));
 		media.mVisibility = c.getInt(c.getColumnIndexOrThrow(VISIBILITY));
 		media.mDeleted = c.getInt(c.getColumnIndexOrThrow(DELETED));
+		media.mContentId = c.getString(c.getColumnIndexOrThrow(CONTENT_ID));
 		return media;
 	}
 
 	@Override
 	public String toString() {
 		return "MediaItem[" + mInternalId + "," + mParentId + "," + mCreationDate + "," + mFileExtension + ","
-				+ mMediaExtra + "," + mType + "," + mVisibility + "," + mDeleted + "]";
+				+ mMediaExtra + "," + mType + "," + mVisibility + "," + mDeleted + "," + mContentId + "]";
 	}
 }
@@ -20,26 +20,92 @@
 
 package ac.robinson.mediatablet.provider;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+
 import ac.robinson.mediatablet.MediaTablet;
 import ac.robinson.util.BitmapUtilities.CacheTypeContainer;
 import ac.robinson.util.ImageCacheUtilities;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
 
+/**
+ * Safe to use from any thread: selection arguments are allocated per call, and selections are constant (with ?
+ * placeholders) so that repeated lookups reuse the provider's compiled statements rather than recompiling the SQL
+ */
 public class MediaManager {
 
-	private static String[] mArguments1 = new String[1];
+	// invalidated by MediaTabletProvider on every write to the media table
+	static final ItemCache<MediaItem> MEDIA_CACHE = new ItemCache<MediaItem>("Media", MediaTablet.ITEM_CACHE_SIZE_MEDIA);
 
-	private static String mMediaInternalIdSelection;
+	private static IconRenderQueue mIconRenderQueue = null; // renders new items' icons in the background, if set
+
+	private static final String mMediaInternalIdSelection;
+	private static final String mCountsAllSelection;
+	private static final String mCountsPublicSelection;
+	private static final String mCountsOwnerSelection;
+	private static final String mCountsOwnerPublicSelection;
 
 	static {
 		StringBuilder selection = new StringBuilder();
 		selection.append(MediaItem.INTERNAL_ID);
 		selection.append("=?");
 		mMediaInternalIdSelection = selection.toString();
+
+		selection.setLength(0);
+		selection.append(MediaItem.DELETED);
+		selection.append("=0");
+		mCountsAllSelection = selection.toString();
+
+		selection.setLength(0);
+		selection.append(MediaItem.VISIBILITY);
+		selection.append("=");
+		selection.append(MediaItem.MEDIA_PUBLIC);
+		selection.append(" AND ");
+		selection.append(mCountsAllSelection);
+		mCountsPublicSelection = selection.toString();
+
+		selection.setLength(0);
+		selection.append(MediaItem.PARENT_ID);
+		selection.append("=? AND ");
+		selection.append(mCountsAllSelection);
+		mCountsOwnerSelection = selection.toString();
+
+		selection.setLength(0);
+		selection.append(MediaItem.PARENT_ID);
+		selection.append("=? AND ");
+		selection.append(mCountsPublicSelection);
+		mCountsOwnerPublicSelection = selection.toString();
+	}
+
+	/**
+	 * Set the queue that renders icons for media added via addMedia (without loadIcon), so that they are ready before
+	 * the media is displayed
+	 */
+	public static void setIconRenderQueue(IconRenderQueue iconRenderQueue) {
+		mIconRenderQueue = iconRenderQueue;
+	}
+
+	/**
+	 * Stop any queued background rendering of a media item's icons (e.g., when the item is deleted)
+	 */
+	public static void cancelMediaIcons(String mediaId) {
+		final IconRenderQueue iconRenderQueue = mIconRenderQueue;
+		if (iconRenderQueue != null) {
+			iconRenderQueue.cancel(mediaId);
+		}
+	}
+
+	private static void queueMediaIcons(MediaItem media) {
+		final IconRenderQueue iconRenderQueue = mIconRenderQueue;
+		if (iconRenderQueue != null && !media.getDeleted()) {
+			iconRenderQueue.queue(media);
+		}
 	}
 
 	public static void reloadMediaIcon(Resources resources, ContentResolver contentResolver, MediaItem media,
@@ -49,8 +115,45 @@ public class MediaManager {
 		Bitmap mediaIcon = media.loadIcon(resources, cacheTypeContainer, contentResolver,
 				visibility == MediaItem.MEDIA_PUBLIC ? media.getParentId() : null);
 
-		ImageCacheUtilities.addIconToCache(MediaTablet.DIRECTORY_THUMBS, media.getCacheId(visibility), mediaIcon,
-				cacheTypeContainer.type, MediaTablet.ICON_CACHE_QUALITY);
+		final String cacheId = media.getCacheId(visibility);
+		final ThumbnailPack iconPack = ThumbnailPack.getIconPack();
+		final ByteArrayOutputStream iconData = new ByteArrayOutputStream();
+		if (iconPack != null && mediaIcon != null
+				&& mediaIcon.compress(cacheTypeContainer.type, MediaTablet.ICON_CACHE_QUALITY, iconData)
+				&& iconPack.put(cacheId, iconData.toByteArray())) {
+			new File(MediaTablet.DIRECTORY_THUMBS, cacheId).delete(); // an icon cached before the pack was used
+		} else {
+			ImageCacheUtilities.addIconToCache(MediaTablet.DIRECTORY_THUMBS, cacheId, mediaIcon,
+					cacheTypeContainer.type, MediaTablet.ICON_CACHE_QUALITY);
+		}
+		IconCache.remove(cacheId);
+		BitmapPool.putBitmap(mediaIcon); // only the saved icon is used from now on
+	}
+
+	/**
+	 * Check whether a media icon has been cached, either in the icon pack or (if cached before the pack was used, or
+	 * if the pack could not be written) as a file
+	 */
+	public static boolean hasMediaIcon(String cacheId) {
+		final ThumbnailPack iconPack = ThumbnailPack.getIconPack();
+		if (iconPack != null && iconPack.contains(cacheId)) {
+			return true;
+		}
+		return MediaTablet.DIRECTORY_THUMBS != null && new File(MediaTablet.DIRECTORY_THUMBS, cacheId).exists();
+	}
+
+	/**
+	 * Delete a cached media icon from the icon pack, the thumbnail directory and memory
+	 */
+	public static void deleteMediaIcon(String cacheId) {
+		final ThumbnailPack iconPack = ThumbnailPack.getIconPack();
+		if (iconPack != null) {
+			iconPack.remove(cacheId);
+		}
+		if (MediaTablet.DIRECTORY_THUMBS != null) {
+			new File(MediaTablet.DIRECTORY_THUMBS, cacheId).delete();
+		}
+		IconCache.remove(cacheId);
 	}
 
 	public static void reloadMediaIcon(Resources resources, ContentResolver contentResolver, String mediaId,
@@ -70,19 +173,44 @@ public class MediaManager {
 				if (media.isPubliclyShared()) {
 					reloadMediaIcon(resources, resolver, media, MediaItem.MEDIA_PUBLIC);
 				}
+			} else {
+				queueMediaIcons(media);
 			}
 			return media;
 		}
 		return null;
 	}
 
+	/**
+	 * Add a group of media items (e.g., the components of a narrative) in a single provider transaction, so that
+	 * observers are notified once rather than once per item
+	 * 
+	 * @return the number of items that were added
+	 */
+	public static int addMedia(ContentResolver resolver, ArrayList<MediaItem> mediaItems) {
+		if (mediaItems.size() <= 0) {
+			return 0;
+		}
+		final ContentValues[] values = new ContentValues[mediaItems.size()];
+		for (int i = 0, n = values.length; i < n; i++) {
+			values[i] = mediaItems.get(i).getContentValues();
+		}
+		final int count = resolver.bulkInsert(MediaItem.CONTENT_URI, values);
+		if (count > 0) {
+			for (MediaItem media : mediaItems) {
+				queueMediaIcons(media);
+			}
+		}
+		return count;
+	}
+
 	/** 
-	 * Set deleted instead; do this onDestroy (but think carefully about deleting narrative components)
+	 * Set deleted instead - DeletedItemCollector removes deleted items, their files and cached icons when idle (and
+	 * keeps narrative components that are still in use)
 	 */
 	@Deprecated
 	public static boolean deleteMedia(ContentResolver contentResolver, MediaItem media) {
-		final String[] arguments1 = mArguments1;
-		arguments1[0] = media.getInternalId();
+		final String[] arguments1 = new String[] { media.getInternalId() };
 		int count = contentResolver.delete(MediaItem.CONTENT_URI, mMediaInternalIdSelection, arguments1);
 		// delete cached icons (public and private) and media file
 		return count > 0;
@@ -100,17 +228,67 @@ public class MediaManager {
 				reloadMediaIcon(resources, contentResolver, media, MediaItem.MEDIA_PUBLIC);
 			}
 		}
-		final String[] arguments1 = mArguments1;
-		arguments1[0] = media.getInternalId();
+		final String[] arguments1 = new String[] { media.getInternalId() };
 		int count = contentResolver.update(MediaItem.CONTENT_URI, media.getContentValues(), mMediaInternalIdSelection,
 				arguments1);
+		if (media.getDeleted()) {
+			cancelMediaIcons(media.getInternalId());
+		}
 		return count == 1;
 	}
 
 	public static MediaItem findMediaByInternalId(ContentResolver contentResolver, String internalId) {
-		final String[] arguments1 = mArguments1;
-		arguments1[0] = internalId;
-		return findMedia(contentResolver, mMediaInternalIdSelection, arguments1);
+		MediaItem media = MEDIA_CACHE.get(internalId);
+		if (media == null) {
+			final int cacheGeneration = MEDIA_CACHE.getGeneration();
+			final String[] arguments1 = new String[] { internalId };
+			media = findMedia(contentResolver, mMediaInternalIdSelection, arguments1);
+			if (media == null) {
+				return null;
+			}
+			MEDIA_CACHE.put(internalId, media, cacheGeneration);
+		}
+		// callers often modify the item they find, so never return the cached instance itself
+		return MediaItem.fromExisting(media, media.getInternalId(), media.getParentId(), media.getCreationDate());
+	}
+
+	/**
+	 * Count the media items of each type that have not been deleted, using the trigger-maintained counts (a few rows
+	 * per person) rather than scanning the media table
+	 * 
+	 * @param parentId the owner of the media to count, or null to count every owner's media
+	 * @param publicOnly whether to count only publicly shared media
+	 * @return the number of items of each type, indexed by type - 1 (as in MediaTabletProvider.ALL_MEDIA_TYPES)
+	 */
+	public static int[] countMediaByType(ContentResolver contentResolver, String parentId, boolean publicOnly) {
+		final int[] typeCounts = MediaTabletProvider.NO_MEDIA_TYPES.clone();
+		final String clause;
+		final String[] arguments;
+		if (parentId != null) {
+			clause = publicOnly ? mCountsOwnerPublicSelection : mCountsOwnerSelection;
+			arguments = new String[] { parentId };
+		} else {
+			clause = publicOnly ? mCountsPublicSelection : mCountsAllSelection;
+			arguments = null;
+		}
+
+		Cursor c = null;
+		try {
+			c = contentResolver.query(MediaItem.COUNTS_URI, MediaItem.PROJECTION_COUNTS, clause, arguments, null);
+			final int typeIndex = c.getColumnIndexOrThrow(MediaItem.TYPE);
+			final int countIndex = c.getColumnIndexOrThrow(MediaItem.COUNT);
+			while (c.moveToNext()) {
+				final int type = c.getInt(typeIndex);
+				if (type > 0 && type <= typeCounts.length) {
+					typeCounts[type - 1] += c.getInt(countIndex);
+				}
+			}
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+		return typeCounts;
 	}
 
 	private static MediaItem findMedia(ContentResolver contentResolver, String clause, String[] arguments) {
@@ -21,15 +21,22 @@
 package ac.robinson.mediatablet.provider;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.UUID;
 
 import ac.robinson.mediatablet.MediaTablet;
 import ac.robinson.mediatablet.R;
 import ac.robinson.util.DebugUtilities;
+import ac.robinson.util.IOUtilities;
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
-import android.content.ContentUris;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -37,6 +44,8 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -44,7 +53,7 @@ public class MediaTabletProvider extends ContentProvider {
 
 	public static final String URI_AUTHORITY = MediaTablet.APPLICATION_NAME;
 	private static final String DATABASE_NAME = URI_AUTHORITY + ".db";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 7;
 
 	public static final String URI_PREFIX = "content://";
 	public static final String URI_SEPARATOR = File.separator;
@@ -53,6 +62,31 @@ public class MediaTabletProvider extends ContentProvider {
 	public static final String HOMESTEADS_LOCATION = "homesteads";
 	public static final String PEOPLE_LOCATION = "people";
 	public static final String MEDIA_LOCATION = "media";
+	public static final String MEDIA_COUNTS_LOCATION = "media_counts";
+	public static final String MEDIA_CONTENT_LOCATION = "media_content"; // references to MediaContentStore files
+
+	// full-text search: content://mediatablet/search/media?q=<text> (and the same for people) returns matching items
+	public static final String SEARCH_LOCATION = "search";
+	public static final String QUERY_PARAMETER_SEARCH = "q";
+
+	// the full-text index tables, with one row per item (docid is the item's _id)
+	private static final String MEDIA_SEARCH_LOCATION = "media_search";
+	private static final String PEOPLE_SEARCH_LOCATION = "people_search";
+	private static final String SEARCH_FILE_NAME = "file_name";
+	private static final String SEARCH_TEXT_CONTENT = "text_content";
+	private static final String SEARCH_NAME = "name";
+
+	// select the media items or people that match a query from getSearchQuery (passed as the selection argument)
+	public static final String MEDIA_SEARCH_SELECTION = MediaItem._ID + " IN (SELECT docid FROM "
+			+ MEDIA_SEARCH_LOCATION + " WHERE " + MEDIA_SEARCH_LOCATION + " MATCH ?)";
+	public static final String PEOPLE_SEARCH_SELECTION = PersonItem._ID + " IN (SELECT docid FROM "
+			+ PEOPLE_SEARCH_LOCATION + " WHERE " + PEOPLE_SEARCH_LOCATION + " MATCH ?)";
+
+	// for keyset-paged media queries (see MediaItem.getPagedContentUri) - results are sorted by PAGED_SORT_ORDER; the
+	// limit can also be used on its own (with any table and sort order), e.g., to read items in batches
+	public static final String QUERY_PARAMETER_LIMIT = "limit";
+	public static final String QUERY_PARAMETER_AFTER_DATE = "after_date";
+	public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
 
 	// *must* start at 1... quite hacky
 	public static final int TYPE_IMAGE_BACK = 1; // normal (rear) camera
@@ -76,10 +110,41 @@ public class MediaTabletProvider extends ContentProvider {
 		URI_MATCHER.addURI(URI_AUTHORITY, HOMESTEADS_LOCATION, R.id.uri_homesteads);
 		URI_MATCHER.addURI(URI_AUTHORITY, PEOPLE_LOCATION, R.id.uri_people);
 		URI_MATCHER.addURI(URI_AUTHORITY, MEDIA_LOCATION, R.id.uri_media);
+		URI_MATCHER.addURI(URI_AUTHORITY, MEDIA_COUNTS_LOCATION, R.id.uri_media_counts); // read only
+		URI_MATCHER.addURI(URI_AUTHORITY, MEDIA_CONTENT_LOCATION, R.id.uri_media_content); // read only
+
+		// single items, by internal id (e.g., content://mediatablet/media/<internal_id>)
+		URI_MATCHER.addURI(URI_AUTHORITY, HOMESTEADS_LOCATION + "/*", R.id.uri_homestead_item);
+		URI_MATCHER.addURI(URI_AUTHORITY, PEOPLE_LOCATION + "/*", R.id.uri_person_item);
+		URI_MATCHER.addURI(URI_AUTHORITY, MEDIA_LOCATION + "/*", R.id.uri_media_item);
+
+		// full-text search (the search text is a query parameter)
+		URI_MATCHER.addURI(URI_AUTHORITY, SEARCH_LOCATION + URI_SEPARATOR + PEOPLE_LOCATION, R.id.uri_person_search);
+		URI_MATCHER.addURI(URI_AUTHORITY, SEARCH_LOCATION + URI_SEPARATOR + MEDIA_LOCATION, R.id.uri_media_search);
 	}
 
+	// the columns that may be requested in a projection for each table
+	private static final HashSet<String> HOMESTEADS_COLUMNS = new HashSet<String>(
+			Arrays.asList(HomesteadItem.PROJECTION_ALL));
+	private static final HashSet<String> PEOPLE_COLUMNS = new HashSet<String>(Arrays.asList(PersonItem.PROJECTION_ALL));
+	private static final HashSet<String> MEDIA_COLUMNS = new HashSet<String>(Arrays.asList(MediaItem.PROJECTION_ALL));
+	private static final HashSet<String> MEDIA_COUNTS_COLUMNS = new HashSet<String>(
+			Arrays.asList(MediaItem.PROJECTION_COUNTS));
+	private static final HashSet<String> MEDIA_CONTENT_COLUMNS = new HashSet<String>(
+			Arrays.asList(MediaItem.PROJECTION_CONTENT_REFERENCES));
+
+	// the selection used by the *Manager classes for single item lookups and writes (same column name in all tables)
+	private static final String INTERNAL_ID_SELECTION = MediaItem.INTERNAL_ID + "=?";
+
+	// timing and row counts for every operation, for finding slow queries on older devices (see getQueryStatistics)
+	private static final QueryStatistics QUERY_STATISTICS = new QueryStatistics(
+			MediaTablet.PROVIDER_SLOW_OPERATION_THRESHOLD, MediaTablet.PROVIDER_SLOW_LOG_SIZE);
+
 	private SQLiteOpenHelper mOpenHelper;
 
+	// non-null when the current thread is inside bulkInsert or applyBatch - notifications are sent once at the end
+	private final ThreadLocal<HashSet<Uri>> mBatchNotifications = new ThreadLocal<HashSet<Uri>>();
+
 	@Override
 	public boolean onCreate() {
 		mOpenHelper = new DatabaseHelper(getContext());
@@ -94,19 +159,60 @@ public class MediaTabletProvider extends ContentProvider {
 
 		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 
-		switch (URI_MATCHER.match(uri)) {
+		HashSet<String> validColumns;
+		final int uriType = URI_MATCHER.match(uri);
+		switch (uriType) {
 			case R.id.uri_homesteads:
+			case R.id.uri_homestead_item:
 				qb.setTables(HOMESTEADS_LOCATION);
+				validColumns = HOMESTEADS_COLUMNS;
 				break;
 			case R.id.uri_people:
+			case R.id.uri_person_item:
+			case R.id.uri_person_search:
 				qb.setTables(PEOPLE_LOCATION);
+				validColumns = PEOPLE_COLUMNS;
 				break;
 			case R.id.uri_media:
+			case R.id.uri_media_item:
+			case R.id.uri_media_search:
 				qb.setTables(MEDIA_LOCATION);
+				validColumns = MEDIA_COLUMNS;
+				break;
+			case R.id.uri_media_counts:
+				qb.setTables(MEDIA_COUNTS_LOCATION);
+				validColumns = MEDIA_COUNTS_COLUMNS;
+				break;
+			case R.id.uri_media_content:
+				qb.setTables(MEDIA_CONTENT_LOCATION);
+				validColumns = MEDIA_CONTENT_COLUMNS;
 				break;
 			default:
 				throw new IllegalArgumentException("Unknown URI " + uri);
 		}
+		if (uriType == R.id.uri_person_search || uriType == R.id.uri_media_search) {
+			final String searchQuery = getSearchQuery(uri.getQueryParameter(QUERY_PARAMETER_SEARCH));
+			if (searchQuery != null) {
+				selection = appendSelection(selection, uriType == R.id.uri_media_search ? MEDIA_SEARCH_SELECTION
+						: PEOPLE_SEARCH_SELECTION);
+				selectionArgs = appendSelectionArgument(selectionArgs, searchQuery);
+			} else {
+				selection = appendSelection(selection, "0"); // nothing to search for
+			}
+		}
+		if (isItemUri(uriType)) {
+			selection = appendSelection(selection, INTERNAL_ID_SELECTION);
+			selectionArgs = appendSelectionArgument(selectionArgs, uri.getLastPathSegment());
+		}
+
+		// trimmed projections (e.g., MediaItem.PROJECTION_GRID) are encouraged, but must only contain real columns
+		if (projection != null) {
+			for (String column : projection) {
+				if (!validColumns.contains(column)) {
+					throw new IllegalArgumentException("Invalid column " + column + " requested from " + uri);
+				}
+			}
+		}
 
 		// if no sort order is specified use none
 		String orderBy;
@@ -116,8 +222,33 @@ public class MediaTabletProvider extends ContentProvider {
 			orderBy = sortOrder;
 		}
 
+		// paged media queries: the next page starts after the last row of the previous one (values are parsed as
+		// numbers, so it is safe to append them to the query directly); sort order must match the keyset
+		String limit = null;
+		String limitParameter = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+		if (limitParameter != null) {
+			try {
+				limit = Integer.toString(Integer.parseInt(limitParameter));
+				String afterDateParameter = uri.getQueryParameter(QUERY_PARAMETER_AFTER_DATE);
+				String afterIdParameter = uri.getQueryParameter(QUERY_PARAMETER_AFTER_ID);
+				if (orderBy == null || (afterDateParameter != null && afterIdParameter != null)) {
+					orderBy = MediaItem.PAGED_SORT_ORDER;
+				}
+				if (afterDateParameter != null && afterIdParameter != null) {
+					qb.appendWhere(getPageSelection(Long.parseLong(afterDateParameter),
+							Long.parseLong(afterIdParameter)));
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid paging parameters in " + uri);
+			}
+		}
+
 		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-		Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+		final long startTime = SystemClock.uptimeMillis();
+		Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy, limit);
+		final int rowCount = c.getCount(); // the query is only run when the cursor is first used - count so it's timed
+		QUERY_STATISTICS.record("query", getUriShape(uri, uriType, limit != null), selection, uri,
+				SystemClock.uptimeMillis() - startTime, rowCount);
 		c.setNotificationUri(getContext().getContentResolver(), uri);
 
 		return c;
@@ -128,8 +259,17 @@ public class MediaTabletProvider extends ContentProvider {
 			case R.id.uri_homesteads:
 			case R.id.uri_people:
 			case R.id.uri_media:
+			case R.id.uri_person_search:
+			case R.id.uri_media_search:
+			case R.id.uri_media_counts:
+			case R.id.uri_media_content:
 				return "vnd.android.cursor.dir/vnd." + URI_PACKAGE; // do these need to be unique?
 
+			case R.id.uri_homestead_item:
+			case R.id.uri_person_item:
+			case R.id.uri_media_item:
+				return "vnd.android.cursor.item/vnd." + URI_PACKAGE;
+
 			default:
 				throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -148,27 +288,37 @@ public class MediaTabletProvider extends ContentProvider {
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
 		long rowId = 0;
-		Uri contentUri = null;
-		switch (URI_MATCHER.match(uri)) {
+		final int uriType = URI_MATCHER.match(uri);
+		final long startTime = SystemClock.uptimeMillis();
+		switch (uriType) {
 			case R.id.uri_homesteads:
 				rowId = db.insert(HOMESTEADS_LOCATION, null, values);
-				contentUri = HomesteadItem.CONTENT_URI;
 				break;
 			case R.id.uri_people:
 				rowId = db.insert(PEOPLE_LOCATION, null, values);
-				contentUri = PersonItem.CONTENT_URI;
 				break;
 
 			case R.id.uri_media:
 				rowId = db.insert(MEDIA_LOCATION, null, values);
-				contentUri = MediaItem.CONTENT_URI;
+				final Integer type = values.getAsInteger(MediaItem.TYPE);
+				if (rowId > 0 && type != null && type == TYPE_TEXT) {
+					indexTextContent(db, rowId, MediaItem.getFile(values.getAsString(MediaItem.PARENT_ID),
+							values.getAsString(MediaItem.INTERNAL_ID), values.getAsString(MediaItem.FILE_EXTENSION),
+							values.getAsString(MediaItem.CONTENT_ID)));
+				}
 				break;
+
+			default:
+				throw new IllegalArgumentException("Items must be inserted via their content URI, not " + uri);
 		}
+		QUERY_STATISTICS.record("insert", getUriShape(uri, uriType, false), null, uri,
+				SystemClock.uptimeMillis() - startTime, rowId > 0 ? 1 : 0);
 
 		if (rowId > 0) {
-			Uri insertUri = ContentUris.withAppendedId(contentUri, rowId);
-			getContext().getContentResolver().notifyChange(uri, null);
-			return insertUri;
+			final String internalId = values.getAsString(MediaItem.INTERNAL_ID);
+			invalidateCaches(uriType, internalId);
+			notifyChange(uriType, internalId);
+			return internalId != null ? getItemUri(uriType, internalId) : getContentUri(uriType);
 		}
 		throw new SQLException("Failed to insert row into " + uri);
 	}
@@ -178,22 +328,35 @@ public class MediaTabletProvider extends ContentProvider {
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
 		int count;
-		switch (URI_MATCHER.match(uri)) {
+		final int uriType = URI_MATCHER.match(uri);
+		final String internalId = getInternalId(uri, uriType, selectionClause, selectionArgs);
+		if (isItemUri(uriType)) {
+			selectionClause = appendSelection(selectionClause, INTERNAL_ID_SELECTION);
+			selectionArgs = appendSelectionArgument(selectionArgs, uri.getLastPathSegment());
+		}
+		final long startTime = SystemClock.uptimeMillis();
+		switch (uriType) {
 			case R.id.uri_homesteads:
+			case R.id.uri_homestead_item:
 				count = db.delete(HOMESTEADS_LOCATION, selectionClause, selectionArgs);
 				break;
 			case R.id.uri_people:
+			case R.id.uri_person_item:
 				count = db.delete(PEOPLE_LOCATION, selectionClause, selectionArgs);
 				break;
 			case R.id.uri_media:
+			case R.id.uri_media_item:
 				count = db.delete(MEDIA_LOCATION, selectionClause, selectionArgs);
 				break;
 			default:
 				throw new IllegalArgumentException("Unknown URI " + uri);
 		}
+		QUERY_STATISTICS.record("delete", getUriShape(uri, uriType, false), selectionClause, uri,
+				SystemClock.uptimeMillis() - startTime, count);
 
 		if (count > 0) {
-			getContext().getContentResolver().notifyChange(uri, null);
+			invalidateCaches(uriType, internalId);
+			notifyChange(uriType, internalId);
 		}
 		return count;
 	}
@@ -211,27 +374,350 @@ public class MediaTabletProvider extends ContentProvider {
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
 		int rowsAffected = 0;
-		switch (URI_MATCHER.match(uri)) {
+		final int uriType = URI_MATCHER.match(uri);
+		final String internalId = getInternalId(uri, uriType, selectionClause, selectionArgs);
+		if (isItemUri(uriType)) {
+			selectionClause = appendSelection(selectionClause, INTERNAL_ID_SELECTION);
+			selectionArgs = appendSelectionArgument(selectionArgs, uri.getLastPathSegment());
+		}
+		final long startTime = SystemClock.uptimeMillis();
+		switch (uriType) {
 			case R.id.uri_media:
+			case R.id.uri_media_item:
 				rowsAffected = db.update(MEDIA_LOCATION, values, selectionClause, selectionArgs);
 				break;
 			case R.id.uri_people:
+			case R.id.uri_person_item:
 				rowsAffected = db.update(PEOPLE_LOCATION, values, selectionClause, selectionArgs);
 				break;
 			case R.id.uri_homesteads:
+			case R.id.uri_homestead_item:
 				rowsAffected = db.update(HOMESTEADS_LOCATION, values, selectionClause, selectionArgs);
 				break;
 		}
+		QUERY_STATISTICS.record("update", getUriShape(uri, uriType, false), selectionClause, uri,
+				SystemClock.uptimeMillis() - startTime, rowsAffected);
 
 		if (rowsAffected > 0) {
-			getContext().getContentResolver().notifyChange(uri, null);
+			invalidateCaches(uriType, internalId);
+			notifyChange(uriType, internalId);
 		}
 		return rowsAffected;
 	}
 
+	/**
+	 * Get the internal id from a single item URI (e.g., as passed to ContentObserver.onChange), or null if the URI
+	 * refers to a whole table
+	 */
+	public static String getItemInternalId(Uri uri) {
+		if (uri != null && isItemUri(URI_MATCHER.match(uri))) {
+			return uri.getLastPathSegment();
+		}
+		return null;
+	}
+
+	/**
+	 * Get the URI path without any item id or query values (e.g., /media/*), for grouping statistics
+	 */
+	private static String getUriShape(Uri uri, int uriType, boolean paged) {
+		String path = uri.getPath();
+		if (isItemUri(uriType)) {
+			path = path.substring(0, path.lastIndexOf(URI_SEPARATOR) + 1) + "*";
+		}
+		return path + (paged ? "?" + QUERY_PARAMETER_LIMIT : "");
+	}
+
+	/**
+	 * Get the selection for the media items that follow the given item in PAGED_SORT_ORDER
+	 */
+	static String getPageSelection(long afterDateCreated, long afterId) {
+		return MediaItem.DATE_CREATED + "<=" + afterDateCreated + " AND (" + MediaItem.DATE_CREATED + "<"
+				+ afterDateCreated + " OR " + MediaItem._ID + "<" + afterId + ")";
+	}
+
+	private static boolean isItemUri(int uriType) {
+		return uriType == R.id.uri_homestead_item || uriType == R.id.uri_person_item || uriType == R.id.uri_media_item;
+	}
+
+	private static String appendSelection(String selection, String clause) {
+		if (TextUtils.isEmpty(selection)) {
+			return clause;
+		}
+		return "(" + selection + ") AND " + clause;
+	}
+
+	private static String[] appendSelectionArgument(String[] selectionArgs, String argument) {
+		if (selectionArgs == null || selectionArgs.length == 0) {
+			return new String[] { argument };
+		}
+		String[] newSelectionArgs = new String[selectionArgs.length + 1];
+		System.arraycopy(selectionArgs, 0, newSelectionArgs, 0, selectionArgs.length);
+		newSelectionArgs[selectionArgs.length] = argument;
+		return newSelectionArgs;
+	}
+
+	/**
+	 * Convert free text into a full-text query that matches items containing every word (as a prefix, so that results
+	 * can be shown while typing) - punctuation is removed, so the text can never change the query syntax
+	 * 
+	 * @return the query, or null if the text contains no searchable words
+	 */
+	public static String getSearchQuery(CharSequence text) {
+		if (text == null) {
+			return null;
+		}
+		final StringBuilder query = new StringBuilder();
+		final StringBuilder word = new StringBuilder();
+		for (int i = 0, n = text.length(); i <= n; i++) {
+			final char c = i < n ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				word.append(Character.toLowerCase(c)); // lower case so that words can't be read as AND, OR etc.
+			} else if (word.length() > 0) {
+				if (query.length() > 0) {
+					query.append(' ');
+				}
+				query.append(word);
+				query.append('*');
+				word.setLength(0);
+			}
+		}
+		return query.length() > 0 ? query.toString() : null;
+	}
+
+	/**
+	 * Add an item's text content to the search index (the index's file name column is maintained by triggers, but
+	 * text content is only stored in the item's file) - must be called after the item has been inserted
+	 */
+	private static void indexTextContent(SQLiteDatabase db, long rowId, File textFile) {
+		if (MediaTablet.DIRECTORY_STORAGE == null || !textFile.exists()) {
+			return;
+		}
+		final String textContent = IOUtilities.getFileContents(textFile.getAbsolutePath());
+		if (textContent != null) {
+			db.execSQL("UPDATE " + MEDIA_SEARCH_LOCATION + " SET " + SEARCH_TEXT_CONTENT + "=? WHERE docid=?",
+					new Object[] { textContent, rowId });
+		}
+	}
+
+	/**
+	 * Get the internal id of the single item that a write will affect - either from an item URI, or from a selection
+	 * by internal id (as the *Manager classes use) - or null if the write could affect more than one item
+	 */
+	private static String getInternalId(Uri uri, int uriType, String selection, String[] selectionArgs) {
+		if (isItemUri(uriType)) {
+			return uri.getLastPathSegment();
+		} else if (INTERNAL_ID_SELECTION.equals(selection) && selectionArgs != null && selectionArgs.length == 1) {
+			return selectionArgs[0];
+		}
+		return null;
+	}
+
+	/**
+	 * Get the collection URI of the table that the given URI type refers to
+	 */
+	private static Uri getContentUri(int uriType) {
+		switch (uriType) {
+			case R.id.uri_homesteads:
+			case R.id.uri_homestead_item:
+				return HomesteadItem.CONTENT_URI;
+			case R.id.uri_people:
+			case R.id.uri_person_item:
+				return PersonItem.CONTENT_URI;
+			case R.id.uri_media:
+			case R.id.uri_media_item:
+				return MediaItem.CONTENT_URI;
+			default:
+				return null;
+		}
+	}
+
+	private static Uri getItemUri(int uriType, String internalId) {
+		return Uri.withAppendedPath(getContentUri(uriType), internalId);
+	}
+
+	/**
+	 * Remove any cached items (see ItemCache) that may have been changed by a write - this is precise when the write
+	 * affected a single item (internalId is not null); otherwise the table's cache is cleared
+	 */
+	private static void invalidateCaches(int uriType, String internalId) {
+		ItemCache<?> cache;
+		switch (uriType) {
+			case R.id.uri_homesteads:
+			case R.id.uri_homestead_item:
+				cache = HomesteadManager.HOMESTEAD_CACHE;
+				break;
+			case R.id.uri_people:
+			case R.id.uri_person_item:
+				cache = PersonManager.PERSON_CACHE;
+				PersonManager.PERSON_IDS_BY_PARENT_CACHE.clear(); // any person write can change a homestead's list
+				break;
+			case R.id.uri_media:
+			case R.id.uri_media_item:
+				cache = MediaManager.MEDIA_CACHE;
+				break;
+			default:
+				return;
+		}
+		if (internalId != null) {
+			cache.remove(internalId);
+		} else {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Get the current size, hit and miss counts of the item caches, for tuning ITEM_CACHE_SIZE_* in MediaTablet
+	 */
+	public static String getCacheStatistics() {
+		return MediaManager.MEDIA_CACHE + "\n" + PersonManager.PERSON_CACHE + "\n"
+				+ PersonManager.PERSON_IDS_BY_PARENT_CACHE + "\n" + HomesteadManager.HOMESTEAD_CACHE;
+	}
+
+	/**
+	 * Get latency histograms and row counts for each type of operation (by URI and selection), and a log of the most
+	 * recent slow operations - see MediaTablet.PROVIDER_SLOW_OPERATION_THRESHOLD
+	 */
+	public static String getQueryStatistics() {
+		return QUERY_STATISTICS.toString();
+	}
+
+	public static void clearQueryStatistics() {
+		QUERY_STATISTICS.clear();
+	}
+
+	/**
+	 * Insert all of the given rows in a single transaction, sending only one (table-level) change notification when
+	 * finished
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		getType(uri); // so we don't get the database unless necessary
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+		int count = 0;
+		HashSet<Uri> batchNotifications = beginBatch();
+		beginTransaction(db);
+		try {
+			for (ContentValues rowValues : values) {
+				insert(uri, rowValues);
+				count += 1;
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			endBatch(batchNotifications);
+		}
+		return count;
+	}
+
+	/**
+	 * Apply all of the given operations in a single transaction, coalescing their change notifications so that each
+	 * affected URI is only notified once, after the transaction has been committed
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+		ContentProviderResult[] results;
+		HashSet<Uri> batchNotifications = beginBatch();
+		beginTransaction(db);
+		try {
+			results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			endBatch(batchNotifications);
+		}
+		return results;
+	}
+
+	/**
+	 * With write-ahead logging, an immediate (rather than exclusive) transaction lets the grids keep reading while a
+	 * large import is being written; writers are still serialised, as there is only ever one write connection
+	 */
+	private static void beginTransaction(SQLiteDatabase db) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			beginTransactionNonExclusive(db);
+		} else {
+			db.beginTransaction();
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void beginTransactionNonExclusive(SQLiteDatabase db) {
+		db.beginTransactionNonExclusive();
+	}
+
+	private HashSet<Uri> beginBatch() {
+		HashSet<Uri> batchNotifications = mBatchNotifications.get();
+		if (batchNotifications == null) {
+			batchNotifications = new HashSet<Uri>();
+			mBatchNotifications.set(batchNotifications);
+			return batchNotifications;
+		}
+		return null; // nested batch - the outermost batch will send the notifications
+	}
+
+	private void endBatch(HashSet<Uri> batchNotifications) {
+		if (batchNotifications != null) {
+			mBatchNotifications.remove();
+			for (Uri uri : batchNotifications) {
+				// other threads could have cached uncommitted-over values during the transaction - clear them too
+				invalidateCaches(URI_MATCHER.match(uri), null);
+				getContext().getContentResolver().notifyChange(uri, null);
+			}
+		}
+	}
+
+	/**
+	 * Notify observers of a change to a single item (content://mediatablet/media/<internal_id>) if internalId is not
+	 * null, or to the whole table otherwise. Item notifications also reach observers of the table URI that registered
+	 * for descendants, but they can use the item URI to update just that item rather than re-querying. Batches notify
+	 * once per table instead of once per item.
+	 */
+	private void notifyChange(int uriType, String internalId) {
+		HashSet<Uri> batchNotifications = mBatchNotifications.get();
+		if (batchNotifications != null) {
+			batchNotifications.add(getContentUri(uriType));
+		} else {
+			getContext().getContentResolver().notifyChange(
+					internalId != null ? getItemUri(uriType, internalId) : getContentUri(uriType), null);
+		}
+
+		// media counts are updated by triggers, so any media change could change them
+		if (getContentUri(uriType) == MediaItem.CONTENT_URI) {
+			if (batchNotifications != null) {
+				batchNotifications.add(MediaItem.COUNTS_URI);
+			} else {
+				getContext().getContentResolver().notifyChange(MediaItem.COUNTS_URI, null);
+			}
+		}
+	}
+
+	/**
+	 * Open a separate database with the same schema, indexes and triggers as the media database (e.g., so that the
+	 * benchmarks never change the user's media) - remove it with Context.deleteDatabase when finished
+	 */
+	static SQLiteOpenHelper getDatabaseHelper(Context context, String databaseName) {
+		return new DatabaseHelper(context, databaseName);
+	}
+
 	private static class DatabaseHelper extends SQLiteOpenHelper {
 		DatabaseHelper(Context context) {
-			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+			this(context, DATABASE_NAME);
+		}
+
+		DatabaseHelper(Context context, String databaseName) {
+			super(context, databaseName, null, DATABASE_VERSION);
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+				enableWriteAheadLogging(this); // applied before the database is first opened
+			}
+		}
+
+		@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+		private static void enableWriteAheadLogging(SQLiteOpenHelper helper) {
+			helper.setWriteAheadLoggingEnabled(true);
 		}
 
 		@Override
@@ -270,7 +756,7 @@ public class MediaTabletProvider extends ContentProvider {
 					+ MediaItem.PARENT_ID + " TEXT, " // the GUID of the parent of this media item
 					+ MediaItem.DATE_CREATED + " INTEGER, " // the timestamp when this media item was created
 					+ MediaItem.FILE_EXTENSION + " TEXT, " // the file extension of this media item
-					+ MediaItem.MEDIA_EXTRA + " TEXT, " // the original name of this media item, or its text content
+					+ MediaItem.MEDIA_EXTRA + " TEXT, " // the original name of this media item (never its text content)
 					+ MediaItem.TYPE + " INTEGER, " // the type of this media (this.TYPE_<x>)
 					+ MediaItem.VISIBILITY + " INTEGER, " // whether shared: MediaItem.MEDIA_PUBLIC or MEDIA_PRIVATE
 					+ MediaItem.DELETED + " INTEGER);"); // whether this media item has been deleted
@@ -283,15 +769,268 @@ public class MediaTabletProvider extends ContentProvider {
 			db.execSQL("CREATE INDEX " + MEDIA_LOCATION + "Index" + MediaItem.VISIBILITY + " ON " + MEDIA_LOCATION
 					+ "(" + MediaItem.VISIBILITY + ");");
 
+			upgradeDatabase(db, 1, DATABASE_VERSION);
+		}
+
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			super.onOpen(db);
+			// the *Manager lookups use a small set of constant selections; make sure their compiled statements are
+			// never evicted by the (more varied) browser queries
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+				setMaxSqlCacheSize(db);
+
+				// write-ahead logging lets queries (e.g., grid scrolling) run from a pool of read connections while an
+				// import is being written, rather than waiting for it to finish - before Jelly Bean it can only be
+				// enabled once the database is open (Android sizes the read connection pool itself)
+				if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+					enableWriteAheadLogging(db);
+				}
+			}
+		}
+
+		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+		private void setMaxSqlCacheSize(SQLiteDatabase db) {
+			db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+		}
+
+		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+		private void enableWriteAheadLogging(SQLiteDatabase db) {
+			if (!db.enableWriteAheadLogging() && MediaTablet.DEBUG) {
+				Log.d(DebugUtilities.getLogTag(this), "Unable to enable write-ahead logging");
+			}
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 			if (MediaTablet.DEBUG) {
 				Log.d(DebugUtilities.getLogTag(this), "Database upgrade requested from version " + oldVersion + " to "
-						+ newVersion + " - ignoring.");
+						+ newVersion);
+			}
+			upgradeDatabase(db, oldVersion, newVersion);
+		}
+
+		/**
+		 * Apply each schema migration in turn, from oldVersion + 1 up to and including newVersion. onCreate always
+		 * builds the version 1 schema and then calls this, so new and upgraded databases follow the same path. Note
+		 * that SQLiteOpenHelper runs onCreate and onUpgrade inside a transaction, so a failed step is rolled back.
+		 * 
+		 * To change the schema: increment DATABASE_VERSION and add a case for the new version number below.
+		 */
+		private void upgradeDatabase(SQLiteDatabase db, int oldVersion, int newVersion) {
+			for (int version = oldVersion + 1; version <= newVersion; version++) {
+				switch (version) {
+					case 2:
+						// composite indexes for the media and people browser queries, ordered so that the equality
+						// columns come first and the sort column follows - type is last so that type IN (...) is
+						// filtered from the index without breaking the date order (avoiding a temporary sort b-tree)
+						db.execSQL("DROP INDEX IF EXISTS " + MEDIA_LOCATION + "Index" + MediaItem.PARENT_ID + ";");
+						db.execSQL("DROP INDEX IF EXISTS " + MEDIA_LOCATION + "Index" + MediaItem.VISIBILITY + ";");
+						db.execSQL("CREATE INDEX IF NOT EXISTS " + MEDIA_LOCATION + "IndexOwnerBrowser ON "
+								+ MEDIA_LOCATION + "(" + MediaItem.PARENT_ID + ", " + MediaItem.DELETED + ", "
+								+ MediaItem.DATE_CREATED + ", " + MediaItem.TYPE + ");");
+						db.execSQL("CREATE INDEX IF NOT EXISTS " + MEDIA_LOCATION + "IndexPublicBrowser ON "
+								+ MEDIA_LOCATION + "(" + MediaItem.VISIBILITY + ", " + MediaItem.DELETED + ", "
+								+ MediaItem.DATE_CREATED + ", " + MediaItem.TYPE + ");");
+
+						db.execSQL("DROP INDEX IF EXISTS " + PEOPLE_LOCATION + "Index" + PersonItem.PARENT_ID + ";");
+						db.execSQL("CREATE INDEX IF NOT EXISTS " + PEOPLE_LOCATION + "IndexBrowser ON "
+								+ PEOPLE_LOCATION + "(" + PersonItem.PARENT_ID + ", " + PersonItem.DELETED + ", "
+								+ PersonItem.LOCK_STATUS + ", " + PersonItem.UNLOCKED_TIMESTAMP + ");");
+						db.execSQL("ANALYZE;"); // so the query planner prefers the new indexes
+						break;
+
+					case 3:
+						// text items used to store their entire content in the (indexed) media_extra column; the
+						// content is already in each item's text file, so replace it with the file's name (content
+						// can end in .txt, so every text item is changed unless it already has this name)
+						db.execSQL("UPDATE " + MEDIA_LOCATION + " SET " + MediaItem.MEDIA_EXTRA + "="
+								+ MediaItem.INTERNAL_ID + " || '.txt' WHERE " + MediaItem.TYPE + "="
+								+ TYPE_TEXT + " AND " + MediaItem.MEDIA_EXTRA + "!=" + MediaItem.INTERNAL_ID
+								+ " || '.txt';");
+						db.execSQL("UPDATE " + MEDIA_LOCATION + " SET " + MediaItem.MEDIA_EXTRA + "=substr("
+								+ MediaItem.MEDIA_EXTRA + ", 1, " + MediaItem.MAXIMUM_ORIGINAL_FILE_NAME_LENGTH
+								+ ") WHERE length(" + MediaItem.MEDIA_EXTRA + ") > "
+								+ MediaItem.MAXIMUM_ORIGINAL_FILE_NAME_LENGTH + ";");
+						break;
+
+					case 4:
+						// keyset paging sorts by (date_created, _id) - _id is the rowid, which SQLite stores at the end
+						// of every index entry, so date_created must be the last indexed column for the index to
+						// provide this order directly (type is now checked against the table row instead)
+						db.execSQL("DROP INDEX IF EXISTS " + MEDIA_LOCATION + "IndexOwnerBrowser;");
+						db.execSQL("DROP INDEX IF EXISTS " + MEDIA_LOCATION + "IndexPublicBrowser;");
+						db.execSQL("CREATE INDEX IF NOT EXISTS " + MEDIA_LOCATION + "IndexOwnerBrowser ON "
+								+ MEDIA_LOCATION + "(" + MediaItem.PARENT_ID + ", " + MediaItem.DELETED + ", "
+								+ MediaItem.DATE_CREATED + ");");
+						db.execSQL("CREATE INDEX IF NOT EXISTS " + MEDIA_LOCATION + "IndexPublicBrowser ON "
+								+ MEDIA_LOCATION + "(" + MediaItem.VISIBILITY + ", " + MediaItem.DELETED + ", "
+								+ MediaItem.DATE_CREATED + ");");
+						break;
+
+					case 5:
+						// full-text search indexes (FTS3, as FTS4 is not available before Honeycomb) - names are kept
+						// in sync by triggers; text content is stored in files, so is added by insert()
+						db.execSQL("CREATE VIRTUAL TABLE " + MEDIA_SEARCH_LOCATION + " USING fts3(" + SEARCH_FILE_NAME
+								+ ", " + SEARCH_TEXT_CONTENT + ");");
+						db.execSQL("CREATE TRIGGER " + MEDIA_SEARCH_LOCATION + "Insert AFTER INSERT ON "
+								+ MEDIA_LOCATION + " BEGIN INSERT INTO " + MEDIA_SEARCH_LOCATION + "(docid, "
+								+ SEARCH_FILE_NAME + ") VALUES (new." + MediaItem._ID + ", new." + MediaItem.MEDIA_EXTRA
+								+ "); END;");
+						db.execSQL("CREATE TRIGGER " + MEDIA_SEARCH_LOCATION + "Update AFTER UPDATE OF "
+								+ MediaItem.MEDIA_EXTRA + " ON " + MEDIA_LOCATION + " BEGIN UPDATE "
+								+ MEDIA_SEARCH_LOCATION + " SET " + SEARCH_FILE_NAME + "=new." + MediaItem.MEDIA_EXTRA
+								+ " WHERE docid=new." + MediaItem._ID + "; END;");
+						db.execSQL("CREATE TRIGGER " + MEDIA_SEARCH_LOCATION + "Delete AFTER DELETE ON "
+								+ MEDIA_LOCATION + " BEGIN DELETE FROM " + MEDIA_SEARCH_LOCATION + " WHERE docid=old."
+								+ MediaItem._ID + "; END;");
+						db.execSQL("INSERT INTO " + MEDIA_SEARCH_LOCATION + "(docid, " + SEARCH_FILE_NAME + ") SELECT "
+								+ MediaItem._ID + ", " + MediaItem.MEDIA_EXTRA + " FROM " + MEDIA_LOCATION + ";");
+						indexExistingTextContent(db);
+
+						db.execSQL("CREATE VIRTUAL TABLE " + PEOPLE_SEARCH_LOCATION + " USING fts3(" + SEARCH_NAME
+								+ ");");
+						db.execSQL("CREATE TRIGGER " + PEOPLE_SEARCH_LOCATION + "Insert AFTER INSERT ON "
+								+ PEOPLE_LOCATION + " BEGIN INSERT INTO " + PEOPLE_SEARCH_LOCATION + "(docid, "
+								+ SEARCH_NAME + ") VALUES (new." + PersonItem._ID + ", new." + PersonItem.NAME
+								+ "); END;");
+						db.execSQL("CREATE TRIGGER " + PEOPLE_SEARCH_LOCATION + "Update AFTER UPDATE OF "
+								+ PersonItem.NAME + " ON " + PEOPLE_LOCATION + " BEGIN UPDATE " + PEOPLE_SEARCH_LOCATION
+								+ " SET " + SEARCH_NAME + "=new." + PersonItem.NAME + " WHERE docid=new."
+								+ PersonItem._ID + "; END;");
+						db.execSQL("CREATE TRIGGER " + PEOPLE_SEARCH_LOCATION + "Delete AFTER DELETE ON "
+								+ PEOPLE_LOCATION + " BEGIN DELETE FROM " + PEOPLE_SEARCH_LOCATION + " WHERE docid=old."
+								+ PersonItem._ID + "; END;");
+						db.execSQL("INSERT INTO " + PEOPLE_SEARCH_LOCATION + "(docid, " + SEARCH_NAME + ") SELECT "
+								+ PersonItem._ID + ", " + PersonItem.NAME + " FROM " + PEOPLE_LOCATION + ";");
+						break;
+
+					case 6:
+						// per-owner, type, visibility and deletion counts, maintained by triggers so that counting
+						// (e.g., to disable empty filters) is a small indexed lookup rather than a media table scan
+						db.execSQL("CREATE TABLE " + MEDIA_COUNTS_LOCATION + " (" //
+								+ MediaItem.PARENT_ID + " TEXT, " //
+								+ MediaItem.TYPE + " INTEGER, " //
+								+ MediaItem.VISIBILITY + " INTEGER, " //
+								+ MediaItem.DELETED + " INTEGER, " //
+								+ MediaItem.COUNT + " INTEGER, " //
+								+ "PRIMARY KEY (" + MediaItem.PARENT_ID + ", " + MediaItem.TYPE + ", "
+								+ MediaItem.VISIBILITY + ", " + MediaItem.DELETED + "));");
+						// (NULL keys are allowed - GROUP BY treats them as equal, as IS does in the triggers below)
+						db.execSQL("INSERT INTO " + MEDIA_COUNTS_LOCATION + " SELECT " + MediaItem.PARENT_ID + ", "
+								+ MediaItem.TYPE + ", " + MediaItem.VISIBILITY + ", " + MediaItem.DELETED
+								+ ", COUNT(*) FROM " + MEDIA_LOCATION + " GROUP BY " + MediaItem.PARENT_ID + ", "
+								+ MediaItem.TYPE + ", " + MediaItem.VISIBILITY + ", " + MediaItem.DELETED + ";");
+						db.execSQL("CREATE TRIGGER " + MEDIA_COUNTS_LOCATION + "Insert AFTER INSERT ON "
+								+ MEDIA_LOCATION + " BEGIN " + getCountIncrement("new") + " END;");
+						db.execSQL("CREATE TRIGGER " + MEDIA_COUNTS_LOCATION + "Delete AFTER DELETE ON "
+								+ MEDIA_LOCATION + " BEGIN " + getCountDecrement("old") + " END;");
+						db.execSQL("CREATE TRIGGER " + MEDIA_COUNTS_LOCATION + "Update AFTER UPDATE OF "
+								+ MediaItem.PARENT_ID + ", " + MediaItem.TYPE + ", " + MediaItem.VISIBILITY + ", "
+								+ MediaItem.DELETED + " ON " + MEDIA_LOCATION + " WHEN old." + MediaItem.PARENT_ID
+								+ " IS NOT new." + MediaItem.PARENT_ID + " OR old." + MediaItem.TYPE + " IS NOT new."
+								+ MediaItem.TYPE + " OR old." + MediaItem.VISIBILITY + " IS NOT new."
+								+ MediaItem.VISIBILITY + " OR old." + MediaItem.DELETED + " IS NOT new."
+								+ MediaItem.DELETED + " BEGIN "
+								+ getCountDecrement("old") + " " + getCountIncrement("new") + " END;");
+						break;
+
+					case 7:
+						// content-addressed files (see MediaContentStore), with the number of items that refer to
+						// each one maintained by triggers; files are removed by DeletedItemCollector when unreferenced
+						db.execSQL("ALTER TABLE " + MEDIA_LOCATION + " ADD COLUMN " + MediaItem.CONTENT_ID + " TEXT;");
+						db.execSQL("CREATE TABLE " + MEDIA_CONTENT_LOCATION + " (" //
+								+ MediaItem.CONTENT_ID + " TEXT PRIMARY KEY, " //
+								+ MediaItem.REFERENCE_COUNT + " INTEGER);");
+						db.execSQL("CREATE TRIGGER " + MEDIA_CONTENT_LOCATION + "Insert AFTER INSERT ON "
+								+ MEDIA_LOCATION + " WHEN new." + MediaItem.CONTENT_ID + " IS NOT NULL BEGIN "
+								+ getReferenceIncrement() + " END;");
+						db.execSQL("CREATE TRIGGER " + MEDIA_CONTENT_LOCATION + "Delete AFTER DELETE ON "
+								+ MEDIA_LOCATION + " WHEN old." + MediaItem.CONTENT_ID + " IS NOT NULL BEGIN "
+								+ getReferenceDecrement() + " END;");
+						db.execSQL("CREATE TRIGGER " + MEDIA_CONTENT_LOCATION + "UpdateOld AFTER UPDATE OF "
+								+ MediaItem.CONTENT_ID + " ON " + MEDIA_LOCATION + " WHEN old." + MediaItem.CONTENT_ID
+								+ " IS NOT NULL AND old." + MediaItem.CONTENT_ID + " IS NOT new." + MediaItem.CONTENT_ID
+								+ " BEGIN " + getReferenceDecrement() + " END;");
+						db.execSQL("CREATE TRIGGER " + MEDIA_CONTENT_LOCATION + "UpdateNew AFTER UPDATE OF "
+								+ MediaItem.CONTENT_ID + " ON " + MEDIA_LOCATION + " WHEN new." + MediaItem.CONTENT_ID
+								+ " IS NOT NULL AND old." + MediaItem.CONTENT_ID + " IS NOT new." + MediaItem.CONTENT_ID
+								+ " BEGIN " + getReferenceIncrement() + " END;");
+						break;
+
+					default:
+						if (MediaTablet.DEBUG) {
+							Log.d(DebugUtilities.getLogTag(this), "No upgrade step for database version " + version);
+						}
+						break;
+				}
+			}
+		}
+
+		/**
+		 * Trigger statements to add one to the media count for the row called rowName (i.e., new or old) - NULL keys
+		 * are never equal in the primary key, so INSERT OR IGNORE would add a duplicate count for them every time
+		 */
+		private static String getCountIncrement(String rowName) {
+			return "INSERT INTO " + MEDIA_COUNTS_LOCATION + " SELECT " + rowName + "." + MediaItem.PARENT_ID + ", "
+					+ rowName + "." + MediaItem.TYPE + ", " + rowName + "." + MediaItem.VISIBILITY + ", " + rowName
+					+ "." + MediaItem.DELETED + ", 0 WHERE NOT EXISTS (SELECT 1 FROM " + MEDIA_COUNTS_LOCATION
+					+ " WHERE " + getCountKeySelection(rowName) + "); UPDATE "
+					+ MEDIA_COUNTS_LOCATION + " SET " + MediaItem.COUNT + "=" + MediaItem.COUNT + "+1 WHERE "
+					+ getCountKeySelection(rowName) + ";";
+		}
+
+		/**
+		 * Trigger statements to subtract one from the media count for rowName, removing the count when it reaches zero
+		 */
+		private static String getCountDecrement(String rowName) {
+			return "UPDATE " + MEDIA_COUNTS_LOCATION + " SET " + MediaItem.COUNT + "=" + MediaItem.COUNT + "-1 WHERE "
+					+ getCountKeySelection(rowName) + "; DELETE FROM " + MEDIA_COUNTS_LOCATION + " WHERE "
+					+ getCountKeySelection(rowName) + " AND " + MediaItem.COUNT + "<=0;";
+		}
+
+		/**
+		 * Trigger statements to add one to the reference count of the new row's content id
+		 */
+		private static String getReferenceIncrement() {
+			return "INSERT OR IGNORE INTO " + MEDIA_CONTENT_LOCATION + " VALUES (new." + MediaItem.CONTENT_ID
+					+ ", 0); UPDATE " + MEDIA_CONTENT_LOCATION + " SET " + MediaItem.REFERENCE_COUNT + "="
+					+ MediaItem.REFERENCE_COUNT + "+1 WHERE " + MediaItem.CONTENT_ID + "=new." + MediaItem.CONTENT_ID
+					+ ";";
+		}
+
+		/**
+		 * Trigger statements to subtract one from the reference count of the old row's content id, removing the count
+		 * when it reaches zero (the file itself is removed later, by DeletedItemCollector)
+		 */
+		private static String getReferenceDecrement() {
+			return "UPDATE " + MEDIA_CONTENT_LOCATION + " SET " + MediaItem.REFERENCE_COUNT + "="
+					+ MediaItem.REFERENCE_COUNT + "-1 WHERE " + MediaItem.CONTENT_ID + "=old." + MediaItem.CONTENT_ID
+					+ "; DELETE FROM " + MEDIA_CONTENT_LOCATION + " WHERE " + MediaItem.CONTENT_ID + "=old."
+					+ MediaItem.CONTENT_ID + " AND " + MediaItem.REFERENCE_COUNT + "<=0;";
+		}
+
+		// IS rather than = so that counts with NULL keys (e.g., media without an owner) are matched
+		private static String getCountKeySelection(String rowName) {
+			return MediaItem.PARENT_ID + " IS " + rowName + "." + MediaItem.PARENT_ID + " AND " + MediaItem.TYPE
+					+ " IS " + rowName + "." + MediaItem.TYPE + " AND " + MediaItem.VISIBILITY + " IS " + rowName + "."
+					+ MediaItem.VISIBILITY + " AND " + MediaItem.DELETED + " IS " + rowName + "." + MediaItem.DELETED;
+		}
+
+		private void indexExistingTextContent(SQLiteDatabase db) {
+			Cursor c = null;
+			try {
+				c = db.query(MEDIA_LOCATION, new String[] { MediaItem._ID, MediaItem.INTERNAL_ID, MediaItem.PARENT_ID,
+						MediaItem.FILE_EXTENSION }, MediaItem.TYPE + "=" + TYPE_TEXT, null, null, null, null);
+				while (c.moveToNext()) {
+					indexTextContent(db, c.getLong(0), MediaItem.getFile(c.getString(2), c.getString(1),
+							c.getString(3), null)); // items had no content ids before version 7
+				}
+			} finally {
+				if (c != null) {
+					c.close();
+				}
 			}
-			// backup database if necessary
 		}
 
 		@Override
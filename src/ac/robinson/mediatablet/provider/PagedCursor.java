@@ -0,0 +1,290 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.SparseArray;
+
+/**
+ * A cursor made up of consecutive keyset-paged media queries (see MediaItem.getPagedContentUri), to which further
+ * pages can be appended as the grid scrolls. Unlike MergeCursor, pages are added without re-creating the cursor, so
+ * the rows that have already been loaded are never queried again.
+ * 
+ * Single rows can also be replaced or hidden (see patchRow) when one item changes, rather than re-querying every page.
+ * Positions used internally ("raw" positions) include hidden rows; positions seen by callers do not.
+ */
+public class PagedCursor extends AbstractCursor {
+
+	private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+	private final int mPageSize;
+	private final String[] mProjection;
+	private final String mSelection;
+	private final String[] mSelectionArgs;
+	private final String[] mColumnNames;
+	private final int mDateCreatedIndex;
+	private final int mIdIndex;
+	private final int mInternalIdIndex;
+
+	private final HashMap<String, Integer> mRawPositions = new HashMap<String, Integer>(); // by internal id
+	private final SparseArray<Cursor> mPatchedRows = new SparseArray<Cursor>(); // single-row cursors, by raw position
+	private final ArrayList<Integer> mHiddenRows = new ArrayList<Integer>(); // sorted raw positions
+
+	private Cursor mCurrentPage;
+	private int mCount;
+
+	private long mLastDateCreated;
+	private long mLastId;
+	private boolean mHasMorePages;
+
+	private PagedCursor(Cursor firstPage, int pageSize, String[] projection, String selection,
+			String[] selectionArgs) {
+		mPageSize = pageSize;
+		mProjection = projection;
+		mSelection = selection;
+		mSelectionArgs = selectionArgs;
+		mColumnNames = firstPage.getColumnNames();
+		mDateCreatedIndex = firstPage.getColumnIndexOrThrow(MediaItem.DATE_CREATED);
+		mIdIndex = firstPage.getColumnIndexOrThrow(MediaItem._ID);
+		mInternalIdIndex = firstPage.getColumnIndexOrThrow(MediaItem.INTERNAL_ID);
+		addPage(firstPage);
+	}
+
+	/**
+	 * Query the first page of media items - projection must include MediaItem._ID, MediaItem.INTERNAL_ID and
+	 * MediaItem.DATE_CREATED. No notification URI is set - the owner should observe MediaItem.CONTENT_URI itself, so
+	 * that single item changes can be applied with patchRow rather than by re-querying.
+	 */
+	public static PagedCursor query(ContentResolver contentResolver, String[] projection, String selection,
+			String[] selectionArgs, int pageSize) {
+		final String[] arguments = selectionArgs == null ? null : selectionArgs.clone(); // reused for later pages
+		Cursor firstPage = contentResolver.query(MediaItem.getPagedContentUri(pageSize, 0, -1), projection, selection,
+				arguments, null);
+		if (firstPage == null) {
+			return null;
+		}
+		return new PagedCursor(firstPage, pageSize, projection, selection, arguments);
+	}
+
+	/**
+	 * Query the page that follows the given keyset (from getLastDateCreated and getLastId); safe to call from a
+	 * background thread - the result should then be passed to addPage on this cursor's thread
+	 */
+	public Cursor queryPage(ContentResolver contentResolver, long afterDateCreated, long afterId) {
+		return contentResolver.query(MediaItem.getPagedContentUri(mPageSize, afterDateCreated, afterId), mProjection,
+				mSelection, mSelectionArgs, null);
+	}
+
+	/**
+	 * Query the current version of a single item, using this cursor's selection - the result will be empty if the item
+	 * no longer matches; safe to call from a background thread - the result should then be passed to patchRow
+	 */
+	public Cursor queryRow(ContentResolver contentResolver, String internalId) {
+		return contentResolver.query(MediaItem.getItemUri(internalId), mProjection, mSelection, mSelectionArgs, null);
+	}
+
+	/**
+	 * Append the next page of results - must be called on the thread that uses this cursor
+	 */
+	public void addPage(Cursor page) {
+		final int pageCount = page.getCount();
+		if (page.moveToFirst()) {
+			do {
+				mRawPositions.put(page.getString(mInternalIdIndex), mCount + page.getPosition());
+			} while (page.moveToNext());
+		}
+		if (pageCount > 0 && page.moveToLast()) {
+			mLastDateCreated = page.getLong(mDateCreatedIndex);
+			mLastId = page.getLong(mIdIndex);
+		}
+		mHasMorePages = pageCount >= mPageSize;
+		mPages.add(page);
+		mCount += pageCount;
+		mPos = -1; // page cursors may have moved - make sure the next move repositions them
+	}
+
+	/**
+	 * Replace the loaded row of a changed item with its current version (from queryRow), or hide it if it no longer
+	 * matches this cursor's selection - must be called on the thread that uses this cursor. The item's position does
+	 * not change, as the sort keys (creation date and _id) are never updated.
+	 * 
+	 * @return true if the change has been applied; false if the item has not been loaded but now matches, and so a
+	 *         full re-query is needed to show it in the right place
+	 */
+	public boolean patchRow(String internalId, Cursor row) {
+		final boolean matches = row.moveToFirst();
+		final Integer rawPosition = mRawPositions.get(internalId);
+		if (rawPosition == null) {
+			boolean applied = true;
+			if (matches) {
+				// items after the last loaded row will be included when their page is loaded
+				final long dateCreated = row.getLong(mDateCreatedIndex);
+				final long id = row.getLong(mIdIndex);
+				applied = mHasMorePages
+						&& (dateCreated < mLastDateCreated || (dateCreated == mLastDateCreated && id < mLastId));
+			}
+			row.close();
+			return applied;
+		}
+
+		final Cursor previousRow = mPatchedRows.get(rawPosition);
+		if (previousRow != null) {
+			previousRow.close();
+			mPatchedRows.remove(rawPosition);
+		}
+		final int hiddenIndex = Collections.binarySearch(mHiddenRows, rawPosition);
+		if (matches) {
+			mPatchedRows.put(rawPosition, row);
+			if (hiddenIndex >= 0) {
+				mHiddenRows.remove(hiddenIndex);
+			}
+		} else {
+			row.close();
+			if (hiddenIndex < 0) {
+				mHiddenRows.add(-hiddenIndex - 1, rawPosition);
+			}
+		}
+		mPos = -1; // the row at the current position may have changed
+		return true;
+	}
+
+	public boolean hasMorePages() {
+		return mHasMorePages;
+	}
+
+	public long getLastDateCreated() {
+		return mLastDateCreated;
+	}
+
+	public long getLastId() {
+		return mLastId;
+	}
+
+	@Override
+	public boolean onMove(int oldPosition, int newPosition) {
+		int rawPosition = newPosition;
+		for (int hiddenRow : mHiddenRows) {
+			if (hiddenRow <= rawPosition) {
+				rawPosition += 1;
+			} else {
+				break;
+			}
+		}
+
+		final Cursor patchedRow = mPatchedRows.get(rawPosition);
+		if (patchedRow != null) {
+			mCurrentPage = patchedRow;
+			return patchedRow.moveToFirst();
+		}
+
+		int pageStart = 0;
+		for (Cursor page : mPages) {
+			final int pageCount = page.getCount();
+			if (rawPosition < pageStart + pageCount) {
+				mCurrentPage = page;
+				return page.moveToPosition(rawPosition - pageStart);
+			}
+			pageStart += pageCount;
+		}
+		mCurrentPage = null;
+		return false;
+	}
+
+	@Override
+	public int getCount() {
+		return mCount - mHiddenRows.size();
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return mColumnNames;
+	}
+
+	@Override
+	public String getString(int column) {
+		return mCurrentPage.getString(column);
+	}
+
+	@Override
+	public short getShort(int column) {
+		return mCurrentPage.getShort(column);
+	}
+
+	@Override
+	public int getInt(int column) {
+		return mCurrentPage.getInt(column);
+	}
+
+	@Override
+	public long getLong(int column) {
+		return mCurrentPage.getLong(column);
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return mCurrentPage.getFloat(column);
+	}
+
+	@Override
+	public double getDouble(int column) {
+		return mCurrentPage.getDouble(column);
+	}
+
+	@Override
+	public byte[] getBlob(int column) {
+		return mCurrentPage.getBlob(column);
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return mCurrentPage.isNull(column);
+	}
+
+	@Override
+	public void deactivate() {
+		for (Cursor page : mPages) {
+			page.deactivate();
+		}
+		for (int i = 0, n = mPatchedRows.size(); i < n; i++) {
+			mPatchedRows.valueAt(i).deactivate();
+		}
+		super.deactivate();
+	}
+
+	@Override
+	public void close() {
+		for (Cursor page : mPages) {
+			page.close();
+		}
+		mPages.clear();
+		for (int i = 0, n = mPatchedRows.size(); i < n; i++) {
+			mPatchedRows.valueAt(i).close();
+		}
+		mPatchedRows.clear();
+		mCurrentPage = null;
+		super.close();
+	}
+}
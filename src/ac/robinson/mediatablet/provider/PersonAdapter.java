@@ -30,8 +30,12 @@ import ac.robinson.util.ImageCacheUtilities;
 import ac.robinson.view.CrossFadeDrawable;
 import ac.robinson.view.FastBitmapDrawable;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -65,8 +69,21 @@ public class PersonAdapter extends CursorAdapter implements FilterQueryProvider
 
 	private final String[] mFilterArguments1 = new String[1];
 
+	// observes PersonItem.CONTENT_URI (including single item URIs), so that changes to people we don't show are ignored
+	private final ContentObserver mContentObserver = new ContentObserver(new Handler()) {
+		@Override
+		public void onChange(boolean selfChange) {
+			onChange(selfChange, null); // before API 16 we don't know which item changed
+		}
+
+		@Override
+		public void onChange(boolean selfChange, Uri uri) {
+			onPersonChanged(MediaTabletProvider.getItemInternalId(uri));
+		}
+	};
+
 	public PersonAdapter(PeopleBrowserActivity activity, String homesteadId) {
-		super(activity, activity.managedQuery(PersonItem.CONTENT_URI, PersonItem.PROJECTION_ALL, "1=?",
+		super(activity, activity.managedQuery(PersonItem.CONTENT_URI, PersonItem.PROJECTION_GRID, "1=?",
 				new String[] { "0" }, null), true); // hack to show no data initially
 
 		mActivity = activity;
@@ -99,6 +116,15 @@ public class PersonAdapter extends CursorAdapter implements FilterQueryProvider
 		setFilterQueryProvider(this);
 
 		setHomesteadFilter(homesteadId);
+
+		activity.getContentResolver().registerContentObserver(PersonItem.CONTENT_URI, true, mContentObserver);
+	}
+
+	/**
+	 * Stop observing changes - must be called when the activity is destroyed
+	 */
+	public void close() {
+		mActivity.getContentResolver().unregisterContentObserver(mContentObserver);
 	}
 
 	public FastBitmapDrawable getDefaultIcon() {
@@ -109,6 +135,34 @@ public class PersonAdapter extends CursorAdapter implements FilterQueryProvider
 		mFilter.filter(null);
 	}
 
+	@Override
+	protected void onContentChanged() {
+		// nothing to do - changes are handled by mContentObserver, which ignores people that aren't shown
+	}
+
+	/**
+	 * Re-query only if the changed person is (or should now be) shown - people lists are short, so there is no need to
+	 * update single rows, but most changes (e.g., locking) are to people in other homesteads
+	 */
+	private void onPersonChanged(String internalId) {
+		if (internalId == null) {
+			reFilter();
+			return;
+		}
+
+		final Cursor c = getCursor();
+		if (c != null && !c.isClosed() && c.moveToFirst()) {
+			do {
+				if (internalId.equals(c.getString(mInternalIdIndex))) {
+					reFilter(); // shown, so may have been renamed or deleted
+					return;
+				}
+			} while (c.moveToNext());
+		}
+
+		new FindPersonTask(internalId).execute(); // not shown - query in the background to see whether it should be
+	}
+
 	public void setHomesteadFilter(String homesteadFilter) {
 		mHomesteadFilter = homesteadFilter;
 		reFilter();
@@ -162,19 +216,19 @@ public class PersonAdapter extends CursorAdapter implements FilterQueryProvider
 			holder.display.setBackgroundDrawable(mDefaultIcon);
 			holder.queryIcon = true;
 		} else {
-			// if the icon has gone missing (recently imported or cache deletion), regenerate it
-			// this will happen on every new person, but we check for the file before generation, so not too bad
-			FastBitmapDrawable cachedIcon = ImageCacheUtilities.getCachedIcon(MediaTablet.DIRECTORY_THUMBS,
-					personCacheId, ImageCacheUtilities.NULL_DRAWABLE);
+			// if the icon has gone missing (recently imported or cache deletion), regenerate it in the background -
+			// until then, show the default icon and the loader, as when scrolling (the activity fades the icon in)
+			FastBitmapDrawable cachedIcon = IconCache.getCachedIcon(personCacheId, ImageCacheUtilities.NULL_DRAWABLE);
 			if (ImageCacheUtilities.NULL_DRAWABLE.equals(cachedIcon)) {
-				PersonManager.reloadPersonIcon(mActivity.getResources(), mActivity.getContentResolver(),
-						holder.personInternalId);
-				cachedIcon = ImageCacheUtilities.getCachedIcon(MediaTablet.DIRECTORY_THUMBS, personCacheId,
-						mDefaultIcon);
+				holder.loader.setVisibility(View.VISIBLE);
+				holder.display.setBackgroundDrawable(mDefaultIcon);
+				holder.queryIcon = true;
+				activity.requestPersonIcon(holder.personInternalId);
+			} else {
+				holder.display.setBackgroundDrawable(cachedIcon);
+				holder.loader.setVisibility(View.GONE);
+				holder.queryIcon = false;
 			}
-			holder.display.setBackgroundDrawable(cachedIcon);
-			holder.loader.setVisibility(View.GONE);
-			holder.queryIcon = false;
 		}
 
 		String personName = c.getString(mNameIndex);
@@ -205,13 +259,33 @@ public class PersonAdapter extends CursorAdapter implements FilterQueryProvider
 			final String[] filterArguments = mFilterArguments1;
 			filterArguments[0] = mHomesteadFilter;
 
-			// TODO: sort out projection to only return necessary columns
-			return mActivity.managedQuery(PersonItem.CONTENT_URI, PersonItem.PROJECTION_ALL, mSelectionHomestead,
+			return mActivity.managedQuery(PersonItem.CONTENT_URI, PersonItem.PROJECTION_GRID, mSelectionHomestead,
 					filterArguments, PersonItem.DEFAULT_SORT_ORDER);
 		} else {
-			// TODO: sort out projection to only return necessary columns
-			return mActivity.managedQuery(PersonItem.CONTENT_URI, PersonItem.PROJECTION_ALL, mSelectionNotDeleted,
+			return mActivity.managedQuery(PersonItem.CONTENT_URI, PersonItem.PROJECTION_GRID, mSelectionNotDeleted,
 					null, PersonItem.DEFAULT_SORT_ORDER);
 		}
 	}
+
+	private class FindPersonTask extends AsyncTask<Void, Void, PersonItem> {
+		private final String mInternalId;
+
+		public FindPersonTask(String internalId) {
+			mInternalId = internalId;
+		}
+
+		@Override
+		protected PersonItem doInBackground(Void... unused) {
+			return PersonManager.findPersonByInternalId(mActivity.getContentResolver(), mInternalId);
+		}
+
+		@Override
+		protected void onPostExecute(PersonItem person) {
+			// the homestead filter is checked now, rather than when the change was noticed, as it may have changed
+			if (person != null && !person.getDeleted()
+					&& (mHomesteadFilter == null || mHomesteadFilter.equals(person.getParentId()))) {
+				reFilter(); // not shown, but should be
+			}
+		}
+	}
 }
@@ -46,10 +46,21 @@ public class PersonItem implements BaseColumns {
 	public static final Uri CONTENT_URI = Uri.parse(MediaTabletProvider.URI_PREFIX + MediaTabletProvider.URI_AUTHORITY
 			+ MediaTabletProvider.URI_SEPARATOR + MediaTabletProvider.PEOPLE_LOCATION);
 
+	private static final Uri SEARCH_URI = Uri.parse(MediaTabletProvider.URI_PREFIX + MediaTabletProvider.URI_AUTHORITY
+			+ MediaTabletProvider.URI_SEPARATOR + MediaTabletProvider.SEARCH_LOCATION
+			+ MediaTabletProvider.URI_SEPARATOR + MediaTabletProvider.PEOPLE_LOCATION);
+
 	public static final String[] PROJECTION_ALL = new String[] { PersonItem._ID, PersonItem.INTERNAL_ID,
 			PersonItem.PARENT_ID, PersonItem.NAME, PersonItem.DATE_CREATED, PersonItem.LOCK_STATUS,
 			PersonItem.PASSWORD_HASH, PersonItem.UNLOCKED_TIMESTAMP, PersonItem.DELETED };
 
+	// only the columns needed to display the people grid
+	public static final String[] PROJECTION_GRID = new String[] { PersonItem._ID, PersonItem.INTERNAL_ID,
+			PersonItem.NAME };
+
+	// for when only a person's id (and, therefore, their profile picture) is needed
+	public static final String[] PROJECTION_INTERNAL_ID = new String[] { PersonItem._ID, PersonItem.INTERNAL_ID };
+
 	public static final String INTERNAL_ID = "internal_id";
 	public static final String PARENT_ID = "parent_id";
 	public static final String NAME = "name";
@@ -78,6 +89,21 @@ public class PersonItem implements BaseColumns {
 	private long mUnlockedTimestamp;
 	private int mDeleted;
 
+	/**
+	 * Get the URI of a single person, for item-level queries and change notifications
+	 */
+	public static Uri getItemUri(String internalId) {
+		return Uri.withAppendedPath(CONTENT_URI, internalId);
+	}
+
+	/**
+	 * Get a URI for the people whose names contain every word in searchText
+	 */
+	public static Uri getSearchUri(String searchText) {
+		return SEARCH_URI.buildUpon().appendQueryParameter(MediaTabletProvider.QUERY_PARAMETER_SEARCH, searchText)
+				.build();
+	}
+
 	public PersonItem(String internalId) {
 		mInternalId = internalId;
 		mParentId = null;
@@ -137,7 +163,11 @@ public class PersonItem implements BaseColumns {
 	}
 
 	public File getProfilePictureFile() {
-		final File filePath = new File(getStorageDirectory(), mInternalId + ".jpg");
+		return getProfilePictureFile(mInternalId);
+	}
+
+	public static File getProfilePictureFile(String personInternalId) {
+		final File filePath = new File(getStorageDirectory(personInternalId), personInternalId + ".jpg");
 		return filePath;
 	}
 
@@ -171,17 +201,18 @@ public class PersonItem implements BaseColumns {
 		File imageFile = getProfilePictureFile();
 		int iconWidth = resources.getDimensionPixelSize(R.dimen.person_icon_width);
 		int iconHeight = resources.getDimensionPixelSize(R.dimen.person_icon_height);
-		Bitmap personBitmap = Bitmap.createBitmap(iconWidth, iconHeight,
-				ImageCacheUtilities.mBitmapFactoryOptions.inPreferredConfig);
+		Bitmap personBitmap = BitmapPool.getBitmap(iconWidth, iconHeight,
+				ImageCacheUtilities.mBitmapFactoryOptions.inPreferredConfig); // returned after caching (PersonManager)
+		personBitmap.eraseColor(resources.getColor(R.color.icon_background)); // pooled contents are undefined
 		Canvas personCanvas = new Canvas(personBitmap);
 		Paint personPaint = BitmapUtilities.getPaint(Color.BLACK, 1);
-		personCanvas.drawColor(resources.getColor(R.color.icon_background));
 
 		if (imageFile.exists()) {
 			Bitmap photoBitmap = BitmapUtilities.loadAndCreateScaledBitmap(imageFile.getAbsolutePath(), iconWidth,
 					iconHeight, BitmapUtilities.ScalingLogic.CROP, true);
 			personCanvas.drawBitmap(photoBitmap, (iconWidth - photoBitmap.getWidth()) / 2,
 					(iconHeight - photoBitmap.getHeight()) / 2, personPaint);
+			BitmapPool.putBitmap(photoBitmap);
 		} else {
 			// using SVG so that we don't need resolution-specific icons
 			Rect drawRect = new Rect(0, 0, iconWidth, iconHeight);
@@ -225,6 +256,18 @@ public class PersonItem implements BaseColumns {
 		return values;
 	}
 
+	public static PersonItem fromExisting(PersonItem existing) {
+		final PersonItem person = new PersonItem(existing.mInternalId);
+		person.mParentId = existing.mParentId;
+		person.mName = existing.mName;
+		person.mCreationDate = existing.mCreationDate;
+		person.mPasswordHash = existing.mPasswordHash;
+		person.mLockStatus = existing.mLockStatus;
+		person.mUnlockedTimestamp = existing.mUnlockedTimestamp;
+		person.mDeleted = existing.mDeleted;
+		return person;
+	}
+
 	public static PersonItem fromCursor(Cursor c) {
 		final PersonItem person = new PersonItem();
 		person.mInternalId = c.getString(c.getColumnIndexOrThrow(INTERNAL_ID));
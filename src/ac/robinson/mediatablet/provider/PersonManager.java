@@ -34,10 +34,14 @@ import android.net.Uri;
 
 public class PersonManager {
 
-	private static String[] mArguments1 = new String[1];
+	// invalidated by MediaTabletProvider on every write to the people table
+	static final ItemCache<PersonItem> PERSON_CACHE = new ItemCache<PersonItem>("People",
+			MediaTablet.ITEM_CACHE_SIZE_PEOPLE);
+	static final ItemCache<ArrayList<String>> PERSON_IDS_BY_PARENT_CACHE = new ItemCache<ArrayList<String>>(
+			"People by homestead", MediaTablet.ITEM_CACHE_SIZE_HOMESTEADS);
 
-	private static String mPersonInternalIdSelection;
-	private static String mPersonParentIdSelection;
+	private static final String mPersonInternalIdSelection;
+	private static final String mPersonParentIdSelection;
 
 	static {
 		StringBuilder selection = new StringBuilder();
@@ -62,6 +66,8 @@ public class PersonManager {
 
 		ImageCacheUtilities.addIconToCache(MediaTablet.DIRECTORY_THUMBS, person.getCacheId(), personIcon,
 				cacheTypeContainer.type, MediaTablet.ICON_CACHE_QUALITY);
+		IconCache.remove(person.getCacheId());
+		BitmapPool.putBitmap(personIcon); // only the saved file is used from now on
 	}
 
 	public static void reloadPersonIcon(Resources resources, ContentResolver contentResolver, String personId) {
@@ -85,12 +91,11 @@ public class PersonManager {
 	}
 
 	/** 
-	 * Set deleted instead; do this onDestroy (but think carefully about deleting narrative components)
+	 * Set deleted instead - DeletedItemCollector removes deleted people along with their media and files
 	 */
 	@Deprecated
 	public static boolean deletePerson(ContentResolver contentResolver, PersonItem person) {
-		final String[] arguments1 = mArguments1;
-		arguments1[0] = person.getInternalId();
+		final String[] arguments1 = new String[] { person.getInternalId() };
 		int count = contentResolver.delete(PersonItem.CONTENT_URI, mPersonInternalIdSelection, arguments1);
 		// delete cached icons and photo file, plus sub-media
 		return count > 0;
@@ -112,17 +117,24 @@ public class PersonManager {
 		if (reloadIcon) {
 			reloadPersonIcon(resources, person);
 		}
-		final String[] arguments1 = mArguments1;
-		arguments1[0] = person.getInternalId();
+		final String[] arguments1 = new String[] { person.getInternalId() };
 		int count = contentResolver.update(PersonItem.CONTENT_URI, person.getContentValues(),
 				mPersonInternalIdSelection, arguments1);
 		return count == 1;
 	}
 
 	public static PersonItem findPersonByInternalId(ContentResolver contentResolver, String internalId) {
-		final String[] arguments1 = mArguments1;
-		arguments1[0] = internalId;
-		return findPerson(contentResolver, mPersonInternalIdSelection, arguments1);
+		PersonItem person = PERSON_CACHE.get(internalId);
+		if (person == null) {
+			final int cacheGeneration = PERSON_CACHE.getGeneration();
+			final String[] arguments1 = new String[] { internalId };
+			person = findPerson(contentResolver, mPersonInternalIdSelection, arguments1);
+			if (person == null) {
+				return null;
+			}
+			PERSON_CACHE.put(internalId, person, cacheGeneration);
+		}
+		return PersonItem.fromExisting(person); // callers often modify the item, so never return the cached instance
 	}
 
 	private static PersonItem findPerson(ContentResolver contentResolver, String clause, String[] arguments) {
@@ -143,9 +155,38 @@ public class PersonManager {
 		return null;
 	}
 
+	/**
+	 * Like findPeopleByParentId, but only loads the internal ids (e.g., for drawing profile pictures)
+	 */
+	public static ArrayList<String> findPersonIdsByParentId(ContentResolver contentResolver, String parentId) {
+		ArrayList<String> cachedPeople = PERSON_IDS_BY_PARENT_CACHE.get(parentId);
+		if (cachedPeople != null) {
+			return new ArrayList<String>(cachedPeople);
+		}
+		final int cacheGeneration = PERSON_IDS_BY_PARENT_CACHE.getGeneration();
+		final String[] arguments1 = new String[] { parentId };
+		final ArrayList<String> people = new ArrayList<String>();
+		Cursor c = null;
+		try {
+			c = contentResolver.query(PersonItem.CONTENT_URI, PersonItem.PROJECTION_INTERNAL_ID,
+					mPersonParentIdSelection, arguments1, PersonItem.DEFAULT_SORT_ORDER);
+			if (c.getCount() > 0) {
+				final int internalIdIndex = c.getColumnIndexOrThrow(PersonItem.INTERNAL_ID);
+				while (c.moveToNext()) {
+					people.add(c.getString(internalIdIndex));
+				}
+			}
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+		PERSON_IDS_BY_PARENT_CACHE.put(parentId, new ArrayList<String>(people), cacheGeneration);
+		return people;
+	}
+
 	public static ArrayList<PersonItem> findPeopleByParentId(ContentResolver contentResolver, String parentId) {
-		final String[] arguments1 = mArguments1;
-		arguments1[0] = parentId;
+		final String[] arguments1 = new String[] { parentId };
 		final ArrayList<PersonItem> people = new ArrayList<PersonItem>();
 		Cursor c = null;
 		try {
@@ -0,0 +1,281 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.net.Uri;
+
+/**
+ * Latency histograms and row counts for provider operations, grouped by operation, URI and selection shape (the
+ * selection with any literal values replaced by ?, so that, e.g., every single item lookup is counted together).
+ * Operations that take longer than a threshold are also kept in a bounded slow log, oldest first out.
+ */
+public class QueryStatistics {
+
+	// upper bounds of the histogram buckets, in milliseconds - the last bucket holds everything slower
+	private static final int[] BUCKET_LIMITS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000 };
+
+	private final HashMap<String, OperationStatistics> mOperations = new HashMap<String, OperationStatistics>();
+
+	private final long mSlowThreshold;
+	private final SlowOperation[] mSlowLog;
+	private int mSlowLogNext = 0; // the position at which the next slow operation will be stored
+	private int mSlowCount = 0;
+
+	public QueryStatistics(long slowThreshold, int slowLogSize) {
+		mSlowThreshold = slowThreshold;
+		mSlowLog = new SlowOperation[slowLogSize];
+	}
+
+	/**
+	 * Record one operation
+	 *
+	 * @param operation the provider method (query, insert, update or delete)
+	 * @param uriShape the URI, with any item id replaced by * (see MediaTabletProvider)
+	 * @param selection the selection passed to the database, which may be null
+	 * @param uri the original URI, whose path is only stored if the operation is slow (never its query, which may
+	 *            contain search text)
+	 * @param duration the time taken, in milliseconds
+	 * @param rows the number of rows returned or affected
+	 */
+	public void record(String operation, String uriShape, String selection, Uri uri, long duration, int rows) {
+		final String selectionShape = getSelectionShape(selection);
+		final String key = operation + " " + uriShape + (selectionShape != null ? " WHERE " + selectionShape : "");
+		synchronized (this) {
+			OperationStatistics statistics = mOperations.get(key);
+			if (statistics == null) {
+				statistics = new OperationStatistics(key);
+				mOperations.put(key, statistics);
+			}
+			statistics.add(duration, rows);
+
+			if (duration >= mSlowThreshold && mSlowLog.length > 0) {
+				mSlowLog[mSlowLogNext] = new SlowOperation(System.currentTimeMillis(), key, uri.getPath(), duration,
+						rows);
+				mSlowLogNext = (mSlowLogNext + 1) % mSlowLog.length;
+				mSlowCount += 1;
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		mOperations.clear();
+		for (int i = 0; i < mSlowLog.length; i++) {
+			mSlowLog[i] = null;
+		}
+		mSlowLogNext = 0;
+		mSlowCount = 0;
+	}
+
+	/**
+	 * Replace literal numbers and strings in a selection with ?, so that selections that differ only in their values
+	 * are counted together
+	 */
+	static String getSelectionShape(String selection) {
+		if (selection == null || selection.length() <= 0) {
+			return null;
+		}
+		final StringBuilder shape = new StringBuilder(selection.length());
+		final int length = selection.length();
+		int i = 0;
+		while (i < length) {
+			final char c = selection.charAt(i);
+			if (c == '\'') {
+				i += 1;
+				while (i < length) { // skip to the end of the string ('' is an escaped quote)
+					if (selection.charAt(i) == '\'') {
+						if (i + 1 < length && selection.charAt(i + 1) == '\'') {
+							i += 1;
+						} else {
+							break;
+						}
+					}
+					i += 1;
+				}
+				shape.append('?');
+				i += 1;
+			} else if (Character.isDigit(c)
+					&& (shape.length() == 0 || isSeparator(shape.charAt(shape.length() - 1)))) {
+				while (i < length && (Character.isDigit(selection.charAt(i)) || selection.charAt(i) == '.')) {
+					i += 1;
+				}
+				shape.append('?');
+			} else {
+				shape.append(c);
+				i += 1;
+			}
+		}
+		return shape.toString();
+	}
+
+	private static boolean isSeparator(char c) {
+		return !Character.isLetterOrDigit(c) && c != '_'; // so that digits in column names (e.g., x2) are kept
+	}
+
+	/**
+	 * Get a summary of every operation type (slowest first, by total time), followed by the slow log (newest first)
+	 */
+	@Override
+	public String toString() {
+		final ArrayList<OperationStatistics> operations;
+		final ArrayList<SlowOperation> slowOperations = new ArrayList<SlowOperation>(mSlowLog.length);
+		final int slowCount;
+		synchronized (this) {
+			operations = new ArrayList<OperationStatistics>(mOperations.size());
+			for (Map.Entry<String, OperationStatistics> entry : mOperations.entrySet()) {
+				operations.add(entry.getValue().copy());
+			}
+			for (int i = 1; i <= mSlowLog.length; i++) {
+				final SlowOperation slowOperation = mSlowLog[(mSlowLogNext - i + mSlowLog.length) % mSlowLog.length];
+				if (slowOperation != null) {
+					slowOperations.add(slowOperation);
+				}
+			}
+			slowCount = mSlowCount;
+		}
+
+		Collections.sort(operations, new Comparator<OperationStatistics>() {
+			@Override
+			public int compare(OperationStatistics lhs, OperationStatistics rhs) {
+				return lhs.mTotalTime < rhs.mTotalTime ? 1 : (lhs.mTotalTime > rhs.mTotalTime ? -1 : 0);
+			}
+		});
+
+		final StringBuilder summary = new StringBuilder();
+		summary.append("Histogram buckets (ms): ");
+		for (int limit : BUCKET_LIMITS) {
+			summary.append("<=");
+			summary.append(limit);
+			summary.append(' ');
+		}
+		summary.append(">");
+		summary.append(BUCKET_LIMITS[BUCKET_LIMITS.length - 1]);
+		summary.append("\n\n");
+		for (OperationStatistics statistics : operations) {
+			summary.append(statistics);
+			summary.append("\n\n");
+		}
+
+		summary.append("Slow operations (>= ");
+		summary.append(mSlowThreshold);
+		summary.append(" ms): ");
+		summary.append(slowCount);
+		summary.append(" in total; most recent ");
+		summary.append(slowOperations.size());
+		summary.append(" shown\n");
+		final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+		for (SlowOperation slowOperation : slowOperations) {
+			summary.append(dateFormat.format(new Date(slowOperation.mTime)));
+			summary.append(": ");
+			summary.append(slowOperation.mDuration);
+			summary.append(" ms, ");
+			summary.append(slowOperation.mRows);
+			summary.append(" rows; ");
+			summary.append(slowOperation.mKey);
+			summary.append(" (");
+			summary.append(slowOperation.mUri);
+			summary.append(")\n");
+		}
+		return summary.toString();
+	}
+
+	private static class OperationStatistics {
+		private final String mKey;
+		private final int[] mBuckets;
+		private int mCount = 0;
+		private long mTotalTime = 0;
+		private long mMaximumTime = 0;
+		private long mTotalRows = 0;
+
+		private OperationStatistics(String key) {
+			mKey = key;
+			mBuckets = new int[BUCKET_LIMITS.length + 1];
+		}
+
+		private void add(long duration, int rows) {
+			int bucket = 0;
+			while (bucket < BUCKET_LIMITS.length && duration > BUCKET_LIMITS[bucket]) {
+				bucket += 1;
+			}
+			mBuckets[bucket] += 1;
+			mCount += 1;
+			mTotalTime += duration;
+			mMaximumTime = Math.max(mMaximumTime, duration);
+			mTotalRows += Math.max(0, rows);
+		}
+
+		private OperationStatistics copy() {
+			OperationStatistics copy = new OperationStatistics(mKey);
+			System.arraycopy(mBuckets, 0, copy.mBuckets, 0, mBuckets.length);
+			copy.mCount = mCount;
+			copy.mTotalTime = mTotalTime;
+			copy.mMaximumTime = mMaximumTime;
+			copy.mTotalRows = mTotalRows;
+			return copy;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder summary = new StringBuilder(mKey);
+			summary.append("\n[count ");
+			summary.append(mCount);
+			summary.append(", total ");
+			summary.append(mTotalTime);
+			summary.append(" ms, mean ");
+			summary.append(mCount > 0 ? Math.round((float) mTotalTime / mCount) : 0);
+			summary.append(" ms, max ");
+			summary.append(mMaximumTime);
+			summary.append(" ms, mean rows ");
+			summary.append(mCount > 0 ? Math.round((float) mTotalRows / mCount) : 0);
+			summary.append(", histogram");
+			for (int count : mBuckets) {
+				summary.append(' ');
+				summary.append(count);
+			}
+			summary.append(']');
+			return summary.toString();
+		}
+	}
+
+	private static class SlowOperation {
+		private final long mTime;
+		private final String mKey;
+		private final String mUri;
+		private final long mDuration;
+		private final int mRows;
+
+		private SlowOperation(long time, String key, String uri, long duration, int rows) {
+			mTime = time;
+			mKey = key;
+			mUri = uri;
+			mDuration = duration;
+			mRows = rows;
+		}
+	}
+}
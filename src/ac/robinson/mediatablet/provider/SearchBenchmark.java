@@ -0,0 +1,249 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.mediatablet.PerformanceReport;
+import ac.robinson.util.DebugUtilities;
+import android.app.IntentService;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Times full-text media searches against a large database. Synthetic media items (50,000 by default) with generated
+ * file names are added to a separate database with the same schema as the media database (see
+ * MediaTabletProvider.getDatabaseHelper), so the user's media are never changed, and then searched for with random
+ * words, word prefixes and pairs of words. Each search is run three ways: with the selection the search URI uses (see
+ * MediaItem.getSearchUri), as the first page of the media grid with a search filter (as MediaAdapter.runQuery does),
+ * and, for comparison, as a LIKE query on the file name column (as searching would work without the full-text index).
+ * The benchmark database is deleted afterwards. Only runs in DEBUG builds.
+ *
+ * The service is commented out in AndroidManifest.xml, as it must be exported to be started with adb - uncomment it
+ * (and set MediaTablet.DEBUG), then run from a computer with, for example (all extras are optional - see the EXTRA_
+ * constants for defaults):
+ *
+ * adb shell am startservice -n ac.robinson.mediatablet/.provider.SearchBenchmark --ei items 50000 --ei searches 200
+ *
+ * The report (including how many searches finished within MediaTablet.SEARCH_TARGET_LATENCY) is written to the log
+ * and to a file on external storage.
+ */
+public class SearchBenchmark extends IntentService {
+
+	public static final String EXTRA_ITEMS = "items"; // synthetic items to add; default 50000
+	public static final String EXTRA_SEARCHES = "searches"; // searches of each kind; default 200
+	public static final String EXTRA_KEEP = "keep"; // don't delete the benchmark database afterwards; default false
+	public static final String EXTRA_SEED = "seed"; // for repeatable runs; default: random
+
+	private static final String DATABASE_NAME = "search-benchmark.db";
+	private static final int INSERT_BATCH_SIZE = 1000; // items per transaction
+	private static final int VOCABULARY_SIZE = 500; // distinct words used in file names
+	private static final int WORDS_PER_NAME = 3;
+	private static final String[] SYLLABLES = { "ka", "lo", "mi", "ne", "ru", "ta", "zo", "be", "di", "fu", "ga",
+			"hi", "ju", "pe", "sa", "wo" };
+
+	public SearchBenchmark() {
+		super("SearchBenchmark");
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (!MediaTablet.DEBUG) {
+			Log.w(DebugUtilities.getLogTag(this), "Search benchmark is only available in DEBUG builds");
+			return;
+		}
+
+		final int itemCount = intent.getIntExtra(EXTRA_ITEMS, 50000);
+		final int searchCount = Math.max(1, intent.getIntExtra(EXTRA_SEARCHES, 200));
+		final boolean keep = intent.getBooleanExtra(EXTRA_KEEP, false);
+		final long seed = intent.getLongExtra(EXTRA_SEED, System.nanoTime());
+		final Random random = new Random(seed);
+
+		deleteDatabase(DATABASE_NAME); // a previous run may have been kept
+		final SQLiteOpenHelper databaseHelper = MediaTabletProvider.getDatabaseHelper(this, DATABASE_NAME);
+		final SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+		final String[] vocabulary = new String[VOCABULARY_SIZE];
+		for (int i = 0; i < VOCABULARY_SIZE; i++) {
+			final StringBuilder word = new StringBuilder();
+			for (int s = 2 + random.nextInt(3); s > 0; s--) {
+				word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			}
+			vocabulary[i] = word.toString();
+		}
+
+		// seed - the search index is filled by the same triggers as in the media database
+		final String ownerId = MediaTabletProvider.getNewInternalId();
+		long startTime = SystemClock.uptimeMillis();
+		int inserted = 0;
+		while (inserted < itemCount) {
+			final int batchEnd = Math.min(inserted + INSERT_BATCH_SIZE, itemCount);
+			db.beginTransaction();
+			try {
+				for (int i = inserted; i < batchEnd; i++) {
+					final StringBuilder fileName = new StringBuilder();
+					for (int w = 0; w < WORDS_PER_NAME; w++) {
+						fileName.append(getWord(vocabulary, random));
+						fileName.append(w < WORDS_PER_NAME - 1 ? '_' : '-');
+					}
+					fileName.append(i);
+					fileName.append(".jpg");
+					db.insert(MediaTabletProvider.MEDIA_LOCATION, null, new MediaItem(ownerId, fileName.toString(),
+							MediaItem.MEDIA_PRIVATE).getContentValues());
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			inserted = batchEnd;
+		}
+		final long seedTime = SystemClock.uptimeMillis() - startTime;
+		final long totalItems = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+				+ MediaTabletProvider.MEDIA_LOCATION, null);
+
+		// the same searches for each method
+		final String[] searches = new String[searchCount];
+		for (int i = 0; i < searchCount; i++) {
+			switch (i % 3) {
+				case 0:
+					searches[i] = getWord(vocabulary, random);
+					break;
+				case 1:
+					final String word = getWord(vocabulary, random);
+					searches[i] = word.substring(0, Math.min(word.length(), 3)); // a prefix, as when typing
+					break;
+				default:
+					searches[i] = getWord(vocabulary, random) + " " + getWord(vocabulary, random);
+					break;
+			}
+		}
+
+		final ArrayList<Long> searchUriLatencies = new ArrayList<Long>(searchCount);
+		final ArrayList<Long> gridLatencies = new ArrayList<Long>(searchCount);
+		final ArrayList<Long> likeLatencies = new ArrayList<Long>(searchCount);
+		long searchUriResults = 0;
+		long likeResults = 0;
+		final String pageSize = Integer.toString(MediaTablet.MEDIA_BROWSER_PAGE_SIZE);
+		for (String search : searches) {
+			final String[] searchArguments = new String[] { MediaTabletProvider.getSearchQuery(search) };
+			startTime = SystemClock.uptimeMillis();
+			Cursor c = db.query(MediaTabletProvider.MEDIA_LOCATION, MediaItem.PROJECTION_GRID,
+					MediaTabletProvider.MEDIA_SEARCH_SELECTION, searchArguments, null, null, null);
+			searchUriResults += getCountAndClose(c);
+			searchUriLatencies.add(SystemClock.uptimeMillis() - startTime);
+
+			startTime = SystemClock.uptimeMillis();
+			c = db.query(MediaTabletProvider.MEDIA_LOCATION, MediaItem.PROJECTION_GRID, MediaItem.DELETED + "=0 AND "
+					+ MediaTabletProvider.MEDIA_SEARCH_SELECTION, searchArguments, null, null,
+					MediaItem.PAGED_SORT_ORDER, pageSize);
+			getCountAndClose(c);
+			gridLatencies.add(SystemClock.uptimeMillis() - startTime);
+
+			// every word must match somewhere in the file name, as with the full-text query
+			final String[] words = search.split(" ");
+			final StringBuilder likeSelection = new StringBuilder(MediaItem.DELETED + "=0");
+			final String[] likeArguments = new String[words.length];
+			for (int w = 0; w < words.length; w++) {
+				likeSelection.append(" AND ");
+				likeSelection.append(MediaItem.MEDIA_EXTRA);
+				likeSelection.append(" LIKE ?");
+				likeArguments[w] = "%" + words[w] + "%";
+			}
+			startTime = SystemClock.uptimeMillis();
+			c = db.query(MediaTabletProvider.MEDIA_LOCATION, MediaItem.PROJECTION_GRID, likeSelection.toString(),
+					likeArguments, null, null, null);
+			likeResults += getCountAndClose(c);
+			likeLatencies.add(SystemClock.uptimeMillis() - startTime);
+		}
+
+		databaseHelper.close();
+		if (!keep) {
+			deleteDatabase(DATABASE_NAME);
+		}
+
+		final StringBuilder report = new StringBuilder("Search benchmark: ");
+		report.append(intent.getExtras() != null ? intent.getExtras().toString() : "defaults");
+		report.append(", seed ");
+		report.append(seed);
+		report.append("\nAdded ");
+		report.append(inserted);
+		report.append(" items in ");
+		report.append(seedTime);
+		report.append(" ms (");
+		report.append(totalItems);
+		report.append(" media items in the benchmark database)\n");
+		report.append(searchCount);
+		report.append(" searches (words, prefixes and pairs of words); target ");
+		report.append(MediaTablet.SEARCH_TARGET_LATENCY);
+		report.append(" ms\n");
+		appendLatencies(report, "Search URI", searchUriLatencies, searchUriResults);
+		appendLatencies(report, "Grid first page", gridLatencies, -1);
+		appendLatencies(report, "LIKE (no index)", likeLatencies, likeResults);
+
+		PerformanceReport.save(this, "search-benchmark", report.toString());
+	}
+
+	// words are chosen unevenly, so some searches match many items and others only a few, as with real file names
+	private static String getWord(String[] vocabulary, Random random) {
+		final int index = (int) (vocabulary.length * Math.pow(random.nextDouble(), 2));
+		return vocabulary[Math.min(index, vocabulary.length - 1)];
+	}
+
+	// reading the count runs the query, as the grid would when it is displayed
+	private static int getCountAndClose(Cursor c) {
+		if (c == null) {
+			return 0;
+		}
+		final int count = c.getCount();
+		c.close();
+		return count;
+	}
+
+	private static void appendLatencies(StringBuilder report, String method, ArrayList<Long> latencies, long results) {
+		int withinTarget = 0;
+		for (long latency : latencies) {
+			if (latency <= MediaTablet.SEARCH_TARGET_LATENCY) {
+				withinTarget += 1;
+			}
+		}
+		report.append(method);
+		report.append(": ");
+		PerformanceReport.appendLatencies(report, latencies, 1);
+		report.append("; within target ");
+		report.append(withinTarget);
+		report.append(" of ");
+		report.append(latencies.size());
+		if (results >= 0) {
+			report.append("; ");
+			report.append(results);
+			report.append(" results in total");
+		}
+		report.append("\n");
+	}
+
+}
@@ -0,0 +1,594 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.util.DebugUtilities;
+import ac.robinson.util.IOUtilities;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Stores cached icons packed into a few large segment files, rather than one small file per icon, so that loading an
+ * icon needs no directory lookup or file open - with tens of thousands of media items, those dominate icon load time
+ * on SD cards. Icons are appended to the newest segment (a new one is started when it reaches
+ * MediaTablet.THUMBNAIL_PACK_SEGMENT_SIZE), and are read through a memory-mapped buffer of each segment (except for
+ * icons added to the newest segment since it was mapped, which are read from its file - remapping a segment that is
+ * still growing after every write would cost more than the read). The offset of every icon is kept in memory, and is
+ * rebuilt by reading the segments' record headers when the pack is opened.
+ *
+ * Each record is: magic number, key length, key (UTF-8), data length (or -1 if the key was removed), data. Replacing
+ * or removing an icon leaves its old record in place, so once less than MediaTablet.THUMBNAIL_PACK_COMPACT_FRACTION of
+ * an older segment is still in use its remaining icons are copied to the newest segment, and the old segment is
+ * deleted (in the background). A record that was only partly written (e.g., if the application was killed) is
+ * truncated when the pack is opened - this is a cache, so any icon that is lost is simply rendered again.
+ */
+public class ThumbnailPack {
+
+	public static final String DIRECTORY_NAME = "_icons"; // in MediaTablet.DIRECTORY_THUMBS; never a valid cache id
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_EXTENSION = ".pack";
+	private static final int RECORD_MAGIC = 0x49434f4e; // "ICON"
+	private static final int RECORD_HEADER_SIZE = 4 + 2 + 4; // magic, key length, data length (plus the key)
+	private static final int REMOVED = -1;
+	private static final String KEY_ENCODING = "UTF-8";
+
+	private static ThumbnailPack mIconPack = null;
+
+	private final File mDirectory;
+	private final HashMap<String, Entry> mIndex = new HashMap<String, Entry>();
+	private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>(); // oldest first
+	private Segment mActiveSegment = null;
+	private boolean mOpened = false;
+	private volatile boolean mReady = false; // whether open has finished, so reads will not wait for it
+	private final AtomicBoolean mCompacting = new AtomicBoolean(false);
+
+	private int mReadCount = 0;
+	private int mMissCount = 0;
+	private long mBytesRead = 0;
+	private int mWriteCount = 0;
+	private long mBytesWritten = 0;
+	private int mCompactedSegments = 0;
+	private long mBytesReclaimed = 0;
+
+	/**
+	 * Get the pack that media icons are cached in, in MediaTablet.DIRECTORY_THUMBS
+	 *
+	 * @return the pack, or null if the thumbnail directory is not available (in which case icons are cached as files)
+	 */
+	public static synchronized ThumbnailPack getIconPack() {
+		if (MediaTablet.DIRECTORY_THUMBS == null) {
+			return null;
+		}
+		final File directory = new File(MediaTablet.DIRECTORY_THUMBS, DIRECTORY_NAME);
+		if (mIconPack == null || !mIconPack.mDirectory.equals(directory)) {
+			if (mIconPack != null) {
+				mIconPack.close(); // the storage location has changed
+			}
+			mIconPack = new ThumbnailPack(directory);
+		}
+		return mIconPack;
+	}
+
+	public static String getIconPackStatistics() {
+		final ThumbnailPack iconPack = getIconPack();
+		return iconPack != null ? iconPack.getStatistics() : "IconPack[unavailable]";
+	}
+
+	public static void clearIconPackStatistics() {
+		final ThumbnailPack iconPack = getIconPack();
+		if (iconPack != null) {
+			iconPack.clearStatistics();
+		}
+	}
+
+	public ThumbnailPack(File directory) {
+		mDirectory = directory;
+	}
+
+	/**
+	 * Read the segments' record headers to build the index - called automatically on first use, but as this reads
+	 * every segment, it is best called in advance from a background thread
+	 */
+	public synchronized void open() {
+		if (mOpened) {
+			return;
+		}
+		mOpened = true;
+		final long startTime = System.currentTimeMillis();
+		final File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				final String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION)) {
+					try {
+						final int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length()
+								- SEGMENT_EXTENSION.length()));
+						mSegments.put(number, new Segment(number, file));
+					} catch (NumberFormatException e) {
+						file.delete(); // not one of ours
+					} catch (IOException e) {
+						file.delete(); // can't be read - its icons will be rendered again
+					}
+				}
+			}
+		}
+		for (Segment segment : new ArrayList<Segment>(mSegments.values())) {
+			try {
+				scanSegment(segment);
+			} catch (IOException e) {
+				final Iterator<Entry> entries = mIndex.values().iterator();
+				while (entries.hasNext()) {
+					if (entries.next().mSegment == segment) {
+						entries.remove(); // they will be rendered again
+					}
+				}
+				removeSegment(segment);
+			}
+		}
+		if (!mSegments.isEmpty()) {
+			mActiveSegment = mSegments.lastEntry().getValue();
+		}
+		mReady = true;
+		if (MediaTablet.DEBUG)
+			Log.d(DebugUtilities.getLogTag(this), "Opened " + mIndex.size() + " icons in " + mSegments.size()
+					+ " segments in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	/**
+	 * Check whether the pack has been opened - on the UI thread, icons should not be read from a pack that is not
+	 * ready, as reading would wait until every segment has been scanned
+	 */
+	public boolean isReady() {
+		return mReady;
+	}
+
+	// read every record header in order, so that later records for a key replace earlier ones
+	private void scanSegment(Segment segment) throws IOException {
+		final MappedByteBuffer buffer = segment.getBuffer(segment.mLength);
+		long position = 0;
+		while (position + RECORD_HEADER_SIZE <= segment.mLength) {
+			buffer.position((int) position);
+			if (buffer.getInt() != RECORD_MAGIC) {
+				break;
+			}
+			final int keyLength = buffer.getShort() & 0xffff;
+			if (position + RECORD_HEADER_SIZE + keyLength > segment.mLength) {
+				break;
+			}
+			final byte[] keyBytes = new byte[keyLength];
+			buffer.get(keyBytes);
+			final int dataLength = buffer.getInt();
+			final long recordLength = RECORD_HEADER_SIZE + keyLength + Math.max(dataLength, 0);
+			if (dataLength < REMOVED || position + recordLength > segment.mLength) {
+				break;
+			}
+
+			final String key = new String(keyBytes, KEY_ENCODING);
+			if (dataLength == REMOVED) {
+				releaseEntry(mIndex.remove(key));
+				segment.mRemovedKeys.add(key);
+			} else {
+				final Entry entry = new Entry(segment, position + RECORD_HEADER_SIZE + keyLength, dataLength,
+						recordLength);
+				releaseEntry(mIndex.put(key, entry));
+				segment.mLiveBytes += recordLength;
+			}
+			position += recordLength;
+		}
+		if (position < segment.mLength) {
+			if (MediaTablet.DEBUG)
+				Log.d(DebugUtilities.getLogTag(this), "Truncating " + segment.mFile.getName() + " from "
+						+ segment.mLength + " to " + position + " bytes");
+			segment.truncate(position);
+		}
+	}
+
+	private void releaseEntry(Entry entry) {
+		if (entry != null) {
+			entry.mSegment.mLiveBytes -= entry.mRecordLength;
+		}
+	}
+
+	public synchronized boolean contains(String key) {
+		open();
+		return mIndex.containsKey(key);
+	}
+
+	/**
+	 * Get an icon's data (e.g., for BitmapFactory.decodeByteArray)
+	 *
+	 * @return the data, or null if the icon is not in the pack
+	 */
+	public synchronized byte[] get(String key) {
+		open();
+		mReadCount += 1;
+		final Entry entry = mIndex.get(key);
+		if (entry == null) {
+			mMissCount += 1;
+			return null;
+		}
+		try {
+			final byte[] data = readData(entry);
+			mBytesRead += data.length;
+			return data;
+		} catch (IOException e) {
+			Log.e(DebugUtilities.getLogTag(this), "Unable to read icon " + key + ": " + e.getLocalizedMessage());
+			releaseEntry(mIndex.remove(key)); // it will be rendered again
+			mMissCount += 1;
+			return null;
+		}
+	}
+
+	// must be called with the lock held
+	private byte[] readData(Entry entry) throws IOException {
+		final Segment segment = entry.mSegment;
+		final long requiredLength = entry.mOffset + entry.mLength;
+		final byte[] data = new byte[entry.mLength];
+		if (segment == mActiveSegment && !segment.isMapped(requiredLength)) {
+			segment.read(data, entry.mOffset); // older segments no longer grow, so are only mapped again once
+			return data;
+		}
+		final MappedByteBuffer buffer = segment.getBuffer(requiredLength);
+		buffer.position((int) entry.mOffset);
+		buffer.get(data);
+		return data;
+	}
+
+	/**
+	 * Add an icon, replacing any existing icon with the same key
+	 */
+	public synchronized boolean put(String key, byte[] data) {
+		open();
+		try {
+			final Entry entry = appendRecord(key, data);
+			releaseEntry(mIndex.put(key, entry));
+			entry.mSegment.mLiveBytes += entry.mRecordLength;
+			mWriteCount += 1;
+			mBytesWritten += entry.mRecordLength;
+		} catch (IOException e) {
+			Log.e(DebugUtilities.getLogTag(this), "Unable to write icon " + key + ": " + e.getLocalizedMessage());
+			return false;
+		}
+		compactInBackground();
+		return true;
+	}
+
+	public synchronized void remove(String key) {
+		open();
+		final Entry entry = mIndex.remove(key);
+		if (entry == null) {
+			return;
+		}
+		releaseEntry(entry);
+		try {
+			appendRecord(key, null); // so that the icon is not found again when the pack is next opened
+			mActiveSegment.mRemovedKeys.add(key);
+		} catch (IOException e) {
+			Log.e(DebugUtilities.getLogTag(this), "Unable to remove icon " + key + ": " + e.getLocalizedMessage());
+		}
+		compactInBackground();
+	}
+
+	// must be called with the lock held; data is null to record that a key has been removed
+	private Entry appendRecord(String key, byte[] data) throws IOException {
+		final byte[] keyBytes = key.getBytes(KEY_ENCODING);
+		final int dataLength = data != null ? data.length : REMOVED;
+		final long recordLength = RECORD_HEADER_SIZE + keyBytes.length + Math.max(dataLength, 0);
+		if (mActiveSegment == null || mActiveSegment.mLength + recordLength > MediaTablet.THUMBNAIL_PACK_SEGMENT_SIZE) {
+			if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+				throw new IOException("Unable to create " + mDirectory);
+			}
+			final int number = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+			mActiveSegment = new Segment(number, new File(mDirectory, SEGMENT_PREFIX + number + SEGMENT_EXTENSION));
+			mSegments.put(number, mActiveSegment);
+		}
+
+		final ByteBuffer record = ByteBuffer.allocate((int) recordLength);
+		record.putInt(RECORD_MAGIC);
+		record.putShort((short) keyBytes.length);
+		record.put(keyBytes);
+		record.putInt(dataLength);
+		if (data != null) {
+			record.put(data);
+		}
+		record.flip();
+
+		final Segment segment = mActiveSegment;
+		final long position = segment.mLength;
+		long written = 0;
+		while (written < recordLength) {
+			written += segment.mChannel.write(record, position + written);
+		}
+		segment.mLength += recordLength;
+		return new Entry(segment, position + RECORD_HEADER_SIZE + keyBytes.length, Math.max(dataLength, 0),
+				recordLength);
+	}
+
+	private void compactInBackground() {
+		if (!hasSegmentToCompact() || !mCompacting.compareAndSet(false, true)) {
+			return;
+		}
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					compactSegments();
+				} finally {
+					mCompacting.set(false);
+				}
+			}
+		}, "Icon pack compaction").start();
+	}
+
+	synchronized boolean hasSegmentToCompact() {
+		return getSegmentToCompact() != null;
+	}
+
+	// the oldest segment (other than the one being written) that is mostly unused
+	private Segment getSegmentToCompact() {
+		for (Segment segment : mSegments.values()) {
+			if (segment != mActiveSegment
+					&& segment.mLiveBytes < segment.mLength * MediaTablet.THUMBNAIL_PACK_COMPACT_FRACTION) {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Copy the icons that are still in use out of mostly unused segments, then delete those segments. Icons are copied
+	 * one at a time, so reads and writes can continue while this runs. Must not be called from the UI thread.
+	 */
+	public void compact() {
+		if (!mCompacting.compareAndSet(false, true)) {
+			return; // already running in the background
+		}
+		try {
+			compactSegments();
+		} finally {
+			mCompacting.set(false);
+		}
+	}
+
+	// only one compaction runs at once (see mCompacting), so the segment can only be removed here
+	private void compactSegments() {
+		Segment segment;
+		while ((segment = getNextSegmentToCompact()) != null) {
+			final long startTime = System.currentTimeMillis();
+			final long unusedBytes;
+
+			ArrayList<String> keys = new ArrayList<String>();
+			synchronized (this) {
+				if (!isOpenSegment(segment)) {
+					return; // closed (and possibly reopened) since the segment was chosen
+				}
+				unusedBytes = segment.mLength - segment.mLiveBytes;
+				for (Map.Entry<String, Entry> indexEntry : mIndex.entrySet()) {
+					if (indexEntry.getValue().mSegment == segment) {
+						keys.add(indexEntry.getKey());
+					}
+				}
+			}
+			for (String key : keys) {
+				copyRecord(segment, key);
+			}
+
+			synchronized (this) {
+				if (!isOpenSegment(segment)) {
+					return; // closed while copying - don't delete the file, as a reopened pack may be using it
+				}
+
+				// keep removals that an older segment's records would otherwise bring back when next opened
+				final boolean hasOlderSegment = mSegments.firstKey() < segment.mNumber;
+				if (hasOlderSegment) {
+					for (String key : segment.mRemovedKeys) {
+						if (!mIndex.containsKey(key)) {
+							try {
+								appendRecord(key, null);
+								mActiveSegment.mRemovedKeys.add(key);
+							} catch (IOException e) {
+								return; // try again later, rather than deleting the segment
+							}
+						}
+					}
+				}
+				if (segment.mLiveBytes > 0) {
+					return; // some icons could not be copied - try again later
+				}
+				removeSegment(segment);
+				mCompactedSegments += 1;
+				mBytesReclaimed += unusedBytes;
+			}
+			if (MediaTablet.DEBUG)
+				Log.d(DebugUtilities.getLogTag(this), "Compacted " + segment.mFile.getName() + " (" + keys.size()
+						+ " icons) in " + (System.currentTimeMillis() - startTime) + " ms");
+		}
+	}
+
+	private synchronized Segment getNextSegmentToCompact() {
+		return mOpened ? getSegmentToCompact() : null; // stop if the pack has been closed
+	}
+
+	// must be called with the lock held
+	private boolean isOpenSegment(Segment segment) {
+		return mOpened && mSegments.get(segment.mNumber) == segment;
+	}
+
+	private synchronized void copyRecord(Segment segment, String key) {
+		final Entry entry = mIndex.get(key);
+		if (entry == null || entry.mSegment != segment) {
+			return; // replaced or removed since the segment's keys were listed
+		}
+		final byte[] data;
+		try {
+			data = readData(entry);
+		} catch (IOException e) {
+			releaseEntry(mIndex.remove(key)); // it will be rendered again
+			return;
+		}
+		try {
+			final Entry newEntry = appendRecord(key, data);
+			mIndex.put(key, newEntry);
+			releaseEntry(entry);
+			newEntry.mSegment.mLiveBytes += newEntry.mRecordLength;
+		} catch (IOException e) {
+			Log.e(DebugUtilities.getLogTag(this), "Unable to copy icon " + key + ": " + e.getLocalizedMessage());
+		}
+	}
+
+	private void removeSegment(Segment segment) {
+		mSegments.remove(segment.mNumber);
+		if (mActiveSegment == segment) {
+			mActiveSegment = null;
+		}
+		segment.close();
+		segment.mFile.delete();
+	}
+
+	/**
+	 * Close every segment - the pack is reopened if it is used again
+	 */
+	public synchronized void close() {
+		for (Segment segment : mSegments.values()) {
+			segment.close();
+		}
+		mSegments.clear();
+		mIndex.clear();
+		mActiveSegment = null;
+		mOpened = false;
+		mReady = false;
+	}
+
+	/**
+	 * Get the total size of the segment files, including icons that have been replaced or removed
+	 */
+	public synchronized long getSizeOnDisk() {
+		long size = 0;
+		for (Segment segment : mSegments.values()) {
+			size += segment.mLength;
+		}
+		return size;
+	}
+
+	public synchronized String getStatistics() {
+		long liveBytes = 0;
+		for (Segment segment : mSegments.values()) {
+			liveBytes += segment.mLiveBytes;
+		}
+		return "IconPack[icons " + mIndex.size() + ", segments " + mSegments.size() + ", bytes " + liveBytes
+				+ " used of " + getSizeOnDisk() + ", reads " + mReadCount + " (" + mMissCount + " not found, "
+				+ mBytesRead + " bytes), writes " + mWriteCount + " (" + mBytesWritten + " bytes), compacted "
+				+ mCompactedSegments + " segments (" + mBytesReclaimed + " bytes)]";
+	}
+
+	public synchronized void clearStatistics() {
+		mReadCount = 0;
+		mMissCount = 0;
+		mBytesRead = 0;
+		mWriteCount = 0;
+		mBytesWritten = 0;
+		mCompactedSegments = 0;
+		mBytesReclaimed = 0;
+	}
+
+	private static class Entry {
+		private final Segment mSegment;
+		private final long mOffset; // of the data, within the segment
+		private final int mLength;
+		private final long mRecordLength; // including the header, for counting the segment's unused space
+
+		private Entry(Segment segment, long offset, int length, long recordLength) {
+			mSegment = segment;
+			mOffset = offset;
+			mLength = length;
+			mRecordLength = recordLength;
+		}
+	}
+
+	private static class Segment {
+		private final int mNumber;
+		private final File mFile;
+		private final RandomAccessFile mRandomAccessFile;
+		private final FileChannel mChannel;
+		private long mLength;
+		private long mLiveBytes = 0; // the size of the records that are still in the index
+		private final HashSet<String> mRemovedKeys = new HashSet<String>(); // keys with a removal record here
+		private MappedByteBuffer mBuffer = null;
+
+		private Segment(int number, File file) throws IOException {
+			mNumber = number;
+			mFile = file;
+			mRandomAccessFile = new RandomAccessFile(file, "rw");
+			mChannel = mRandomAccessFile.getChannel();
+			mLength = mChannel.size();
+		}
+
+		private boolean isMapped(long requiredLength) {
+			return mBuffer != null && mBuffer.capacity() >= requiredLength;
+		}
+
+		// map the segment if it has not been mapped yet, or has grown beyond the current mapping
+		private MappedByteBuffer getBuffer(long requiredLength) throws IOException {
+			if (mBuffer == null || mBuffer.capacity() < requiredLength) {
+				mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+			}
+			return mBuffer;
+		}
+
+		// read without mapping, for data beyond the current mapping
+		private void read(byte[] data, long position) throws IOException {
+			final ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				if (mChannel.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException("Unexpected end of " + mFile.getName());
+				}
+			}
+		}
+
+		private void truncate(long length) throws IOException {
+			mChannel.truncate(length);
+			mLength = length;
+			mBuffer = null;
+		}
+
+		private void close() {
+			mBuffer = null; // unmapped when collected
+			IOUtilities.closeStream(mRandomAccessFile);
+		}
+	}
+}
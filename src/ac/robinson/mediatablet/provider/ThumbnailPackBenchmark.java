@@ -0,0 +1,332 @@
+/*
+ *  Copyright (C) 2012 Simon Robinson
+ *
+ *  This file is part of Com-Me.
+ *
+ *  Com-Me is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation; either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  Com-Me is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *  or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General
+ *  Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with Com-Me.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ac.robinson.mediatablet.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.mediatablet.PerformanceReport;
+import ac.robinson.mediatablet.R;
+import ac.robinson.util.DebugUtilities;
+import ac.robinson.util.IOUtilities;
+import ac.robinson.util.ImageCacheUtilities;
+import android.app.IntentService;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Compares the icon pack (see ThumbnailPack) with one file per icon, as icons were cached before the pack was used.
+ * The same synthetic icons are written to a temporary directory of files and to a temporary pack (both in
+ * MediaTablet.DIRECTORY_THUMBS, so on the same storage as the real icons), then read back in the same random order -
+ * including lookups of icons that don't exist, as happens for every icon that has not been rendered yet. Finally, some
+ * of the packed icons are replaced, and the pack is compacted. Only runs in DEBUG builds.
+ *
+ * The service is commented out in AndroidManifest.xml, as it must be exported to be started with adb - uncomment it
+ * (and set MediaTablet.DEBUG), then run from a computer with, for example (all extras are optional - see the EXTRA_
+ * constants for defaults):
+ *
+ * adb shell am startservice -n ac.robinson.mediatablet/.provider.ThumbnailPackBenchmark --ei icons 5000 --ei reads
+ * 10000
+ *
+ * Both stores are read straight after they are written, so most reads will come from the page cache - for cold
+ * reads, restart the device between writing and reading (--ez keep true keeps both stores, and --ez read_only true
+ * skips writing them). The report is written to the log and to a file on external storage.
+ */
+public class ThumbnailPackBenchmark extends IntentService {
+
+	public static final String EXTRA_ICONS = "icons"; // default: 2000
+	public static final String EXTRA_READS = "reads"; // random reads from each store; default: 4000
+	public static final String EXTRA_DECODES = "decodes"; // reads that are also decoded; default: 500
+	public static final String EXTRA_MISS_RATE = "misses"; // percentage of reads for missing icons; default 10
+	public static final String EXTRA_REPLACE_RATE = "replace"; // percentage of icons replaced; default 60
+	public static final String EXTRA_KEEP = "keep"; // don't delete the stores afterwards; default false
+	public static final String EXTRA_READ_ONLY = "read_only"; // use the stores kept by a previous run; default false
+	public static final String EXTRA_SEED = "seed"; // for repeatable runs; default: random
+
+	private static final String FILES_DIRECTORY_NAME = "_benchmark-files"; // in MediaTablet.DIRECTORY_THUMBS
+	private static final String PACK_DIRECTORY_NAME = "_benchmark-pack";
+	private static final String KEY_PREFIX = "benchmark-";
+	private static final int DISTINCT_ICONS = 32; // icon contents are reused, as only their storage is measured
+
+	public ThumbnailPackBenchmark() {
+		super("ThumbnailPackBenchmark");
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (!MediaTablet.DEBUG) {
+			Log.w(DebugUtilities.getLogTag(this), "Thumbnail pack benchmark is only available in DEBUG builds");
+			return;
+		}
+		if (MediaTablet.DIRECTORY_THUMBS == null) {
+			Log.e(DebugUtilities.getLogTag(this), "Thumbnail directory is not available");
+			return;
+		}
+
+		final int iconCount = Math.max(1, intent.getIntExtra(EXTRA_ICONS, 2000));
+		final int readCount = intent.getIntExtra(EXTRA_READS, 4000);
+		final int decodeCount = Math.min(readCount, intent.getIntExtra(EXTRA_DECODES, 500));
+		final int missRate = intent.getIntExtra(EXTRA_MISS_RATE, 10);
+		final int replaceRate = intent.getIntExtra(EXTRA_REPLACE_RATE, 60);
+		final boolean keep = intent.getBooleanExtra(EXTRA_KEEP, false);
+		final boolean readOnly = intent.getBooleanExtra(EXTRA_READ_ONLY, false);
+		final long seed = intent.getLongExtra(EXTRA_SEED, System.nanoTime());
+
+		final File filesDirectory = new File(MediaTablet.DIRECTORY_THUMBS, FILES_DIRECTORY_NAME);
+		final File packDirectory = new File(MediaTablet.DIRECTORY_THUMBS, PACK_DIRECTORY_NAME);
+		final Random random = new Random(seed);
+		final StringBuilder report = new StringBuilder("Thumbnail pack benchmark: ");
+		report.append(intent.getExtras() != null ? intent.getExtras().toString() : "defaults");
+		report.append(", seed ");
+		report.append(seed);
+		report.append("\n");
+
+		// write - the same icons, in the same order, to each store
+		if (!readOnly) {
+			deleteDirectory(filesDirectory);
+			deleteDirectory(packDirectory);
+			filesDirectory.mkdirs();
+			final int iconSize = getResources().getDimensionPixelSize(R.dimen.media_icon_width);
+			final ArrayList<byte[]> icons = new ArrayList<byte[]>(DISTINCT_ICONS);
+			for (int i = 0; i < DISTINCT_ICONS; i++) {
+				icons.add(createIcon(iconSize, random));
+			}
+
+			long startTime = System.nanoTime();
+			long fileBytes = 0;
+			for (int i = 0; i < iconCount; i++) {
+				final byte[] icon = icons.get(i % DISTINCT_ICONS);
+				writeFile(new File(filesDirectory, KEY_PREFIX + i), icon);
+				fileBytes += icon.length;
+			}
+			final long fileWriteTime = System.nanoTime() - startTime;
+
+			final ThumbnailPack pack = new ThumbnailPack(packDirectory);
+			pack.open();
+			startTime = System.nanoTime();
+			for (int i = 0; i < iconCount; i++) {
+				pack.put(KEY_PREFIX + i, icons.get(i % DISTINCT_ICONS));
+			}
+			final long packWriteTime = System.nanoTime() - startTime;
+			final long packBytes = pack.getSizeOnDisk();
+			pack.close();
+
+			appendTiming(report, "Write " + iconCount + " icons", fileWriteTime, packWriteTime, iconCount);
+			report.append("Bytes stored: files ");
+			report.append(fileBytes);
+			report.append(" (before rounding up to the file system's block size), pack ");
+			report.append(packBytes);
+			report.append("\n");
+		}
+
+		// open - the pack must read its record headers before it can be used; files need nothing
+		final ThumbnailPack pack = new ThumbnailPack(packDirectory);
+		long startTime = System.nanoTime();
+		pack.open();
+		report.append("Open pack (reading the index): ");
+		report.append((System.nanoTime() - startTime) / 1000);
+		report.append(" us\n");
+
+		// read - the same random keys from each store, as the adapters do: check that the icon exists, then read it
+		final String[] keys = new String[readCount];
+		for (int i = 0; i < readCount; i++) {
+			keys[i] = KEY_PREFIX + (random.nextInt(100) < missRate ? "missing-" : "") + random.nextInt(iconCount);
+		}
+		startTime = System.nanoTime();
+		int fileHits = 0;
+		for (String key : keys) {
+			final File iconFile = new File(filesDirectory, key);
+			if (iconFile.exists() && readFile(iconFile) != null) {
+				fileHits += 1;
+			}
+		}
+		final long fileReadTime = System.nanoTime() - startTime;
+		startTime = System.nanoTime();
+		int packHits = 0;
+		for (String key : keys) {
+			if (pack.get(key) != null) {
+				packHits += 1;
+			}
+		}
+		final long packReadTime = System.nanoTime() - startTime;
+		appendTiming(report, "Read " + readCount + " icons (found " + fileHits + " files, " + packHits + " packed)",
+				fileReadTime, packReadTime, readCount);
+
+		// read and decode, as IconCache does on a miss
+		startTime = System.nanoTime();
+		for (int i = 0; i < decodeCount; i++) {
+			final File iconFile = new File(filesDirectory, keys[i]);
+			if (iconFile.exists()) {
+				recycle(BitmapFactory.decodeFile(iconFile.getAbsolutePath(),
+						ImageCacheUtilities.mBitmapFactoryOptions));
+			}
+		}
+		final long fileDecodeTime = System.nanoTime() - startTime;
+		startTime = System.nanoTime();
+		for (int i = 0; i < decodeCount; i++) {
+			final byte[] icon = pack.get(keys[i]);
+			if (icon != null) {
+				recycle(BitmapFactory.decodeByteArray(icon, 0, icon.length, ImageCacheUtilities.mBitmapFactoryOptions));
+			}
+		}
+		final long packDecodeTime = System.nanoTime() - startTime;
+		appendTiming(report, "Read and decode " + decodeCount + " icons", fileDecodeTime, packDecodeTime, decodeCount);
+
+		// replace, then compact - files are simply overwritten, so this only applies to the pack
+		if (!readOnly && replaceRate > 0) {
+			startTime = System.nanoTime();
+			int replaced = 0;
+			for (int i = 0; i < iconCount; i++) {
+				if (random.nextInt(100) < replaceRate) {
+					final byte[] icon = pack.get(KEY_PREFIX + i);
+					if (icon != null) {
+						pack.put(KEY_PREFIX + i, icon);
+						replaced += 1;
+					}
+				}
+			}
+			final long replaceTime = System.nanoTime() - startTime;
+			final long sizeBeforeCompaction = pack.getSizeOnDisk();
+			startTime = System.nanoTime();
+			pack.compact();
+			while (pack.hasSegmentToCompact()) { // compaction may already have started in the background
+				SystemClock.sleep(10);
+				pack.compact();
+			}
+			final long compactTime = System.nanoTime() - startTime;
+			report.append("Replace ");
+			report.append(replaced);
+			report.append(" packed icons: ");
+			report.append(replaceTime / 1000000);
+			report.append(" ms; compact: ");
+			report.append(compactTime / 1000000);
+			report.append(" ms; pack bytes ");
+			report.append(sizeBeforeCompaction);
+			report.append(" before compaction, ");
+			report.append(pack.getSizeOnDisk());
+			report.append(" after\n");
+		}
+
+		report.append("\n");
+		report.append(pack.getStatistics());
+		pack.close();
+		if (!keep) {
+			deleteDirectory(filesDirectory);
+			deleteDirectory(packDirectory);
+		}
+
+		PerformanceReport.save(this, "thumbnail-benchmark", report.toString());
+	}
+
+	private static void appendTiming(StringBuilder report, String operation, long fileTime, long packTime, int count) {
+		report.append(operation);
+		report.append(": files ");
+		report.append(fileTime / 1000000);
+		report.append(" ms (");
+		report.append(fileTime / 1000 / Math.max(1, count));
+		report.append(" us each), pack ");
+		report.append(packTime / 1000000);
+		report.append(" ms (");
+		report.append(packTime / 1000 / Math.max(1, count));
+		report.append(" us each)\n");
+	}
+
+	private static byte[] createIcon(int iconSize, Random random) {
+		// random blocks of colour, so the icon compresses (and is stored) like a real one rather than a flat colour
+		final int blockSize = 6;
+		final int[] pixels = new int[iconSize * iconSize];
+		for (int y = 0; y < iconSize; y += blockSize) {
+			for (int x = 0; x < iconSize; x += blockSize) {
+				final int colour = 0xff000000 | random.nextInt(0x1000000);
+				for (int by = y; by < Math.min(y + blockSize, iconSize); by++) {
+					for (int bx = x; bx < Math.min(x + blockSize, iconSize); bx++) {
+						pixels[by * iconSize + bx] = colour;
+					}
+				}
+			}
+		}
+		final Bitmap icon = Bitmap.createBitmap(pixels, iconSize, iconSize, Bitmap.Config.ARGB_8888);
+		final ByteArrayOutputStream iconStream = new ByteArrayOutputStream();
+		icon.compress(MediaTablet.ICON_CACHE_TYPE, MediaTablet.ICON_CACHE_QUALITY, iconStream);
+		icon.recycle();
+		return iconStream.toByteArray();
+	}
+
+	private void writeFile(File file, byte[] contents) {
+		FileOutputStream outputStream = null;
+		try {
+			outputStream = new FileOutputStream(file);
+			outputStream.write(contents);
+		} catch (IOException e) {
+			Log.e(DebugUtilities.getLogTag(this), "Unable to write " + file + ": " + e.getLocalizedMessage());
+		} finally {
+			IOUtilities.closeStream(outputStream);
+		}
+	}
+
+	private byte[] readFile(File file) {
+		FileInputStream inputStream = null;
+		try {
+			inputStream = new FileInputStream(file);
+			final byte[] contents = new byte[(int) file.length()];
+			int read = 0;
+			while (read < contents.length) {
+				final int count = inputStream.read(contents, read, contents.length - read);
+				if (count < 0) {
+					break;
+				}
+				read += count;
+			}
+			return contents;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			IOUtilities.closeStream(inputStream);
+		}
+	}
+
+	private static void recycle(Bitmap bitmap) {
+		if (bitmap != null) {
+			bitmap.recycle();
+		}
+	}
+
+	// the stores are flat directories
+	private static void deleteDirectory(File directory) {
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+}
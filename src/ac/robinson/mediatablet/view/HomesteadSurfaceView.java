@@ -30,8 +30,10 @@ import java.util.Vector;
 
 import ac.robinson.mediatablet.MediaTablet;
 import ac.robinson.mediatablet.R;
+import ac.robinson.mediatablet.provider.BitmapPool;
 import ac.robinson.mediatablet.provider.HomesteadItem;
 import ac.robinson.mediatablet.provider.HomesteadManager;
+import ac.robinson.mediatablet.provider.IconCache;
 import ac.robinson.util.BitmapUtilities;
 import ac.robinson.util.DebugUtilities;
 import ac.robinson.util.ImageCacheUtilities;
@@ -354,6 +356,7 @@ public class HomesteadSurfaceView extends SurfaceView implements SurfaceHolder.C
 		if (bitmap != null && MediaTablet.DIRECTORY_THUMBS != null) {
 			success = BitmapUtilities.saveBitmap(bitmap, fileFormat, MediaTablet.ICON_CACHE_QUALITY, outputImageFile);
 		}
+		IconCache.remove(fileName);
 		if (MediaTablet.DEBUG) {
 			if (bitmap == null || !success) {
 				Log.e(DebugUtilities.getLogTag(this), "Failed to save cache image " + outputImageFile);
@@ -416,7 +419,10 @@ public class HomesteadSurfaceView extends SurfaceView implements SurfaceHolder.C
 						mY);
 				mCurrentDrawX += mBitmapWidth;
 			} else {
-				mTileCache.remove(getBackgroundCacheFileName(i)); // try to save some memory
+				LoadingBitmap tile = mTileCache.remove(getBackgroundCacheFileName(i)); // try to save some memory
+				if (tile != null) {
+					BitmapPool.putBitmap(tile.mBitmap); // no longer drawn - reuse for the next tile that is loaded
+				}
 			}
 			n += 1;
 		}
@@ -21,17 +21,14 @@
 package ac.robinson.mediatablet.view;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
 
 import ac.robinson.mediatablet.MediaTablet;
+import ac.robinson.mediatablet.provider.BitmapPool;
 import ac.robinson.mediatablet.provider.HomesteadItem;
 import ac.robinson.mediatablet.provider.HomesteadManager;
-import ac.robinson.util.IOUtilities;
+import ac.robinson.mediatablet.provider.IconCache;
 import ac.robinson.util.ImageCacheUtilities;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
 public class SurfaceLoadThread extends Thread {
 
@@ -51,18 +48,24 @@ public class SurfaceLoadThread extends Thread {
 	}
 
 	public Bitmap loadIcon(String iconFile, boolean allowRecursive) {
+		// background tiles are large, and are managed by HomesteadSurfaceView, so only icons are kept in IconCache
+		final boolean isIcon = !iconFile.startsWith(HomesteadSurfaceView.BACKGROUND_IMAGE_NAME);
+		if (isIcon) {
+			Bitmap icon = IconCache.get(iconFile);
+			if (icon != null) {
+				return icon;
+			}
+		}
+
 		File file = new File(MediaTablet.DIRECTORY_THUMBS, iconFile);
 		if (file.exists()) {
-			InputStream stream = null;
-			try {
-				stream = new FileInputStream(file);
-				return BitmapFactory.decodeStream(stream, null, ImageCacheUtilities.mBitmapFactoryOptions);
-			} catch (FileNotFoundException e) {
-				// ignore
-			} finally {
-				IOUtilities.closeStream(stream);
+			// tiles are returned to the pool when they are no longer drawn, so decode into one of those if possible
+			Bitmap icon = BitmapPool.decodeFile(file, ImageCacheUtilities.mBitmapFactoryOptions);
+			if (isIcon) {
+				IconCache.put(iconFile, icon);
 			}
-		} else if (allowRecursive && !iconFile.startsWith(HomesteadSurfaceView.BACKGROUND_IMAGE_NAME)) {
+			return icon;
+		} else if (allowRecursive && isIcon) {
 			HomesteadManager.reloadHomesteadIcon(mSurfaceView.getContext().getResources(), mSurfaceView.getContext()
 					.getContentResolver(), HomesteadItem.getInternalIdFromCacheId(iconFile));
 			return loadIcon(iconFile, false);